@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
+
+/**
+ * Measures the cost of the map phase per matched document. A single shard index is kept in memory
+ * and all documents are matched by every request, so the difference between the script facet benchmarks and
+ * {@link #baseline()} is the per-document overhead of the collector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CollectBenchmark {
+
+    public static final int DOCS = 100000;
+
+    private Node node;
+
+    private Client client;
+
+    private BytesReference mvelFacet;
+
+    private BytesReference batchFacet;
+
+    private BytesReference nativeFacet;
+
+    private BytesReference opsFacet;
+
+    @Setup
+    public void setUp() throws IOException {
+        Settings settings = settingsBuilder()
+                .put("cluster.name", "facet-script-benchmark")
+                .put("gateway.type", "none")
+                .put("index.store.type", "memory")
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0)
+                .put("facet.script.native.doc_count.type", DocCountFacetFactory.class.getName())
+                .build();
+        node = nodeBuilder().local(true).settings(settings).node();
+        client = node.client();
+        client.admin().indices().prepareCreate("bench").execute().actionGet();
+        client.admin().cluster().prepareHealth("bench").setWaitForGreenStatus().execute().actionGet();
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int i = 0; i < DOCS; i++) {
+            bulk.add(client.prepareIndex("bench", "doc").setSource(jsonBuilder().startObject()
+                    .field("num", i % 1000)
+                    .endObject()));
+            if (bulk.numberOfActions() == 10000) {
+                bulk.execute().actionGet();
+                bulk = client.prepareBulk();
+            }
+        }
+        if (bulk.numberOfActions() > 0) {
+            bulk.execute().actionGet();
+        }
+        client.admin().indices().prepareRefresh("bench").execute().actionGet();
+
+        mvelFacet = jsonBuilder().startObject()
+                .startObject("facets").startObject("facet1").startObject("script")
+                .field("init_script", "total = 0")
+                .field("map_script", "total += doc['num'].value")
+                .field("combine_script", "total")
+                .endObject().endObject().endObject()
+                .endObject().bytes();
+        batchFacet = jsonBuilder().startObject()
+                .startObject("facets").startObject("facet1").startObject("script")
+                .field("init_script", "total = 0")
+                .field("map_batch_script", "for (i = 0; i < _batch.size(); i++) { _batch.advance(i); total += doc['num'].value }")
+                .field("combine_script", "total")
+                .endObject().endObject().endObject()
+                .endObject().bytes();
+        nativeFacet = jsonBuilder().startObject()
+                .startObject("facets").startObject("facet1").startObject("script")
+                .field("native", "doc_count")
+                .endObject().endObject().endObject()
+                .endObject().bytes();
+        opsFacet = jsonBuilder().startObject()
+                .startObject("facets").startObject("facet1").startObject("script")
+                .startObject("map").field("op", "sum").field("field", "num").endObject()
+                .endObject().endObject().endObject()
+                .endObject().bytes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        node.close();
+    }
+
+    private SearchResponse search(BytesReference facets) {
+        return client.prepareSearch("bench")
+                .setSearchType(SearchType.COUNT)
+                .setExtraSource(facets)
+                .execute().actionGet();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public SearchResponse baseline() {
+        return client.prepareSearch("bench")
+                .setSearchType(SearchType.COUNT)
+                .execute().actionGet();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public SearchResponse mapScript() {
+        return search(mvelFacet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public SearchResponse mapBatchScript() {
+        return search(batchFacet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public SearchResponse nativeFacet() {
+        return search(nativeFacet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public SearchResponse mapOps() {
+        return search(opsFacet);
+    }
+
+    public static class DocCountFacetFactory implements NativeScriptFacetFactory {
+
+        @Override
+        public NativeScriptFacet newFacet(Map<String, Object> params) {
+            return new NativeScriptFacet() {
+                private long count;
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) throws IOException {
+                }
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    count++;
+                }
+
+                @Override
+                public Object combine() {
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public Object reduce(List<Object> facets, Map<String, Object> reduceParams) {
+            long total = 0;
+            for (Object facet : facets) {
+                total += ((Number) facet).longValue();
+            }
+            return total;
+        }
+    }
+}
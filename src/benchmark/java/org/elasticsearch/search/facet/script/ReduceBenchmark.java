@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
+
+/**
+ * Measures the reduce phase over shard results. Every shard result contains 1000 keys, half of them shared with
+ * all other shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReduceBenchmark {
+
+    private static final int KEYS = 1000;
+
+    private static final String REDUCE_SCRIPT = "result = [:]; " +
+            "foreach (f : facets) { foreach (e : f.entrySet()) { " +
+            "v = result[e.key]; result[e.key] = v == null ? e.value : v + e.value } }; result";
+
+    private static final String ACCUMULATE_SCRIPT = "if (_state == null) { _state = [:] }; " +
+            "foreach (e : facet.entrySet()) { v = _state[e.key]; _state[e.key] = v == null ? e.value : v + e.value }; _state";
+
+    @Param({"10", "100", "500"})
+    public int shards;
+
+    @Param({"accumulator", "reduce_script", "accumulate_script"})
+    public String mode;
+
+    private Node node;
+
+    private ScriptService scriptService;
+
+    private Client client;
+
+    private InternalFacet.ReduceContext reduceContext;
+
+    @Setup
+    public void setUp() {
+        node = nodeBuilder().local(true).settings(settingsBuilder()
+                .put("cluster.name", "facet-script-benchmark")
+                .put("gateway.type", "none")).node();
+        scriptService = ((InternalNode) node).injector().getInstance(ScriptService.class);
+        client = node.client();
+    }
+
+    @TearDown
+    public void tearDown() {
+        node.close();
+    }
+
+    /**
+     * Reduce releases shard results as it goes, so they have to be recreated for every invocation
+     */
+    @Setup(Level.Invocation)
+    public void createShardResults() {
+        Random random = new Random(0);
+        List<Facet> facets = new ArrayList<Facet>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            Object facet;
+            if ("accumulator".equals(mode)) {
+                LongLongMapAccumulator accumulator = new LongLongMapAccumulator();
+                for (int i = 0; i < KEYS; i++) {
+                    accumulator.put(key(shard, i), random.nextInt(1000));
+                }
+                facet = accumulator;
+            } else {
+                Map<String, Object> map = new HashMap<String, Object>();
+                for (int i = 0; i < KEYS; i++) {
+                    map.put(Long.toString(key(shard, i)), (long) random.nextInt(1000));
+                }
+                facet = map;
+            }
+            facets.add(new InternalScriptFacet("facet1", facet, "mvel",
+                    "reduce_script".equals(mode) ? REDUCE_SCRIPT : null,
+                    "accumulate_script".equals(mode) ? ACCUMULATE_SCRIPT : null,
+                    null, null, 0, null, scriptService, null, client, null));
+        }
+        reduceContext = new InternalFacet.ReduceContext(null, facets);
+    }
+
+    private static long key(int shard, int i) {
+        return i < KEYS / 2 ? i : shard * KEYS + i;
+    }
+
+    @Benchmark
+    public Facet reduce() {
+        return ((InternalFacet) reduceContext.facets().get(0)).reduce(reduceContext);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serialization of shard results with typical facet payloads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SerializationBenchmark {
+
+    @Param({"numbers", "map_10k", "map_1m", "nested", "accumulator_1m"})
+    public String payload;
+
+    @Param({"-1", "16384"})
+    public long compressThreshold;
+
+    private InternalScriptFacet facet;
+
+    private BytesReference bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        facet = new InternalScriptFacet("facet1", payload(payload, new Random(0)), "mvel", "facets", null, null, null, 0, null,
+                null, null, null, null);
+        facet.compressThreshold(compressThreshold);
+        BytesStreamOutput out = new BytesStreamOutput();
+        facet.writeTo(out);
+        bytes = out.bytes();
+    }
+
+    static Object payload(String payload, Random random) {
+        if ("numbers".equals(payload)) {
+            List<Object> numbers = new ArrayList<Object>();
+            for (int i = 0; i < 10000; i++) {
+                numbers.add(random.nextLong());
+            }
+            return numbers;
+        } else if ("map_10k".equals(payload)) {
+            return map(10000, random);
+        } else if ("map_1m".equals(payload)) {
+            return map(1000000, random);
+        } else if ("nested".equals(payload)) {
+            List<Object> entries = new ArrayList<Object>();
+            for (int i = 0; i < 1000; i++) {
+                Map<String, Object> entry = new HashMap<String, Object>();
+                entry.put("name", "entry" + i);
+                entry.put("count", random.nextInt(1000));
+                List<Object> values = new ArrayList<Object>();
+                for (int j = 0; j < 10; j++) {
+                    values.add(random.nextDouble());
+                }
+                entry.put("values", values);
+                entry.put("tags", map(10, random));
+                entries.add(entry);
+            }
+            return entries;
+        } else if ("accumulator_1m".equals(payload)) {
+            LongLongMapAccumulator accumulator = new LongLongMapAccumulator();
+            for (int i = 0; i < 1000000; i++) {
+                accumulator.put(i, random.nextInt(1000));
+            }
+            return accumulator;
+        }
+        throw new IllegalArgumentException("unknown payload [" + payload + "]");
+    }
+
+    static Map<String, Object> map(int size, Random random) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            map.put("key" + i, (long) random.nextInt(1000));
+        }
+        return map;
+    }
+
+    @Benchmark
+    public BytesReference writeTo() throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        facet.writeTo(out);
+        return out.bytes();
+    }
+
+    @Benchmark
+    public InternalScriptFacet readFrom() throws IOException {
+        return InternalScriptFacet.readMapReduceFacet(new BytesStreamInput(bytes), null, null, null, null, null, null);
+    }
+}
@@ -16,9 +16,19 @@
 
 package org.elasticsearch.plugin.search.facet.script;
 
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.rest.action.facet.script.RestScriptFacetStatsAction;
 import org.elasticsearch.search.facet.FacetModule;
+import org.elasticsearch.search.facet.script.ScriptFacetModule;
 import org.elasticsearch.search.facet.script.ScriptFacetParser;
+import org.elasticsearch.search.facet.script.ScriptFacetSpillService;
+import org.elasticsearch.search.facet.script.ScriptFacetThreadPool;
+
+import java.util.Collection;
 
 /**
  *
@@ -35,8 +45,22 @@ public class ScriptFacetPlugin extends AbstractPlugin {
         return "Generic script facet support";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        return ImmutableList.<Class<? extends Module>>of(ScriptFacetModule.class);
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return ImmutableList.<Class<? extends LifecycleComponent>>of(ScriptFacetThreadPool.class, ScriptFacetSpillService.class);
+    }
+
     public void onModule(FacetModule facetModule) {
         facetModule.addFacetProcessor(ScriptFacetParser.class);
     }
 
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestScriptFacetStatsAction.class);
+    }
+
 }
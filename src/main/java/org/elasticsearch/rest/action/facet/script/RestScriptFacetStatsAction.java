@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.rest.action.facet.script;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+import org.elasticsearch.search.facet.script.ScriptFacetMemoryService;
+import org.elasticsearch.search.facet.script.ScriptFacetSegmentCache;
+import org.elasticsearch.search.facet.script.ScriptFacetStatsService;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestStatus.OK;
+import static org.elasticsearch.rest.action.support.RestXContentBuilder.restContentBuilder;
+
+/**
+ * Returns script facet statistics of the node that receives the request
+ */
+public class RestScriptFacetStatsAction extends BaseRestHandler {
+
+    private final ScriptFacetSegmentCache segmentCache;
+
+    private final ScriptFacetStatsService statsService;
+
+    private final ScriptFacetMemoryService memoryService;
+
+    @Inject
+    public RestScriptFacetStatsAction(Settings settings, Client client, RestController controller,
+                                      ScriptFacetSegmentCache segmentCache, ScriptFacetStatsService statsService,
+                                      ScriptFacetMemoryService memoryService) {
+        super(settings, client);
+        this.segmentCache = segmentCache;
+        this.statsService = statsService;
+        this.memoryService = memoryService;
+        controller.registerHandler(GET, "/_script_facet/stats", this);
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            XContentBuilder builder = restContentBuilder(request);
+            builder.startObject();
+            segmentCache.stats().toXContent(builder, request);
+            memoryService.stats().toXContent(builder, request);
+            builder.field("phases");
+            statsService.stats().toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        } catch (Exception e) {
+            try {
+                channel.sendResponse(new XContentThrowableRestResponse(request, e));
+            } catch (IOException e1) {
+                logger.error("Failed to send failure response", e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.Nullable;
+
+import java.util.Map;
+
+/**
+ * A native facet factory that reduces shard results one at a time instead of receiving all of them
+ * in {@link #reduce(java.util.List, java.util.Map)}.
+ */
+public interface IncrementalNativeScriptFacetFactory extends NativeScriptFacetFactory {
+
+    /**
+     * Folds a shard result into the running state and returns the new state. The state is <code>null</code>
+     * for the first shard result. The state returned after the last shard is the result of the facet.
+     */
+    Object accumulate(@Nullable Object state, Object facet, @Nullable Map<String, Object> reduceParams);
+}
@@ -17,9 +17,13 @@
 package org.elasticsearch.search.facet.script;
 
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -27,14 +31,19 @@ import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.script.accumulator.Accumulator;
+import org.elasticsearch.search.facet.script.accumulator.Accumulators;
+import org.elasticsearch.search.facet.script.accumulator.PagePool;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
 
 /**
  *
@@ -43,34 +52,64 @@ public class InternalScriptFacet extends InternalFacet implements ScriptFacet {
     private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("script"));
 
     private Object facet;
-    private String scriptLang;
-    private String reduceScript;
-    private Map<String, Object> reduceParams;
+    private ReduceDefinition reduce;
+    private ScriptFacetPhaseStats stats;
+    // numbers of matching and mapped documents, only if the facet was sampled
+    private boolean sampled;
+    private long matchedDocs;
+    private long sampledDocs;
+    // upper bound of counts removed by shard_size trimming on shards
+    private long error;
+    // numbers of successful and failed requests sent through _bulk, only if the facet used it
+    private boolean bulk;
+    private long bulkSucceeded;
+    private long bulkFailed;
+    // serialized results of at least this many bytes are compressed, -1 to never compress
+    private long compressThreshold = -1;
     private ScriptService scriptService;
+    private ScriptFacetStatsService statsService;
     private Client client;
+    private Map<String, NativeScriptFacetFactory> nativeFacets;
+    // pool of paged accumulators created by reduce scripts
+    private PagePool pagePool;
 
 
-    public static void registerStreams(ScriptService scriptService, Client client) {
-        Streams.registerStream(new ScriptFacetStream(scriptService, client), STREAM_TYPE);
+    public static void registerStreams(ScriptService scriptService, ScriptFacetStatsService statsService, Client client,
+                                       Map<String, NativeScriptFacetFactory> nativeFacets, ScriptFacetDefinitionCache definitionCache,
+                                       PagePool pagePool) {
+        ScriptFacetStream stream = new ScriptFacetStream(scriptService, statsService, client, nativeFacets, definitionCache, pagePool);
+        Streams.registerStream(stream, STREAM_TYPE);
+        InternalScriptFacetGroup.registerStreams(stream);
     }
 
-    private InternalScriptFacet(ScriptService scriptService, Client client) {
+    private InternalScriptFacet(ScriptService scriptService, ScriptFacetStatsService statsService, Client client,
+                                Map<String, NativeScriptFacetFactory> nativeFacets, PagePool pagePool) {
         this.scriptService = scriptService;
+        this.statsService = statsService;
         this.client = client;
+        this.nativeFacets = nativeFacets;
+        this.pagePool = pagePool;
     }
 
-    private InternalScriptFacet(String name, ScriptService scriptService, Client client) {
+    private InternalScriptFacet(String name, Object facet, ReduceDefinition reduce, ScriptFacetPhaseStats stats, ScriptService scriptService,
+                                ScriptFacetStatsService statsService, Client client,
+                                Map<String, NativeScriptFacetFactory> nativeFacets) {
         super(name);
+        this.facet = facet;
+        this.reduce = reduce;
+        this.stats = stats;
         this.scriptService = scriptService;
+        this.statsService = statsService;
         this.client = client;
+        this.nativeFacets = nativeFacets;
     }
 
-    public InternalScriptFacet(String name, Object facet, String scriptLang, String reduceScript, Map<String, Object> reduceParams, ScriptService scriptService, Client client) {
-        this(name, scriptService, client);
-        this.facet = facet;
-        this.reduceScript = reduceScript;
-        this.reduceParams = reduceParams;
-        this.scriptLang = scriptLang;
+    public InternalScriptFacet(String name, Object facet, String scriptLang, String reduceScript, String accumulateScript,
+                               Map<String, Object> reduceParams, String nativeFacetName, int size, @Nullable ScriptFacetPhaseStats stats,
+                               ScriptService scriptService, ScriptFacetStatsService statsService, Client client,
+                               Map<String, NativeScriptFacetFactory> nativeFacets) {
+        this(name, facet, new ReduceDefinition(scriptLang, reduceScript, accumulateScript, reduceParams, nativeFacetName, size), stats,
+                scriptService, statsService, client, nativeFacets);
     }
 
     @Override
@@ -80,28 +119,282 @@ public class InternalScriptFacet extends InternalFacet implements ScriptFacet {
 
     @Override
     public Facet reduce(ReduceContext reduceContext) {
-        List<Object> facetObjects = newArrayList();
-        for (Facet facet : reduceContext.facets()) {
-            InternalScriptFacet mapReduceFacet = (InternalScriptFacet) facet;
-            facetObjects.add(mapReduceFacet.facet());
-        }
-        InternalScriptFacet firstFacet = ((InternalScriptFacet) reduceContext.facets().get(0));
-        Object facet;
-        if (firstFacet.reduceScript() != null) {
-            Map<String, Object> params;
-            if (firstFacet.reduceParams() != null) {
-                params = new HashMap<String, Object>(firstFacet.reduceParams());
+        long start = System.nanoTime();
+        List<Facet> facets = reduceContext.facets();
+        InternalScriptFacet firstFacet = ((InternalScriptFacet) facets.get(0));
+        ReduceDefinition reduce = firstFacet.reduce;
+        long matchedDocs = 0;
+        long sampledDocs = 0;
+        boolean sampled = false;
+        long error = 0;
+        boolean bulk = false;
+        long bulkSucceeded = 0;
+        long bulkFailed = 0;
+        for (Facet shardFacet : facets) {
+            InternalScriptFacet scriptFacet = (InternalScriptFacet) shardFacet;
+            error += scriptFacet.error;
+            if (scriptFacet.bulk) {
+                bulk = true;
+                bulkSucceeded += scriptFacet.bulkSucceeded;
+                bulkFailed += scriptFacet.bulkFailed;
+            }
+            if (scriptFacet.sampled) {
+                sampled = true;
+                matchedDocs += scriptFacet.matchedDocs;
+                sampledDocs += scriptFacet.sampledDocs;
+            }
+        }
+        Double sampleRate = sampled ? sampleRate(matchedDocs, sampledDocs) : null;
+        // pages of local shard results are released right away, results of other shards arrive on the heap
+        for (Facet shardFacet : facets) {
+            InternalScriptFacet scriptFacet = (InternalScriptFacet) shardFacet;
+            scriptFacet.facet = Accumulators.toHeap(scriptFacet.facet);
+        }
+        ScriptFacetPhaseStats reducedStats = null;
+        if (firstFacet.stats != null) {
+            reducedStats = new ScriptFacetPhaseStats();
+            for (Facet shardFacet : facets) {
+                if (((InternalScriptFacet) shardFacet).stats != null) {
+                    reducedStats.addShard(((InternalScriptFacet) shardFacet).stats);
+                }
+            }
+        }
+        NativeScriptFacetFactory nativeFacet = null;
+        if (reduce.nativeFacetName != null) {
+            nativeFacet = nativeFacets.get(reduce.nativeFacetName);
+            if (nativeFacet == null) {
+                throw new FacetPhaseExecutionException(firstFacet.getName(), "native script facet [" + reduce.nativeFacetName + "] is not registered");
+            }
+        }
+        Object facet = null;
+        // paged accumulators created by the reduce scripts are released once the result is copied to the heap
+        Accumulators accumulators = new Accumulators(pagePool);
+        try {
+            if (reduce.accumulateScript != null) {
+                Map<String, Object> params = scriptReduceParams(reduce, sampleRate, accumulators);
+                ExecutableScript script = scriptService.executable(scriptService.compile(reduce.scriptLang, reduce.accumulateScript), params);
+                Object state = params.get("_state");
+                for (Facet shardFacet : facets) {
+                    Object shardState = ((InternalScriptFacet) shardFacet).releaseFacet();
+                    script.setNextVar("_state", state);
+                    script.setNextVar("facet", shardState);
+                    state = script.unwrap(script.run());
+                    releaseFolded(shardState, state);
+                }
+                script.setNextVar("facet", null);
+                if (reduce.reduceScript != null) {
+                    params.put("_state", state);
+                    facet = scriptService.executable(scriptService.compile(reduce.scriptLang, reduce.reduceScript), params).run();
+                } else {
+                    facet = state;
+                }
+            } else if (reduce.reduceScript != null) {
+                Map<String, Object> params = scriptReduceParams(reduce, sampleRate, accumulators);
+                params.put("facets", facetObjects(facets));
+                ExecutableScript script = scriptService.executable(scriptService.compile(reduce.scriptLang, reduce.reduceScript), params);
+                facet = script.run();
+            } else if (nativeFacet instanceof IncrementalNativeScriptFacetFactory) {
+                IncrementalNativeScriptFacetFactory incrementalFacet = (IncrementalNativeScriptFacetFactory) nativeFacet;
+                Object state = null;
+                for (Facet shardFacet : facets) {
+                    Object shardState = ((InternalScriptFacet) shardFacet).releaseFacet();
+                    state = incrementalFacet.accumulate(state, shardState, nativeReduceParams(reduce, sampleRate));
+                    releaseFolded(shardState, state);
+                }
+                facet = state;
+            } else if (nativeFacet != null) {
+                facet = nativeFacet.reduce(facetObjects(facets), nativeReduceParams(reduce, sampleRate));
+            } else if (Accumulators.isMergeable(facetObjects(facets))) {
+                Accumulator state = null;
+                for (Facet shardFacet : facets) {
+                    Accumulator accumulator = (Accumulator) ((InternalScriptFacet) shardFacet).releaseFacet();
+                    if (state == null) {
+                        state = accumulator;
+                    } else if (accumulator != null) {
+                        state.merge(accumulator);
+                        Accumulators.release(accumulator);
+                    }
+                }
+                facet = state;
             } else {
+                List<Object> facetObjects = facetObjects(facets);
+                if (reduce.size > 0 && ScriptFacetTopK.isCountMaps(facetObjects)) {
+                    facet = ScriptFacetTopK.mergeCountMaps(facetObjects);
+                } else {
+                    facet = facetObjects;
+                }
+            }
+            if (reduce.size > 0) {
+                // keys removed here are not part of the result, so only the shard errors are reported
+                facet = ScriptFacetTopK.trim(facet, reduce.size, new long[1]);
+            }
+            facet = Accumulators.toHeap(facet);
+            accumulators.detach(facet);
+        } finally {
+            accumulators.release();
+            // shard results that were not folded in one by one are released once the result is known
+            for (Facet shardFacet : facets) {
+                releaseFolded(((InternalScriptFacet) shardFacet).releaseFacet(), facet);
+            }
+        }
+        long reduceNanos = System.nanoTime() - start;
+        if (statsService != null) {
+            statsService.onReduce(reduceNanos);
+        }
+        if (reducedStats != null) {
+            reducedStats.reduceNanos = reduceNanos;
+        }
+        InternalScriptFacet reduced = new InternalScriptFacet(firstFacet.getName(), facet, reduce, reducedStats, scriptService,
+                statsService, client, nativeFacets);
+        reduced.compressThreshold = firstFacet.compressThreshold;
+        reduced.pagePool = pagePool;
+        if (sampled) {
+            reduced.sample(matchedDocs, sampledDocs);
+        }
+        reduced.error = error;
+        if (bulk) {
+            reduced.bulk(bulkSucceeded, bulkFailed);
+        }
+        return reduced;
+    }
+
+    /**
+     * Deletes the spilled files and returns the pages of a shard result that was folded into the reduced state,
+     * except for the parts the state took over
+     */
+    private static void releaseFolded(@Nullable Object shardState, @Nullable Object state) {
+        if (shardState != null && shardState != state) {
+            Accumulators.releaseExcept(Collections.singletonList(shardState), state);
+        }
+    }
+
+    private static List<Object> facetObjects(List<Facet> facets) {
+        List<Object> facetObjects = newArrayListWithCapacity(facets.size());
+        for (Facet facet : facets) {
+            facetObjects.add(((InternalScriptFacet) facet).facet());
+        }
+        return facetObjects;
+    }
+
+    private Map<String, Object> scriptReduceParams(ReduceDefinition reduce, @Nullable Double sampleRate, Accumulators accumulators) {
+        Map<String, Object> params = reduce.copyReduceParams();
+        if (params == null) {
+            params = new HashMap<String, Object>();
+        }
+        params.put("_client", client);
+        params.put("_acc", accumulators);
+        if (sampleRate != null) {
+            params.put("_sample_rate", sampleRate);
+        }
+        return params;
+    }
+
+    private static Map<String, Object> nativeReduceParams(ReduceDefinition reduce, @Nullable Double sampleRate) {
+        Map<String, Object> params = reduce.copyReduceParams();
+        if (sampleRate != null) {
+            if (params == null) {
                 params = new HashMap<String, Object>();
             }
-            params.put("facets", facetObjects);
-            params.put("_client", client);
-            ExecutableScript script = scriptService.executable(firstFacet.scriptLang(), firstFacet.reduceScript(), params);
-            facet = script.run();
-        } else {
-            facet = facetObjects;
+            params.put("_sample_rate", sampleRate);
         }
-        return new InternalScriptFacet(firstFacet.getName(), facet, firstFacet.scriptLang(), firstFacet.reduceScript(), firstFacet.reduceParams(), scriptService, client);
+        return params;
+    }
+
+    static double sampleRate(long matchedDocs, long sampledDocs) {
+        return matchedDocs == 0 ? 1.0 : (double) sampledDocs / matchedDocs;
+    }
+
+    /**
+     * Records that only <code>sampledDocs</code> out of <code>matchedDocs</code> matching documents were mapped
+     */
+    InternalScriptFacet sample(long matchedDocs, long sampledDocs) {
+        this.sampled = true;
+        this.matchedDocs = matchedDocs;
+        this.sampledDocs = sampledDocs;
+        return this;
+    }
+
+    /**
+     * Records the largest count removed from the shard result by shard_size trimming
+     */
+    void error(long error) {
+        this.error = error;
+    }
+
+    /**
+     * Records the numbers of successful and failed requests that were sent through <code>_bulk</code>
+     */
+    void bulk(long succeeded, long failed) {
+        this.bulk = true;
+        this.bulkSucceeded = succeeded;
+        this.bulkFailed = failed;
+    }
+
+    /**
+     * Number of requests sent through <code>_bulk</code> that succeeded
+     */
+    public long bulkSucceeded() {
+        return bulkSucceeded;
+    }
+
+    /**
+     * Number of requests sent through <code>_bulk</code> that failed
+     */
+    public long bulkFailed() {
+        return bulkFailed;
+    }
+
+    /**
+     * Sets the size above which the serialized result is compressed
+     */
+    void compressThreshold(long compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * Sets the pool of paged accumulators created by reduce scripts when this result is reduced on the same node
+     */
+    void pagePool(PagePool pagePool) {
+        this.pagePool = pagePool;
+    }
+
+    /**
+     * Upper bound of the amount by which any count of a facet with <code>size</code> can be lower than the exact count
+     * because of the shard_size trimming. 0 if nothing was trimmed.
+     */
+    public long error() {
+        return error;
+    }
+
+    /**
+     * Maximum number of entries of the result, 0 if not limited
+     */
+    public int size() {
+        return reduce.size;
+    }
+
+    /**
+     * Returns true if the facet was calculated on a sample of matching documents
+     */
+    public boolean sampled() {
+        return sampled;
+    }
+
+    /**
+     * Fraction of matching documents that were mapped, 1 if the facet wasn't sampled
+     */
+    public double sampleRate() {
+        return sampled ? sampleRate(matchedDocs, sampledDocs) : 1.0;
+    }
+
+    /**
+     * Returns the shard result and drops the reference to it, so it can be garbage collected as soon as
+     * it is folded into the reduced result
+     */
+    private Object releaseFacet() {
+        Object facet = this.facet;
+        this.facet = null;
+        return facet;
     }
 
     @Override
@@ -111,20 +404,114 @@ public class InternalScriptFacet extends InternalFacet implements ScriptFacet {
 
     @Override
     public void readFrom(StreamInput in) throws IOException {
+        readFrom(in, null);
+    }
+
+    private void readFrom(StreamInput in, @Nullable ScriptFacetDefinitionCache definitionCache) throws IOException {
         super.readFrom(in);
-        scriptLang = in.readOptionalString();
-        reduceScript = in.readOptionalString();
-        reduceParams = in.readMap();
-        facet = in.readGenericValue();
+        BytesReference bytes = new HashedBytesArray(in.readBytesReference().toBytes());
+        // all shards send the same definition, it is parsed only once
+        reduce = definitionCache == null ? ReduceDefinition.readFrom(bytes) : definitionCache.read(bytes);
+        compressThreshold = Accumulators.readZLong(in);
+        if (in.readBoolean()) {
+            int length = in.readVInt();
+            byte[] compressed = new byte[length];
+            in.readBytes(compressed, 0, length);
+            byte[] uncompressed = CompressorFactory.defaultCompressor().uncompress(compressed, 0, length);
+            facet = ScriptFacetValues.readValue(new BytesStreamInput(uncompressed, false));
+        } else {
+            facet = ScriptFacetValues.readValue(in);
+        }
+        if (in.readBoolean()) {
+            stats = ScriptFacetPhaseStats.readPhaseStats(in);
+        }
+        sampled = in.readBoolean();
+        if (sampled) {
+            matchedDocs = in.readVLong();
+            sampledDocs = in.readVLong();
+        }
+        error = in.readVLong();
+        bulk = in.readBoolean();
+        if (bulk) {
+            bulkSucceeded = in.readVLong();
+            bulkFailed = in.readVLong();
+        }
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         super.writeTo(out);
-        out.writeOptionalString(scriptLang);
-        out.writeOptionalString(reduceScript);
-        out.writeMap(reduceParams);
-        out.writeGenericValue(facet);
+        out.writeBytesReference(reduce.bytes());
+        Accumulators.writeZLong(out, compressThreshold);
+        long start = System.nanoTime();
+        long bytes;
+        long wireBytes;
+        long compressNanos = 0;
+        if (compressThreshold >= 0) {
+            // the result has to be serialized first to know whether it is large enough
+            BytesStreamOutput buffer = new BytesStreamOutput();
+            ScriptFacetValues.writeValue(buffer, facet);
+            BytesReference serialized = buffer.bytes();
+            bytes = serialized.length();
+            byte[] compressed = null;
+            if (bytes >= compressThreshold) {
+                long compressStart = System.nanoTime();
+                compressed = CompressorFactory.defaultCompressor().compress(serialized.array(), serialized.arrayOffset(), serialized.length());
+                compressNanos = System.nanoTime() - compressStart;
+            }
+            if (compressed != null && compressed.length < bytes) {
+                out.writeBoolean(true);
+                out.writeVInt(compressed.length);
+                out.writeBytes(compressed);
+                wireBytes = compressed.length;
+            } else {
+                out.writeBoolean(false);
+                serialized.writeTo(out);
+                wireBytes = bytes;
+            }
+        } else {
+            out.writeBoolean(false);
+            if (out.seekPositionSupported()) {
+                long position = out.position();
+                ScriptFacetValues.writeValue(out, facet);
+                bytes = out.position() - position;
+            } else {
+                CountingStreamOutput countingOut = new CountingStreamOutput(out);
+                ScriptFacetValues.writeValue(countingOut, facet);
+                bytes = countingOut.count();
+            }
+            wireBytes = bytes;
+        }
+        // the result is not used on this node once it is written
+        Accumulators.release(facet);
+        long nanos = System.nanoTime() - start;
+        if (statsService != null) {
+            statsService.onSerialize(nanos, bytes, compressNanos, wireBytes);
+        }
+        if (stats != null) {
+            if (stats.shardStats() == null) {
+                // stats of a shard result
+                stats.serializeNanos = nanos;
+                stats.combineBytes = bytes;
+                stats.compressNanos = compressNanos;
+                stats.wireBytes = wireBytes;
+            }
+            out.writeBoolean(true);
+            stats.writeTo(out);
+        } else {
+            out.writeBoolean(false);
+        }
+        out.writeBoolean(sampled);
+        if (sampled) {
+            out.writeVLong(matchedDocs);
+            out.writeVLong(sampledDocs);
+        }
+        out.writeVLong(error);
+        out.writeBoolean(bulk);
+        if (bulk) {
+            out.writeVLong(bulkSucceeded);
+            out.writeVLong(bulkFailed);
+        }
     }
 
     @Override
@@ -138,20 +525,42 @@ public class InternalScriptFacet extends InternalFacet implements ScriptFacet {
     }
 
     public String scriptLang() {
-        return scriptLang;
+        return reduce.scriptLang;
     }
 
     public String reduceScript() {
-        return reduceScript;
+        return reduce.reduceScript;
+    }
+
+    public String accumulateScript() {
+        return reduce.accumulateScript;
     }
 
     public Map<String, Object> reduceParams() {
-        return reduceParams;
+        return reduce.reduceParams;
+    }
+
+    public String nativeFacetName() {
+        return reduce.nativeFacetName;
+    }
+
+    /**
+     * Phase statistics of the facet, <code>null</code> unless the facet was executed with <code>profile</code> enabled
+     */
+    @Nullable
+    public ScriptFacetPhaseStats stats() {
+        return stats;
     }
 
     static final class Fields {
         static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
         static final XContentBuilderString FACET = new XContentBuilderString("facet");
+        static final XContentBuilderString _STATS = new XContentBuilderString("_stats");
+        static final XContentBuilderString _SAMPLE_RATE = new XContentBuilderString("_sample_rate");
+        static final XContentBuilderString _ERROR = new XContentBuilderString("_error");
+        static final XContentBuilderString _BULK = new XContentBuilderString("_bulk");
+        static final XContentBuilderString SUCCEEDED = new XContentBuilderString("succeeded");
+        static final XContentBuilderString FAILED = new XContentBuilderString("failed");
     }
 
     @Override
@@ -159,30 +568,116 @@ public class InternalScriptFacet extends InternalFacet implements ScriptFacet {
         builder.startObject(getName());
         builder.field(Fields._TYPE, ScriptFacet.TYPE);
         builder.field(Fields.FACET, facet);
+        if (sampled) {
+            builder.field(Fields._SAMPLE_RATE, sampleRate());
+        }
+        if (reduce.size > 0) {
+            builder.field(Fields._ERROR, error);
+        }
+        if (bulk) {
+            builder.startObject(Fields._BULK);
+            builder.field(Fields.SUCCEEDED, bulkSucceeded);
+            builder.field(Fields.FAILED, bulkFailed);
+            builder.endObject();
+        }
+        if (stats != null) {
+            builder.field(Fields._STATS);
+            stats.toXContent(builder, params);
+        }
         builder.endObject();
         return builder;
     }
 
-    public static InternalScriptFacet readMapReduceFacet(StreamInput in, ScriptService scriptService, Client client) throws IOException {
-        InternalScriptFacet facet = new InternalScriptFacet(scriptService, client);
-        facet.readFrom(in);
+    /**
+     * Everything the coordinating node needs to reduce shard results. Definitions received from shards are
+     * shared between facets and requests, so the reduce params should be copied before they are handed
+     * to scripts.
+     */
+    static final class ReduceDefinition {
+
+        private final String scriptLang;
+        private final String reduceScript;
+        private final String accumulateScript;
+        private final Map<String, Object> reduceParams;
+        private final String nativeFacetName;
+        private final int size;
+
+        private BytesReference bytes;
+
+        ReduceDefinition(String scriptLang, String reduceScript, String accumulateScript, Map<String, Object> reduceParams,
+                         String nativeFacetName, int size) {
+            this.scriptLang = scriptLang;
+            this.reduceScript = reduceScript;
+            this.accumulateScript = accumulateScript;
+            this.reduceParams = reduceParams;
+            this.nativeFacetName = nativeFacetName;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> copyReduceParams() {
+            return (Map<String, Object>) ScriptFacetValues.copy(reduceParams);
+        }
+
+        BytesReference bytes() throws IOException {
+            if (bytes == null) {
+                BytesStreamOutput out = new BytesStreamOutput();
+                out.writeOptionalString(scriptLang);
+                out.writeOptionalString(reduceScript);
+                out.writeOptionalString(accumulateScript);
+                out.writeMap(reduceParams);
+                out.writeOptionalString(nativeFacetName);
+                out.writeVInt(size);
+                bytes = out.bytes();
+            }
+            return bytes;
+        }
+
+        static ReduceDefinition readFrom(BytesReference bytes) throws IOException {
+            StreamInput in = new BytesStreamInput(bytes);
+            ReduceDefinition reduce = new ReduceDefinition(in.readOptionalString(), in.readOptionalString(), in.readOptionalString(),
+                    in.readMap(), in.readOptionalString(), in.readVInt());
+            reduce.bytes = bytes;
+            return reduce;
+        }
+    }
+
+    public static InternalScriptFacet readMapReduceFacet(StreamInput in, ScriptService scriptService,
+                                                         ScriptFacetStatsService statsService, Client client,
+                                                         Map<String, NativeScriptFacetFactory> nativeFacets,
+                                                         @Nullable ScriptFacetDefinitionCache definitionCache,
+                                                         @Nullable PagePool pagePool) throws IOException {
+        InternalScriptFacet facet = new InternalScriptFacet(scriptService, statsService, client, nativeFacets, pagePool);
+        facet.readFrom(in, definitionCache);
         return facet;
     }
 
     private static class ScriptFacetStream implements InternalFacet.Stream {
 
         private ScriptService scriptService;
+        private ScriptFacetStatsService statsService;
         private Client client;
 
+        private Map<String, NativeScriptFacetFactory> nativeFacets;
+
+        private final ScriptFacetDefinitionCache definitionCache;
+
+        private final PagePool pagePool;
 
-        public ScriptFacetStream(ScriptService scriptService, Client client) {
+        public ScriptFacetStream(ScriptService scriptService, ScriptFacetStatsService statsService, Client client,
+                                 Map<String, NativeScriptFacetFactory> nativeFacets, ScriptFacetDefinitionCache definitionCache,
+                                 PagePool pagePool) {
             this.scriptService = scriptService;
+            this.statsService = statsService;
             this.client = client;
+            this.nativeFacets = nativeFacets;
+            this.definitionCache = definitionCache;
+            this.pagePool = pagePool;
         }
 
         @Override
         public Facet readFacet(StreamInput in) throws IOException {
-            return InternalScriptFacet.readMapReduceFacet(in, scriptService, client);
+            return InternalScriptFacet.readMapReduceFacet(in, scriptService, statsService, client, nativeFacets, definitionCache, pagePool);
         }
 
     }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Results of script facets that were calculated together in a single pass, each of them reduced by its own
+ * reduce definition
+ */
+public class InternalScriptFacetGroup extends InternalFacet implements ScriptFacet {
+    private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("script_group"));
+
+    private List<InternalScriptFacet> facets;
+
+    private InternalFacet.Stream facetStream;
+
+    static void registerStreams(InternalFacet.Stream facetStream) {
+        Streams.registerStream(new GroupStream(facetStream), STREAM_TYPE);
+    }
+
+    private InternalScriptFacetGroup(InternalFacet.Stream facetStream) {
+        this.facetStream = facetStream;
+    }
+
+    InternalScriptFacetGroup(String name, List<InternalScriptFacet> facets) {
+        super(name);
+        this.facets = facets;
+    }
+
+    @Override
+    public BytesReference streamType() {
+        return STREAM_TYPE;
+    }
+
+    @Override
+    public String getType() {
+        return ScriptFacet.TYPE;
+    }
+
+    @Override
+    public Facet reduce(ReduceContext reduceContext) {
+        List<Facet> groups = reduceContext.facets();
+        List<InternalScriptFacet> reduced = newArrayListWithCapacity(facets.size());
+        for (int i = 0; i < facets.size(); i++) {
+            List<Facet> shardFacets = newArrayListWithCapacity(groups.size());
+            for (Facet group : groups) {
+                shardFacets.add(((InternalScriptFacetGroup) group).facets.get(i));
+            }
+            reduced.add((InternalScriptFacet) facets.get(i).reduce(new ReduceContext(reduceContext.cacheRecycler(), shardFacets)));
+        }
+        return new InternalScriptFacetGroup(getName(), reduced);
+    }
+
+    /**
+     * Results of the facets of the group by their names
+     */
+    @Override
+    public Map<String, Object> facet() {
+        Map<String, Object> result = newLinkedHashMap();
+        for (InternalScriptFacet facet : facets) {
+            result.put(facet.getName(), facet.facet());
+        }
+        return result;
+    }
+
+    @Override
+    public Object getFacet() {
+        return facet();
+    }
+
+    /**
+     * Returns the facet of the group with the given name or null if there is no such facet
+     */
+    public InternalScriptFacet facet(String name) {
+        for (InternalScriptFacet facet : facets) {
+            if (facet.getName().equals(name)) {
+                return facet;
+            }
+        }
+        return null;
+    }
+
+    public List<InternalScriptFacet> facets() {
+        return facets;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        facets = newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            facets.add((InternalScriptFacet) facetStream.readFacet(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(facets.size());
+        for (InternalScriptFacet facet : facets) {
+            facet.writeTo(out);
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+        static final XContentBuilderString FACETS = new XContentBuilderString("facets");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(getName());
+        builder.field(Fields._TYPE, ScriptFacet.TYPE);
+        builder.startObject(Fields.FACETS);
+        for (InternalScriptFacet facet : facets) {
+            facet.toXContent(builder, params);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    private static class GroupStream implements InternalFacet.Stream {
+
+        private final InternalFacet.Stream facetStream;
+
+        GroupStream(InternalFacet.Stream facetStream) {
+            this.facetStream = facetStream;
+        }
+
+        @Override
+        public Facet readFacet(StreamInput in) throws IOException {
+            InternalScriptFacetGroup group = new InternalScriptFacetGroup(facetStream);
+            group.readFrom(in);
+            return group;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+/**
+ * A native facet that can be used with <code>parallel_segments</code>. Every group of segments is collected
+ * by its own instance of the facet and the instances are merged into the shard level facet before
+ * {@link #combine()} is called.
+ */
+public interface MergeableNativeScriptFacet extends NativeScriptFacet {
+
+    /**
+     * Merges the state of the other facet collected on a different group of segments into this facet
+     */
+    void merge(NativeScriptFacet other);
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+
+import java.io.IOException;
+
+/**
+ * Shard level part of a native script facet. A new instance is created by {@link NativeScriptFacetFactory}
+ * for every shard the facet is executed on. It replaces init_script, map_script and combine_script of
+ * the scripted facet.
+ */
+public interface NativeScriptFacet {
+
+    /**
+     * Called before the documents of the next segment are collected
+     */
+    void setNextReader(AtomicReaderContext context) throws IOException;
+
+    void setScorer(Scorer scorer) throws IOException;
+
+    /**
+     * Called for every document that matches the query
+     */
+    void collect(int doc) throws IOException;
+
+    /**
+     * Called once after all documents on the shard are collected. The result has to be serializable
+     * in the same way as the result of combine_script.
+     */
+    Object combine();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.Nullable;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A factory of native script facets. Factories are registered by name using {@link ScriptFacetModule#registerFacet}
+ * or using <code>facet.script.native.[name].type</code> setting and selected in the facet request by the
+ * <code>native</code> field.
+ */
+public interface NativeScriptFacetFactory {
+
+    /**
+     * Creates a new shard level facet. The params contain the <code>params</code> of the facet request together
+     * with <code>_ctx</code>, <code>_client</code> and <code>_bulk</code> variables.
+     */
+    NativeScriptFacet newFacet(Map<String, Object> params);
+
+    /**
+     * Reduces results of {@link NativeScriptFacet#combine()} from all shards. Called on the node that received
+     * the request when reduce_script is not specified.
+     */
+    Object reduce(List<Object> facets, @Nullable Map<String, Object> reduceParams);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.script.SearchScript;
+
+/**
+ * A batch of document ids collected from a single segment that is passed to the map_batch_script
+ * as the <code>_batch</code> variable.
+ */
+public class ScriptFacetBatch {
+
+    private final SearchScript script;
+
+    private final int[] docs;
+
+    private int size;
+
+    public ScriptFacetBatch(SearchScript script, int batchSize) {
+        this.script = script;
+        this.docs = new int[batchSize];
+    }
+
+    /**
+     * Number of documents in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Document id at the given position in the batch
+     */
+    public int doc(int i) {
+        return docs[i];
+    }
+
+    /**
+     * The doc id buffer. Only the first {@link #size()} elements are valid.
+     */
+    public int[] docs() {
+        return docs;
+    }
+
+    /**
+     * Moves <code>doc</code>, <code>_fields</code> and <code>_source</code> lookups to the document at the given
+     * position in the batch and returns its doc id.
+     */
+    public int advance(int i) {
+        int doc = docs[i];
+        script.setNextDocId(doc);
+        return doc;
+    }
+
+    boolean add(int doc) {
+        docs[size++] = doc;
+        return size == docs.length;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
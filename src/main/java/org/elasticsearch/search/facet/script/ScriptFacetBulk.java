@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers index, update and delete requests issued by scripts and sends them in bulk requests in the background.
+ * It is available as the <code>_bulk</code> variable.
+ * <p/>
+ * At most <code>concurrentRequests</code> bulk requests of a facet are in flight at the same time, adding a request
+ * blocks while the limit is reached. Outstanding requests are sent and awaited before the combine phase, so the
+ * <code>combine_script</code> can read the numbers of successful and failed requests.
+ */
+public class ScriptFacetBulk implements BulkProcessor.Listener {
+
+    private final Client client;
+
+    private final int bulkActions;
+
+    private final int concurrentRequests;
+
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private BulkProcessor processor;
+
+    // number of bulk requests that were sent but didn't complete yet
+    private int outstanding;
+
+    private String failure;
+
+    public ScriptFacetBulk(Client client, int bulkActions, int concurrentRequests) {
+        this.client = client;
+        this.bulkActions = bulkActions;
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    /**
+     * Adds an index, update or delete request
+     */
+    public ScriptFacetBulk add(ActionRequest request) {
+        processor().add(request);
+        return this;
+    }
+
+    /**
+     * Adds the request of an index, update or delete request builder
+     */
+    public ScriptFacetBulk add(ActionRequestBuilder builder) {
+        return add(builder.request());
+    }
+
+    public ScriptFacetBulk index(String index, String type, String id, Map<String, Object> source) {
+        return add(new IndexRequest(index, type, id).source(source));
+    }
+
+    /**
+     * Merges the given partial document into the existing document
+     */
+    public ScriptFacetBulk update(String index, String type, String id, Map<String, Object> doc) {
+        return add(new UpdateRequest(index, type, id).doc(doc));
+    }
+
+    public ScriptFacetBulk delete(String index, String type, String id) {
+        return add(new DeleteRequest(index, type, id));
+    }
+
+    /**
+     * Number of requests that succeeded so far
+     */
+    public long succeeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * Number of requests that failed so far
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Failure message of the first failed request, null if no request failed
+     */
+    public synchronized String failure() {
+        return failure;
+    }
+
+    /**
+     * Returns true if any request was added
+     */
+    synchronized boolean used() {
+        return processor != null;
+    }
+
+    private synchronized BulkProcessor processor() {
+        if (processor == null) {
+            processor = BulkProcessor.builder(client, this)
+                    .setBulkActions(bulkActions)
+                    .setConcurrentRequests(concurrentRequests)
+                    .build();
+        }
+        return processor;
+    }
+
+    /**
+     * Sends the buffered requests without waiting for them
+     */
+    void close() {
+        BulkProcessor processor;
+        synchronized (this) {
+            processor = this.processor;
+        }
+        if (processor != null) {
+            processor.close();
+        }
+    }
+
+    /**
+     * Sends the buffered requests and waits until all bulk requests complete
+     *
+     * @return false if the requests didn't complete within the timeout
+     */
+    boolean awaitClose(TimeValue timeout) throws InterruptedException {
+        close();
+        long deadline = System.currentTimeMillis() + timeout.millis();
+        synchronized (this) {
+            while (outstanding > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void beforeBulk(long executionId, BulkRequest request) {
+        outstanding++;
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        String message = null;
+        for (BulkItemResponse item : response) {
+            if (item.isFailed()) {
+                failed.incrementAndGet();
+                if (message == null) {
+                    message = item.getFailureMessage();
+                }
+            } else {
+                succeeded.incrementAndGet();
+            }
+        }
+        completed(message);
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, Throwable t) {
+        failed.addAndGet(request.numberOfActions());
+        completed(t.toString());
+    }
+
+    private synchronized void completed(String message) {
+        if (failure == null) {
+            failure = message;
+        }
+        outstanding--;
+        notifyAll();
+    }
+}
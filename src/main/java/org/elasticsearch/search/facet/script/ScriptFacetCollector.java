@@ -19,107 +19,794 @@ package org.elasticsearch.search.facet.script;
 import static org.elasticsearch.common.collect.Maps.newHashMap;
 
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.FixedBitSet;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptService;
-import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.script.accumulator.Accumulator;
+import org.elasticsearch.search.facet.script.accumulator.Accumulators;
 import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.lookup.SearchLookup;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  *
  */
 public class ScriptFacetCollector extends FacetExecutor {
 
-    private final String scriptLang;
+    // variables added to the state by the facet and the document lookup
+    static final Set<String> NON_STATE_VARS = ImmutableSet.of("_ctx", "_client", "_bulk", "_acc", "_control", "_batch", "_columns", "doc", "_doc",
+            "_source", "_fields", "_score");
 
-    private final SearchScript mapScript;
+    // number of document ids that are read from a recorded segment at once
+    static final int DOC_BATCH_SIZE = 1024;
+
+    private final IndexFieldData<?>[] fieldData;
 
     private final ExecutableScript combineScript;
 
-    private final String reduceScript;
+    // scripts compiled once through the node level script cache, null if the corresponding script is not set
+    private final CompiledScript compiledInitScript;
+
+    private final CompiledScript compiledMapScript;
+
+    private final CompiledScript compiledSegmentCombineScript;
 
     // initial parameters for same shard scripts {init, map, combine}
     // state can be passed in params between them too
     private final Map<String, Object> params;
     // initial parameters for {reduce}
     private final Map<String, Object> reduceParams;
+    // copy of the request parameters that is used to initialize state of every segment group
+    // in parallel_segments mode, null otherwise
+    private final Map<String, Object> segmentParams;
+
+    private final ScriptFacetDefinition definition;
+
+    private final ScriptFacetMapper mapper;
+
+    private final SearchContext context;
 
     private ScriptService scriptService;
 
     private Client client;
 
-    public ScriptFacetCollector(String scriptLang, String initScript, String mapScript, String combineScript,
-                                String reduceScript, Map<String, Object> params, Map<String, Object> reduceParams,
-                                SearchContext context, Client client) {
+    private Map<String, NativeScriptFacetFactory> nativeFacets;
+
+    private ScriptFacetThreadPool threadPool;
+
+    private ScriptFacetSegmentCache segmentCache;
+
+    private ScriptFacetStatsService statsService;
+
+    private final ScriptFacetPhaseStats shardStats = new ScriptFacetPhaseStats();
+
+    private final ScriptFacetMemoryTracker memoryTracker;
+
+    private final ScriptFacetControl control = new ScriptFacetControl();
+
+    private final ScriptFacetBulk bulk;
+
+    private ScriptFacetSampler sampler;
+
+    private long matchedDocs;
+
+    private long sampledDocs;
+
+    // identity of the map phase of this facet, part of the segment cache key
+    private final BytesReference segmentDefinition;
+
+    public ScriptFacetCollector(ScriptFacetDefinition definition, SearchContext context, Client client,
+                                Map<String, NativeScriptFacetFactory> nativeFacets, ScriptFacetThreadPool threadPool,
+                                ScriptFacetSegmentCache segmentCache, ScriptFacetStatsService statsService,
+                                ScriptFacetMemoryTracker memoryTracker) {
+        this.definition = definition;
         this.scriptService = context.scriptService();
+        this.context = context;
         this.client = client;
-        this.scriptLang = scriptLang;
-        if (params == null) {
+        this.nativeFacets = nativeFacets;
+        this.threadPool = threadPool;
+        this.segmentCache = segmentCache;
+        this.statsService = statsService;
+        this.memoryTracker = memoryTracker;
+        memoryTracker.register(this);
+        if (definition.sample > 0 && definition.sample < 1) {
+            this.sampler = new ScriptFacetSampler(definition.sample, definition.sampleSeed);
+        }
+        if (definition.fields != null) {
+            this.fieldData = new IndexFieldData<?>[definition.fields.size()];
+            for (int i = 0; i < fieldData.length; i++) {
+                fieldData[i] = context.fieldData().getForField(context.smartNameFieldMapper(definition.fields.get(i)));
+            }
+        } else {
+            this.fieldData = null;
+        }
+        if (definition.params == null) {
             this.params = newHashMap();
         } else {
-            this.params = params;
+            this.params = definition.params;
         }
-        if (reduceParams == null) {
+        if (definition.reduceParams == null) {
           this.reduceParams = newHashMap();
         } else {
-          this.reduceParams = reduceParams;
+          this.reduceParams = definition.reduceParams;
         }
-        this.params.put("_ctx", context);
-        this.params.put("_client", client);
-        if (initScript != null) {
-            scriptService.executable(scriptLang, initScript, this.params).run();
+        if (threadPool != null || segmentCache != null) {
+            this.segmentParams = copyParams(this.params);
+        } else {
+            this.segmentParams = null;
+        }
+        if (definition.usesBulk()) {
+            this.bulk = new ScriptFacetBulk(client, definition.bulkActions, definition.bulkConcurrentRequests);
+        } else {
+            this.bulk = null;
+        }
+        this.compiledInitScript = compile(definition.initScript);
+        if (definition.mapOps == null && definition.nativeFacetName == null) {
+            this.compiledMapScript = compile(definition.mapBatchScript != null ? definition.mapBatchScript : definition.mapScript);
+        } else {
+            this.compiledMapScript = null;
         }
-        this.mapScript = scriptService.search(context.lookup(), scriptLang, mapScript, this.params);
-        if (combineScript != null) {
-            this.combineScript = scriptService.executable(scriptLang, combineScript, this.params);
+        this.compiledSegmentCombineScript = compile(definition.segmentCombineScript);
+        if (segmentCache != null) {
+            this.segmentDefinition = segmentDefinition();
+        } else {
+            this.segmentDefinition = null;
+        }
+        this.mapper = initMapPhase(this.params, context.lookup(), control);
+        mapper.profile(definition.profile);
+        if (threadPool != null && mapper instanceof ScriptFacetMapper.Native
+                && !(((ScriptFacetMapper.Native) mapper).facet() instanceof MergeableNativeScriptFacet)) {
+            throw new FacetPhaseExecutionException(null, "native script facet [" + definition.nativeFacetName + "] doesn't support parallel_segments");
+        }
+        if (definition.combineScript != null) {
+            this.combineScript = scriptService.executable(compile(definition.combineScript), this.params);
         } else {
             this.combineScript = null;
         }
-        this.reduceScript = reduceScript;
+    }
+
+    private CompiledScript compile(String script) {
+        if (script == null) {
+            return null;
+        }
+        return scriptService.compile(definition.scriptLang, script);
+    }
+
+    /**
+     * Runs the init phase on the given state and creates the map phase that accumulates into it
+     */
+    private ScriptFacetMapper initMapPhase(Map<String, Object> params, SearchLookup lookup, ScriptFacetControl control) {
+        params.put("_ctx", context);
+        params.put("_client", client);
+        if (bulk != null) {
+            params.put("_bulk", bulk);
+        }
+        params.put("_acc", memoryTracker.accumulators());
+        params.put("_control", control);
+        if (definition.nativeFacetName != null) {
+            long start = System.nanoTime();
+            ScriptFacetMapper mapper = new ScriptFacetMapper.Native(nativeFacets.get(definition.nativeFacetName).newFacet(params));
+            addInitNanos(System.nanoTime() - start);
+            mapper.control(control);
+            return mapper;
+        }
+        List<ScriptFacetMapOp> mapOps = definition.mapOps;
+        ScriptFacetColumn[] columns = null;
+        if (fieldData != null) {
+            columns = new ScriptFacetColumn[fieldData.length];
+            Map<String, ScriptFacetColumn> columnsMap = newHashMap();
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new ScriptFacetColumn(definition.fields.get(i), fieldData[i]);
+                columnsMap.put(definition.fields.get(i), columns[i]);
+            }
+            params.put("_columns", columnsMap);
+        }
+        Accumulator[] opAccumulators = null;
+        if (mapOps != null) {
+            opAccumulators = new Accumulator[mapOps.size()];
+            for (int i = 0; i < opAccumulators.length; i++) {
+                opAccumulators[i] = mapOps.get(i).newAccumulator();
+                params.put(mapOps.get(i).name(), opAccumulators[i]);
+            }
+        }
+        if (compiledInitScript != null) {
+            long start = System.nanoTime();
+            scriptService.executable(compiledInitScript, params).run();
+            addInitNanos(System.nanoTime() - start);
+        }
+        ScriptFacetMapper mapper;
+        if (mapOps != null) {
+            ScriptFacetColumn[] valueColumns = new ScriptFacetColumn[mapOps.size()];
+            ScriptFacetColumn[] keyColumns = new ScriptFacetColumn[mapOps.size()];
+            for (int i = 0; i < valueColumns.length; i++) {
+                valueColumns[i] = column(mapOps.get(i).field());
+                keyColumns[i] = column(mapOps.get(i).keyField());
+            }
+            mapper = new ScriptFacetMapper.Ops(mapOps.toArray(new ScriptFacetMapOp[mapOps.size()]), valueColumns, keyColumns,
+                    opAccumulators);
+        } else if (definition.mapBatchScript != null) {
+            mapper = new ScriptFacetMapper.Batch(scriptService.search(compiledMapScript, lookup, params), definition.batchSize);
+        } else {
+            mapper = new ScriptFacetMapper.Script(scriptService.search(compiledMapScript, lookup, params));
+        }
+        if (columns != null) {
+            mapper.columns(columns);
+        }
+        mapper.memory(memoryTracker.state(params));
+        mapper.control(control);
+        return mapper;
+    }
+
+    private ScriptFacetColumn column(String field) {
+        if (field == null) {
+            return null;
+        }
+        return new ScriptFacetColumn(field, context.fieldData().getForField(context.smartNameFieldMapper(field)));
+    }
+
+    private void addInitNanos(long nanos) {
+        synchronized (shardStats) {
+            shardStats.initNanos += nanos;
+        }
     }
 
     @Override
     public InternalFacet buildFacet(String facetName) {
+        try {
+            return buildShardFacet(facetName);
+        } catch (RuntimeException e) {
+            onFailure();
+            throw e;
+        } finally {
+            memoryTracker.release();
+        }
+    }
+
+    private InternalScriptFacet buildShardFacet(String facetName) {
+        if (definition.sample > 0) {
+            params.put("_sample_rate", InternalScriptFacet.sampleRate(matchedDocs, sampledDocs));
+        }
+        if (bulk != null) {
+            awaitBulk(facetName);
+        }
+        long start = System.nanoTime();
         Object facet;
-        if (combineScript != null) {
+        if (mapper instanceof ScriptFacetMapper.Native) {
+            facet = ((ScriptFacetMapper.Native) mapper).facet().combine();
+        } else if (combineScript != null) {
             facet = combineScript.run();
         } else {
             facet = params.get("facet");
         }
-        return new InternalScriptFacet(facetName, facet, scriptLang, reduceScript, reduceParams, scriptService, client);
+        long[] error = new long[1];
+        if (definition.shardSize > 0) {
+            facet = ScriptFacetTopK.trim(facet, definition.shardSize, error);
+        }
+        // pages of the result are released after it is written or reduced, the rest is released once the facet is built
+        memoryTracker.accumulators().detach(facet);
+        shardStats.shards = 1;
+        shardStats.combineNanos = System.nanoTime() - start;
+        shardStats.mapNanos += mapper.mapNanos();
+        shardStats.docs += mapper.docs();
+        shardStats.segments += mapper.segments();
+        statsService.onShard(shardStats);
+        InternalScriptFacet shardFacet = new InternalScriptFacet(facetName, facet, definition.scriptLang, definition.reduceScript,
+                definition.accumulateScript, reduceParams, definition.nativeFacetName, definition.size,
+                definition.profile ? shardStats : null, scriptService, statsService, client, nativeFacets);
+        if (definition.sample > 0) {
+            shardFacet.sample(matchedDocs, sampledDocs);
+        }
+        shardFacet.error(error[0]);
+        shardFacet.compressThreshold(definition.compressThreshold);
+        shardFacet.pagePool(memoryTracker.pagePool());
+        if (bulk != null && bulk.used()) {
+            shardFacet.bulk(bulk.succeeded(), bulk.failed());
+        }
+        return shardFacet;
+    }
+
+    /**
+     * Sends the requests buffered by <code>_bulk</code> and waits for all of them, so the combine phase
+     * sees the final counts
+     */
+    private void awaitBulk(String facetName) {
+        try {
+            if (!bulk.awaitClose(definition.bulkTimeout)) {
+                throw new FacetPhaseExecutionException(facetName, "bulk requests didn't complete within ["
+                        + definition.bulkTimeout + "]");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacetPhaseExecutionException(facetName, "interrupted while waiting for bulk requests", e);
+        }
+    }
+
+    /**
+     * Releases resources of the facet when the map or combine phase fails. The bulk processor is closed,
+     * so the requests that were already issued by scripts are still sent, and the accounted state is released.
+     */
+    void onFailure() {
+        if (bulk != null) {
+            bulk.close();
+        }
+        memoryTracker.release();
+    }
+
+    /**
+     * Returns true if all matching documents have to be recorded before the map phase can start
+     */
+    private boolean recordSegments() {
+        // the number of matching documents has to be known to sample a given number of them
+        return threadPool != null || segmentCache != null || definition.sample >= 1;
     }
 
     @Override
-    public Collector collector() {
+    public FacetExecutor.Collector collector() {
+        if (recordSegments()) {
+            return new SegmentsCollector();
+        }
         return new Collector();
     }
 
+    /**
+     * Runs the map phase on the matching documents once the query is done, reading them in batches
+     * without going through the collector
+     */
+    @Override
+    public Post post() {
+        return new Post() {
+            @Override
+            public void executePost(List<ContextDocIdSet> docSets) throws IOException {
+                try {
+                    collectSegments(docSets);
+                } catch (IOException e) {
+                    onFailure();
+                    throw e;
+                } catch (RuntimeException e) {
+                    onFailure();
+                    throw e;
+                }
+            }
+        };
+    }
+
     class Collector extends FacetExecutor.Collector {
 
+        private int docBase;
+
         @Override
         public void postCollection() {
+            try {
+                mapper.finish();
+            } catch (RuntimeException e) {
+                onFailure();
+                throw e;
+            }
         }
 
         @Override
         public void collect(int doc) throws IOException {
-            mapScript.setNextDocId(doc);
-            mapScript.run();
+            if (mapper.skip()) {
+                return;
+            }
+            if (sampler != null) {
+                matchedDocs++;
+                if (!sampler.accept(docBase + doc)) {
+                    return;
+                }
+                sampledDocs++;
+            }
+            try {
+                mapper.collect(doc);
+            } catch (IOException e) {
+                onFailure();
+                throw e;
+            } catch (RuntimeException e) {
+                onFailure();
+                throw e;
+            }
         }
 
         @Override
         public void setNextReader(AtomicReaderContext context) throws IOException {
-            mapScript.setNextReader(context);
+            docBase = context.docBase;
+            try {
+                mapper.setNextReader(context);
+            } catch (IOException e) {
+                onFailure();
+                throw e;
+            } catch (RuntimeException e) {
+                onFailure();
+                throw e;
+            }
         }
 
         @Override
         public void setScorer(Scorer scorer) throws IOException {
-            mapScript.setScorer(scorer);
+            mapper.setScorer(scorer);
+        }
+    }
+
+    /**
+     * Records matching documents of every segment and runs the map phase on all segments
+     * once the query is done
+     */
+    class SegmentsCollector extends FacetExecutor.Collector {
+
+        private final List<ContextDocIdSet> docSets = new ArrayList<ContextDocIdSet>();
+
+        private FixedBitSet current;
+
+        @Override
+        public void collect(int doc) throws IOException {
+            current.set(doc);
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            current = new FixedBitSet(context.reader().maxDoc());
+            docSets.add(new ContextDocIdSet(context, current));
+        }
+
+        @Override
+        public void postCollection() {
+            try {
+                collectSegments(docSets);
+            } catch (IOException e) {
+                onFailure();
+                throw new FacetPhaseExecutionException(null, "failed to collect segments", e);
+            } catch (RuntimeException e) {
+                onFailure();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Runs the map phase on recorded segments, reusing cached states of segments that were already mapped
+     * by the same facet, and merges states of all segments into the shard state
+     */
+    private void collectSegments(List<ContextDocIdSet> docSets) throws IOException {
+        if (docSets.isEmpty()) {
+            mapper.finish();
+            return;
+        }
+        if (definition.sample >= 1) {
+            docSets = initSampler(docSets);
+        }
+        if (threadPool == null && segmentCache == null) {
+            // only recorded to count matching documents, the state is shared by all segments
+            mapSegments(mapper, docSets);
+            mapper.finish();
+            return;
+        }
+        List<Object> partials = new ArrayList<Object>(docSets.size());
+        List<List<ContextDocIdSet>> groups;
+        List<ScriptFacetSegmentCache.Key> keys = null;
+        if (segmentCache != null) {
+            // every segment is mapped separately, so its state can be cached
+            groups = new ArrayList<List<ContextDocIdSet>>();
+            keys = new ArrayList<ScriptFacetSegmentCache.Key>();
+            for (ContextDocIdSet docSet : docSets) {
+                FixedBitSet docs = bits(docSet);
+                ScriptFacetSegmentCache.Key key = segmentCache.key(docSet.context.reader(), segmentDefinition, docs);
+                Object cached = key != null ? segmentCache.get(key) : null;
+                if (cached != null) {
+                    partials.add(cached);
+                } else {
+                    groups.add(Collections.singletonList(new ContextDocIdSet(docSet.context, docs)));
+                    keys.add(key);
+                }
+            }
+        } else {
+            groups = groupSegments(docSets, threadPool.parallelism());
+        }
+        List<ScriptFacetMapper> groupMappers = Collections.synchronizedList(new ArrayList<ScriptFacetMapper>());
+        List<Object> computed = mapGroups(groups, groupMappers);
+        // states of segments that weren't mapped completely are not cached, neither are paged accumulators
+        // that are released together with the facet
+        if (keys != null && !control.partial()) {
+            for (int i = 0; i < computed.size(); i++) {
+                if (keys.get(i) != null) {
+                    Map<String, Object> state = cacheableState(computed.get(i));
+                    if (!Accumulators.containsPaged(state)) {
+                        segmentCache.put(keys.get(i), groups.get(i).get(0).context.reader(), state);
+                    }
+                }
+            }
+        }
+        partials.addAll(computed);
+        mergePartials(partials);
+        // states of the groups are merged into the shard state now
+        for (ScriptFacetMapper groupMapper : groupMappers) {
+            groupMapper.releaseMemory();
+        }
+        mapper.checkMemory();
+    }
+
+    /**
+     * Creates the sampler that maps about <code>sample</code> documents out of all recorded matching documents
+     *
+     * @return recorded segments as bit sets
+     */
+    private List<ContextDocIdSet> initSampler(List<ContextDocIdSet> docSets) throws IOException {
+        List<ContextDocIdSet> bitSets = new ArrayList<ContextDocIdSet>(docSets.size());
+        long matching = 0;
+        for (ContextDocIdSet docSet : docSets) {
+            FixedBitSet docs = bits(docSet);
+            matching += docs.cardinality();
+            bitSets.add(new ContextDocIdSet(docSet.context, docs));
+        }
+        sampler = new ScriptFacetSampler(matching == 0 ? 1.0 : definition.sample / matching, definition.sampleSeed);
+        return bitSets;
+    }
+
+    /**
+     * Splits segments into groups of roughly equal size
+     */
+    private static List<List<ContextDocIdSet>> groupSegments(List<ContextDocIdSet> docSets, int parallelism) {
+        int groupCount = Math.min(docSets.size(), parallelism);
+        List<ContextDocIdSet> sorted = new ArrayList<ContextDocIdSet>(docSets);
+        Collections.sort(sorted, new Comparator<ContextDocIdSet>() {
+            @Override
+            public int compare(ContextDocIdSet o1, ContextDocIdSet o2) {
+                return o2.context.reader().maxDoc() - o1.context.reader().maxDoc();
+            }
+        });
+        List<List<ContextDocIdSet>> groups = new ArrayList<List<ContextDocIdSet>>(groupCount);
+        long[] groupSizes = new long[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups.add(new ArrayList<ContextDocIdSet>());
+        }
+        for (ContextDocIdSet docSet : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < groupCount; i++) {
+                if (groupSizes[i] < groupSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            groups.get(smallest).add(docSet);
+            groupSizes[smallest] += docSet.context.reader().maxDoc();
         }
+        return groups;
+    }
+
+    /**
+     * Runs every group with its own copy of the state, on the fork-join pool if parallel_segments is enabled
+     *
+     * @param groupMappers receives mappers of all groups
+     * @return states of the groups in the same order as groups
+     */
+    private List<Object> mapGroups(List<List<ContextDocIdSet>> groups, final List<ScriptFacetMapper> groupMappers) throws IOException {
+        List<Object> partials = new ArrayList<Object>(groups.size());
+        if (threadPool == null) {
+            for (List<ContextDocIdSet> group : groups) {
+                partials.add(collectGroup(group, groupMappers));
+            }
+            return partials;
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(groups.size());
+        for (final List<ContextDocIdSet> group : groups) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return collectGroup(group, groupMappers);
+                }
+            });
+        }
+        try {
+            for (Future<Object> future : threadPool.pool().invokeAll(tasks)) {
+                partials.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FacetPhaseExecutionException(null, "interrupted while collecting segments", e);
+        } catch (ExecutionException e) {
+            throw new FacetPhaseExecutionException(null, "failed to collect segments", e.getCause());
+        }
+        return partials;
+    }
+
+    /**
+     * Runs init and map phases for a group of segments with its own copy of params and its own lookup
+     *
+     * @return the native facet or the params map of the group
+     */
+    private Object collectGroup(List<ContextDocIdSet> group, List<ScriptFacetMapper> groupMappers) throws IOException {
+        Map<String, Object> groupParams = copyParams(segmentParams);
+        ScriptFacetMapper groupMapper = initMapPhase(groupParams, new SearchLookup(context.mapperService(), context.fieldData(), context.types()),
+                control.newGroup());
+        groupMappers.add(groupMapper);
+        long start = System.nanoTime();
+        mapSegments(groupMapper, group);
+        groupMapper.finish();
+        long mapNanos = System.nanoTime() - start;
+        synchronized (shardStats) {
+            shardStats.mapNanos += mapNanos;
+            shardStats.docs += groupMapper.docs();
+            shardStats.segments += groupMapper.segments();
+        }
+        if (groupMapper instanceof ScriptFacetMapper.Native) {
+            return ((ScriptFacetMapper.Native) groupMapper).facet();
+        }
+        return groupParams;
+    }
+
+    /**
+     * Passes recorded matching documents of the given segments to the mapper in batches, skipping documents
+     * that are not in the sample and segments after the map phase was terminated
+     */
+    private void mapSegments(ScriptFacetMapper segmentsMapper, List<ContextDocIdSet> docSets) throws IOException {
+        long matching = 0;
+        long sampled = 0;
+        int[] docs = new int[DOC_BATCH_SIZE];
+        for (ContextDocIdSet docSet : docSets) {
+            if (segmentsMapper.terminated()) {
+                break;
+            }
+            ScriptFacetDocBatches batches = ScriptFacetDocBatches.of(docSet);
+            if (batches == null) {
+                continue;
+            }
+            segmentsMapper.setNextReader(docSet.context);
+            int docBase = docSet.context.docBase;
+            int count;
+            segment:
+            while ((count = batches.next(docs)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    if (segmentsMapper.skip()) {
+                        break segment;
+                    }
+                    if (sampler != null) {
+                        matching++;
+                        if (!sampler.accept(docBase + docs[i])) {
+                            continue;
+                        }
+                        sampled++;
+                    }
+                    segmentsMapper.collect(docs[i]);
+                }
+            }
+        }
+        if (sampler != null) {
+            synchronized (this) {
+                matchedDocs += matching;
+                sampledDocs += sampled;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mergePartials(List<Object> partials) {
+        if (mapper instanceof ScriptFacetMapper.Native) {
+            MergeableNativeScriptFacet facet = (MergeableNativeScriptFacet) ((ScriptFacetMapper.Native) mapper).facet();
+            for (Object partial : partials) {
+                facet.merge((NativeScriptFacet) partial);
+            }
+        } else if (compiledSegmentCombineScript != null) {
+            params.put("_segments", partials);
+            scriptService.executable(compiledSegmentCombineScript, params).run();
+            params.remove("_segments");
+        } else {
+            // by default accumulators found in the group states are merged into the shard state, other variables
+            // can't be merged and have to be left as they were initialized
+            for (Object partial : partials) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) partial).entrySet()) {
+                    if (NON_STATE_VARS.contains(entry.getKey())) {
+                        continue;
+                    }
+                    Object current = params.get(entry.getKey());
+                    if (entry.getValue() instanceof Accumulator) {
+                        if (current instanceof Accumulator) {
+                            ((Accumulator) current).merge((Accumulator) entry.getValue());
+                        } else {
+                            params.put(entry.getKey(), entry.getValue());
+                        }
+                    } else if (!Arrays.deepEquals(new Object[]{current}, new Object[]{entry.getValue()})) {
+                        throw new FacetPhaseExecutionException(null, "state variable [" + entry.getKey() + "] of segments is not an accumulator "
+                                + "and cannot be merged, use accumulators of _acc or add a segment_combine_script");
+                    }
+                }
+            }
+        }
+    }
+
+    private static FixedBitSet bits(ContextDocIdSet docSet) throws IOException {
+        if (docSet.docSet instanceof FixedBitSet) {
+            return (FixedBitSet) docSet.docSet;
+        }
+        FixedBitSet bits = new FixedBitSet(docSet.context.reader().maxDoc());
+        if (docSet.docSet != null) {
+            DocIdSetIterator it = docSet.docSet.iterator();
+            if (it != null) {
+                bits.or(it);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * State of a segment without the variables that are added by the facet and the document lookup
+     */
+    private static Map<String, Object> cacheableState(Object partial) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> state = new HashMap<String, Object>((Map<String, Object>) partial);
+        for (String var : NON_STATE_VARS) {
+            state.remove(var);
+        }
+        return state;
+    }
+
+    /**
+     * Everything that determines the state produced by the map phase of a segment
+     */
+    private BytesReference segmentDefinition() {
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            out.writeOptionalString(definition.scriptLang);
+            out.writeOptionalString(definition.initScript);
+            out.writeOptionalString(definition.mapScript);
+            out.writeOptionalString(definition.mapBatchScript);
+            // file scripts are referred to by name, the compiled scripts tell different versions apart
+            writeScriptId(out, compiledInitScript);
+            writeScriptId(out, compiledMapScript);
+            out.writeVInt(definition.batchSize);
+            out.writeGenericValue(definition.fields);
+            if (definition.mapOps != null) {
+                out.writeVInt(definition.mapOps.size());
+                for (ScriptFacetMapOp mapOp : definition.mapOps) {
+                    mapOp.writeTo(out);
+                }
+            } else {
+                out.writeVInt(0);
+            }
+            out.writeMap(segmentParams);
+            return new HashedBytesArray(out.bytes().toBytes());
+        } catch (IOException e) {
+            throw new FacetPhaseExecutionException(null, "params of cacheable script facet cannot be serialized", e);
+        }
+    }
+
+    private void writeScriptId(BytesStreamOutput out, @Nullable CompiledScript script) throws IOException {
+        if (script == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeVLong(segmentCache.scriptId(script));
+        }
+    }
+
+    /**
+     * Deep copy of the request params, so every group of segments starts with the same state
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> copyParams(Map<String, Object> params) {
+        return (Map<String, Object>) ScriptFacetValues.copy(params);
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
+import org.elasticsearch.index.fielddata.BytesValues;
+import org.elasticsearch.index.fielddata.DoubleValues;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.LongValues;
+
+import java.util.Arrays;
+
+/**
+ * Typed accessor to the field data of a field listed in the <code>fields</code> element of the facet request.
+ * Values are loaded once per segment and read directly by doc id, without the field name lookup and boxing of
+ * <code>doc[field].value</code>. Methods without a doc id argument read the document that is currently
+ * being mapped. Single value methods return the first value of multi-valued fields, all values are returned
+ * by {@link #longValues()}, {@link #doubleValues()} and {@link #stringValues()}.
+ */
+public class ScriptFacetColumn {
+
+    private final String name;
+
+    private final IndexFieldData<?> indexFieldData;
+
+    private final boolean numeric;
+
+    private LongValues longValues;
+
+    private DoubleValues doubleValues;
+
+    private BytesValues bytesValues;
+
+    private int doc;
+
+    public ScriptFacetColumn(String name, IndexFieldData<?> indexFieldData) {
+        this.name = name;
+        this.indexFieldData = indexFieldData;
+        this.numeric = indexFieldData instanceof IndexNumericFieldData;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    void setNextReader(AtomicReaderContext context) {
+        AtomicFieldData<?> fieldData = indexFieldData.load(context);
+        if (numeric) {
+            longValues = ((AtomicNumericFieldData) fieldData).getLongValues();
+            doubleValues = ((AtomicNumericFieldData) fieldData).getDoubleValues();
+        }
+        bytesValues = fieldData.getBytesValues();
+    }
+
+    BytesValues bytesValues() {
+        return bytesValues;
+    }
+
+    void setNextDocId(int doc) {
+        this.doc = doc;
+    }
+
+    public boolean hasValue() {
+        return hasValue(doc);
+    }
+
+    public boolean hasValue(int doc) {
+        if (numeric) {
+            return longValues.hasValue(doc);
+        }
+        return bytesValues.hasValue(doc);
+    }
+
+    /**
+     * Value of a numeric field, <code>0</code> if the document has no value
+     */
+    public long longValue() {
+        return longValue(doc);
+    }
+
+    public long longValue(int doc) {
+        if (!numeric) {
+            throw notNumeric();
+        }
+        return longValues.getValueMissing(doc, 0);
+    }
+
+    /**
+     * Value of a numeric field, <code>0</code> if the document has no value
+     */
+    public double doubleValue() {
+        return doubleValue(doc);
+    }
+
+    public double doubleValue(int doc) {
+        if (!numeric) {
+            throw notNumeric();
+        }
+        return doubleValues.getValueMissing(doc, 0);
+    }
+
+    /**
+     * Value of the field as a string, <code>null</code> if the document has no value
+     */
+    public String stringValue() {
+        return stringValue(doc);
+    }
+
+    public String stringValue(int doc) {
+        if (!bytesValues.hasValue(doc)) {
+            return null;
+        }
+        return bytesValues.getValue(doc).utf8ToString();
+    }
+
+    /**
+     * Returns true if documents of the current segment can have more than one value
+     */
+    public boolean isMultiValued() {
+        return numeric ? longValues.isMultiValued() : bytesValues.isMultiValued();
+    }
+
+    /**
+     * Number of values of the document
+     */
+    public int valueCount() {
+        return valueCount(doc);
+    }
+
+    public int valueCount(int doc) {
+        if (!isMultiValued()) {
+            return hasValue(doc) ? 1 : 0;
+        }
+        int count = 0;
+        if (numeric) {
+            for (LongValues.Iter iter = longValues.getIter(doc); iter.hasNext(); iter.next()) {
+                count++;
+            }
+        } else {
+            for (BytesValues.Iter iter = bytesValues.getIter(doc); iter.hasNext(); iter.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * All values of a numeric field, an empty array if the document has no value
+     */
+    public long[] longValues() {
+        return longValues(doc);
+    }
+
+    public long[] longValues(int doc) {
+        if (!numeric) {
+            throw notNumeric();
+        }
+        long[] values = new long[isMultiValued() ? 4 : 1];
+        int count = 0;
+        for (LongValues.Iter iter = longValues.getIter(doc); iter.hasNext(); ) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = iter.next();
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * All values of a numeric field, an empty array if the document has no value
+     */
+    public double[] doubleValues() {
+        return doubleValues(doc);
+    }
+
+    public double[] doubleValues(int doc) {
+        if (!numeric) {
+            throw notNumeric();
+        }
+        double[] values = new double[isMultiValued() ? 4 : 1];
+        int count = 0;
+        for (DoubleValues.Iter iter = doubleValues.getIter(doc); iter.hasNext(); ) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = iter.next();
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * All values of the field as strings, an empty array if the document has no value
+     */
+    public String[] stringValues() {
+        return stringValues(doc);
+    }
+
+    public String[] stringValues(int doc) {
+        String[] values = new String[bytesValues.isMultiValued() ? 4 : 1];
+        int count = 0;
+        for (BytesValues.Iter iter = bytesValues.getIter(doc); iter.hasNext(); ) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = iter.next().utf8ToString();
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    private ElasticSearchIllegalArgumentException notNumeric() {
+        return new ElasticSearchIllegalArgumentException("field [" + name + "] is not numeric");
+    }
+}
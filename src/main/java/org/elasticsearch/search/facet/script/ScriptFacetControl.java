@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets scripts and native facets stop the map phase once the result is known. It is available
+ * as the <code>_control</code> variable.
+ * <p/>
+ * Documents that are skipped are still matched by the query, so hits are counted as usual, but they
+ * are no longer passed to the map phase. When the matching documents are recorded first (parallel_segments
+ * or sample), the remaining segments are not iterated at all.
+ */
+public class ScriptFacetControl {
+
+    // shared by all groups of segments of the shard
+    private final AtomicBoolean shardTerminated;
+
+    // set if any segment of the shard wasn't mapped completely
+    private final AtomicBoolean partial;
+
+    private boolean segmentTerminated;
+
+    ScriptFacetControl() {
+        this(new AtomicBoolean(), new AtomicBoolean());
+    }
+
+    private ScriptFacetControl(AtomicBoolean shardTerminated, AtomicBoolean partial) {
+        this.shardTerminated = shardTerminated;
+        this.partial = partial;
+    }
+
+    /**
+     * Skips all remaining documents of the shard
+     */
+    public void terminate() {
+        partial.set(true);
+        shardTerminated.set(true);
+    }
+
+    /**
+     * Skips remaining documents of the current segment
+     */
+    public void terminateSegment() {
+        partial.set(true);
+        segmentTerminated = true;
+    }
+
+    /**
+     * Returns true if the map phase of the shard was terminated
+     */
+    public boolean terminated() {
+        return shardTerminated.get();
+    }
+
+    /**
+     * Control of another group of segments of the same shard
+     */
+    ScriptFacetControl newGroup() {
+        return new ScriptFacetControl(shardTerminated, partial);
+    }
+
+    /**
+     * Returns true if documents of any segment of the shard were skipped
+     */
+    boolean partial() {
+        return partial.get();
+    }
+
+    boolean skip() {
+        return segmentTerminated || shardTerminated.get();
+    }
+
+    void nextSegment() {
+        segmentTerminated = false;
+    }
+}
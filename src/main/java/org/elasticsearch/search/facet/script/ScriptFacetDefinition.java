@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options of a script facet as parsed from the request, shared by the shard level collector and its result
+ */
+class ScriptFacetDefinition {
+
+    String scriptLang;
+
+    String initScript;
+
+    String mapScript;
+
+    String mapBatchScript;
+
+    int batchSize = ScriptFacetParser.DEFAULT_BATCH_SIZE;
+
+    List<ScriptFacetMapOp> mapOps;
+
+    List<String> fields;
+
+    String combineScript;
+
+    String segmentCombineScript;
+
+    String reduceScript;
+
+    String accumulateScript;
+
+    // initial parameters for same shard scripts {init, map, combine}
+    Map<String, Object> params;
+
+    // initial parameters for {reduce}
+    Map<String, Object> reduceParams;
+
+    String nativeFacetName;
+
+    boolean parallelSegments;
+
+    boolean cacheable;
+
+    boolean profile;
+
+    // fraction of matching documents if below 1, maximum number of documents per shard otherwise, 0 if not sampled
+    double sample;
+
+    long sampleSeed;
+
+    // number of entries the reduced result is trimmed to and the number of entries every shard returns, 0 if not trimmed
+    int size;
+
+    int shardSize;
+
+    // serialized shard results of at least this many bytes are compressed, -1 to never compress
+    long compressThreshold;
+
+    int bulkActions;
+
+    int bulkConcurrentRequests;
+
+    TimeValue bulkTimeout;
+
+    /**
+     * Returns true if the <code>_bulk</code> helper has to be passed to the facet. Native facets always get it,
+     * scripts only if they refer to it.
+     */
+    boolean usesBulk() {
+        return nativeFacetName != null || refersTo(initScript, "_bulk") || refersTo(mapScript, "_bulk")
+                || refersTo(mapBatchScript, "_bulk") || refersTo(combineScript, "_bulk") || refersTo(segmentCombineScript, "_bulk");
+    }
+
+    private static boolean refersTo(String script, String variable) {
+        return script != null && script.contains(variable);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+
+/**
+ * Node level cache of parsed reduce definitions keyed by their serialized form. Every shard result carries the
+ * definition of its facet, and the reducing node parses every definition only once and shares it between the
+ * results of all requests that use it. The size of the cache is controlled by <code>facet.script.cache.max_size</code>.
+ */
+public class ScriptFacetDefinitionCache extends AbstractComponent {
+
+    private final Cache<BytesReference, InternalScriptFacet.ReduceDefinition> cache;
+
+    @Inject
+    public ScriptFacetDefinitionCache(Settings settings) {
+        super(settings);
+        this.cache = CacheBuilder.newBuilder().maximumSize(settings.getAsInt("facet.script.cache.max_size", 100)).build();
+    }
+
+    /**
+     * Returns the definition that was sent serialized, parsing it only if it isn't cached yet
+     *
+     * @param bytes serialized definition, has to implement hashCode and equals by content
+     */
+    InternalScriptFacet.ReduceDefinition read(BytesReference bytes) throws IOException {
+        InternalScriptFacet.ReduceDefinition definition = cache.getIfPresent(bytes);
+        if (definition == null) {
+            definition = InternalScriptFacet.ReduceDefinition.readFrom(bytes);
+            cache.put(bytes, definition);
+        }
+        return definition;
+    }
+}
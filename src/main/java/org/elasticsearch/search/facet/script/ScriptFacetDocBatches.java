@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.lucene.docset.AllDocIdSet;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+
+import java.io.IOException;
+
+/**
+ * Reads the matching documents of a segment in batches of document ids once the query is done. Bit sets are read
+ * word by word, and the sets of all live documents that are passed to global facets are read straight from the live
+ * documents of the segment, so only other doc id sets are read through their iterator.
+ */
+abstract class ScriptFacetDocBatches {
+
+    /**
+     * Reads the next documents in increasing order into the buffer
+     *
+     * @return the number of documents read, 0 if there are no more documents
+     */
+    abstract int next(int[] docs) throws IOException;
+
+    /**
+     * @return batches of the documents in the set or null if there are no matching documents
+     */
+    static ScriptFacetDocBatches of(ContextDocIdSet docSet) throws IOException {
+        DocIdSet set = docSet.docSet;
+        if (set == null) {
+            return null;
+        }
+        int maxDoc = docSet.context.reader().maxDoc();
+        if (set instanceof AllDocIdSet) {
+            return new Bitset(null, maxDoc);
+        }
+        if (set instanceof FixedBitSet) {
+            return new Bitset(((FixedBitSet) set).getBits(), maxDoc);
+        }
+        if (set instanceof BitsFilteredDocIdSet) {
+            // all documents filtered by live documents in case of global facets
+            Bits bits = set.bits();
+            if (bits != null) {
+                return new RandomAccess(bits, maxDoc);
+            }
+        }
+        DocIdSetIterator it = set.iterator();
+        if (it == null) {
+            return null;
+        }
+        return new Iterator(it);
+    }
+
+    /**
+     * Documents of a bit set, all documents if there are no bits
+     */
+    static class Bitset extends ScriptFacetDocBatches {
+
+        private final long[] bits;
+
+        private final int maxDoc;
+
+        private int word = -1;
+
+        private long remaining;
+
+        private int doc;
+
+        Bitset(long[] bits, int maxDoc) {
+            this.bits = bits;
+            this.maxDoc = maxDoc;
+        }
+
+        @Override
+        int next(int[] docs) {
+            if (bits == null) {
+                int count = Math.min(docs.length, maxDoc - doc);
+                for (int i = 0; i < count; i++) {
+                    docs[i] = doc++;
+                }
+                return count;
+            }
+            int count = 0;
+            while (count < docs.length) {
+                while (remaining == 0) {
+                    if (++word >= bits.length) {
+                        return count;
+                    }
+                    remaining = bits[word];
+                }
+                docs[count++] = (word << 6) + Long.numberOfTrailingZeros(remaining);
+                // clears the lowest set bit
+                remaining &= remaining - 1;
+            }
+            return count;
+        }
+    }
+
+    static class RandomAccess extends ScriptFacetDocBatches {
+
+        private final Bits bits;
+
+        private final int maxDoc;
+
+        private int doc;
+
+        RandomAccess(Bits bits, int maxDoc) {
+            this.bits = bits;
+            this.maxDoc = maxDoc;
+        }
+
+        @Override
+        int next(int[] docs) {
+            int count = 0;
+            while (count < docs.length && doc < maxDoc) {
+                if (bits.get(doc)) {
+                    docs[count++] = doc;
+                }
+                doc++;
+            }
+            return count;
+        }
+    }
+
+    static class Iterator extends ScriptFacetDocBatches {
+
+        private final DocIdSetIterator it;
+
+        Iterator(DocIdSetIterator it) {
+            this.it = it;
+        }
+
+        @Override
+        int next(int[] docs) throws IOException {
+            int count = 0;
+            int doc;
+            while (count < docs.length && (doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                docs[count++] = doc;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.common.lucene.docset.ContextDocIdSet;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayListWithCapacity;
+
+/**
+ * Runs several script facets that share the query of the request in a single pass over the matching documents.
+ * Every document is passed to all facets before the next one is read. In the post mode the matching documents are
+ * therefore read once for the whole group, and the <code>_source</code> lookup of the search context loads the source
+ * of a document only once. The facets share no columns or other per-document setup.
+ */
+public class ScriptFacetGroupCollector extends FacetExecutor {
+
+    private final String[] names;
+
+    private final ScriptFacetCollector[] executors;
+
+    public ScriptFacetGroupCollector(Map<String, ScriptFacetCollector> executors) {
+        this.names = executors.keySet().toArray(new String[executors.size()]);
+        this.executors = executors.values().toArray(new ScriptFacetCollector[executors.size()]);
+    }
+
+    @Override
+    public InternalFacet buildFacet(String facetName) {
+        List<InternalScriptFacet> facets = newArrayListWithCapacity(executors.length);
+        try {
+            for (int i = 0; i < executors.length; i++) {
+                facets.add((InternalScriptFacet) executors[i].buildFacet(names[i]));
+            }
+        } catch (RuntimeException e) {
+            onFailure(executors);
+            throw e;
+        }
+        return new InternalScriptFacetGroup(facetName, facets);
+    }
+
+    @Override
+    public FacetExecutor.Collector collector() {
+        FacetExecutor.Collector[] collectors = new FacetExecutor.Collector[executors.length];
+        for (int i = 0; i < collectors.length; i++) {
+            collectors[i] = executors[i].collector();
+        }
+        return new Collector(collectors, executors);
+    }
+
+    /**
+     * Releases resources of all facets of the group once any of them fails
+     */
+    static void onFailure(ScriptFacetCollector[] executors) {
+        for (ScriptFacetCollector executor : executors) {
+            executor.onFailure();
+        }
+    }
+
+    /**
+     * Reads the matching documents in batches and passes every document to all facets
+     */
+    @Override
+    public Post post() {
+        return new Post() {
+            @Override
+            public void executePost(List<ContextDocIdSet> docSets) throws IOException {
+                FacetExecutor.Collector collector = collector();
+                int[] docs = new int[ScriptFacetCollector.DOC_BATCH_SIZE];
+                for (ContextDocIdSet docSet : docSets) {
+                    ScriptFacetDocBatches batches = ScriptFacetDocBatches.of(docSet);
+                    if (batches == null) {
+                        continue;
+                    }
+                    collector.setNextReader(docSet.context);
+                    int count;
+                    while ((count = batches.next(docs)) > 0) {
+                        for (int i = 0; i < count; i++) {
+                            collector.collect(docs[i]);
+                        }
+                    }
+                }
+                collector.postCollection();
+            }
+        };
+    }
+
+    static class Collector extends FacetExecutor.Collector {
+
+        private final FacetExecutor.Collector[] collectors;
+
+        private final ScriptFacetCollector[] executors;
+
+        Collector(FacetExecutor.Collector[] collectors, ScriptFacetCollector[] executors) {
+            this.collectors = collectors;
+            this.executors = executors;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            try {
+                for (FacetExecutor.Collector collector : collectors) {
+                    collector.collect(doc);
+                }
+            } catch (IOException e) {
+                onFailure(executors);
+                throw e;
+            } catch (RuntimeException e) {
+                onFailure(executors);
+                throw e;
+            }
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            try {
+                for (FacetExecutor.Collector collector : collectors) {
+                    collector.setNextReader(context);
+                }
+            } catch (IOException e) {
+                onFailure(executors);
+                throw e;
+            } catch (RuntimeException e) {
+                onFailure(executors);
+                throw e;
+            }
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            for (FacetExecutor.Collector collector : collectors) {
+                collector.setScorer(scorer);
+            }
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            for (FacetExecutor.Collector collector : collectors) {
+                if (!collector.acceptsDocsOutOfOrder()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void postCollection() {
+            try {
+                for (FacetExecutor.Collector collector : collectors) {
+                    collector.postCollection();
+                }
+            } catch (RuntimeException e) {
+                onFailure(executors);
+                throw e;
+            }
+        }
+    }
+}
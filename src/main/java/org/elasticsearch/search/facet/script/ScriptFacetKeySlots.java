@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.index.fielddata.BytesValues;
+import org.elasticsearch.index.fielddata.ordinals.Ordinals;
+
+/**
+ * Maps the key of a document to a slot that is dense within the current segment, so map operations can aggregate
+ * values per slot and convert each key to a string only once per segment. Slots are based on the ordinals of the keys
+ * if the field data has ordinals, otherwise on a hash of the key bytes seen in the segment.
+ */
+class ScriptFacetKeySlots {
+
+    private final ScriptFacetColumn column;
+
+    private final BytesRefHash hash = new BytesRefHash();
+
+    private final BytesRef spare = new BytesRef();
+
+    private BytesValues values;
+
+    private BytesValues.WithOrdinals ordinalValues;
+
+    private Ordinals.Docs ordinals;
+
+    ScriptFacetKeySlots(ScriptFacetColumn column) {
+        this.column = column;
+    }
+
+    /**
+     * Called after the column moved to the next segment, slots of the previous segment are no longer valid after that
+     */
+    void setNextReader() {
+        values = column.bytesValues();
+        if (values instanceof BytesValues.WithOrdinals) {
+            ordinalValues = (BytesValues.WithOrdinals) values;
+            ordinals = ordinalValues.ordinals();
+        } else {
+            ordinalValues = null;
+            ordinals = null;
+        }
+        if (hash.size() > 0) {
+            hash.clear();
+            hash.reinit();
+        }
+    }
+
+    /**
+     * Slot of the key of the document, <code>-1</code> if the document has no key
+     */
+    int slot(int doc) {
+        if (ordinals != null) {
+            // ordinal 0 stands for a missing value
+            return (int) ordinals.getOrd(doc) - 1;
+        }
+        if (!values.hasValue(doc)) {
+            return -1;
+        }
+        int id = hash.add(values.getValue(doc));
+        return id < 0 ? -id - 1 : id;
+    }
+
+    /**
+     * Number of slots in the current segment, all slots returned so far are below it
+     */
+    int slots() {
+        if (ordinals != null) {
+            return (int) ordinals.getMaxOrd() - 1;
+        }
+        return hash.size();
+    }
+
+    String key(int slot) {
+        if (ordinals != null) {
+            return ordinalValues.getValueByOrd(slot + 1).utf8ToString();
+        }
+        return hash.get(slot, spare).utf8ToString();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchIllegalStateException;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.core.NumberFieldMapper;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
+import org.elasticsearch.search.facet.script.accumulator.Accumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StatsAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringStatsMapAccumulator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Built-in operation of the <code>map</code> element that is executed over field data without a map script.
+ * The result of the operation is stored in an accumulator in the params under the name of the operation.
+ */
+public class ScriptFacetMapOp {
+
+    public static final String DEFAULT_NAME = "facet";
+
+    public static enum Type {
+        /**
+         * Number of documents (with a value in <code>field</code> if specified) per key
+         */
+        COUNT,
+        /**
+         * Count, sum, min and max of the values of <code>field</code>, optionally per key
+         */
+        STATS,
+        /**
+         * Number of values of <code>field</code> per bucket of width <code>interval</code>
+         */
+        HISTOGRAM
+    }
+
+    private final String name;
+
+    private final Type type;
+
+    private final String field;
+
+    private final String keyField;
+
+    private final long interval;
+
+    public ScriptFacetMapOp(String name, Type type, String field, String keyField, long interval) {
+        this.name = name;
+        this.type = type;
+        this.field = field;
+        this.keyField = keyField;
+        this.interval = interval;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public String keyField() {
+        return keyField;
+    }
+
+    public long interval() {
+        return interval;
+    }
+
+    /**
+     * Creates an empty accumulator for the result of the operation
+     */
+    public Accumulator newAccumulator() {
+        switch (type) {
+            case COUNT:
+                return new StringLongMapAccumulator();
+            case STATS:
+                return keyField == null ? new StatsAccumulator() : new StringStatsMapAccumulator();
+            case HISTOGRAM:
+                return new LongLongMapAccumulator();
+            default:
+                throw new ElasticSearchIllegalStateException("unknown map operation [" + type + "]");
+        }
+    }
+
+    void writeTo(StreamOutput out) throws IOException {
+        out.writeString(name);
+        out.writeVInt(type.ordinal());
+        out.writeOptionalString(field);
+        out.writeOptionalString(keyField);
+        out.writeVLong(interval);
+    }
+
+    /**
+     * Parses and validates a single operation of the <code>map</code> element
+     */
+    public static ScriptFacetMapOp parse(String facetName, Map<String, Object> definition, SearchContext context) {
+        String name = XContentMapValues.nodeStringValue(definition.get("name"), DEFAULT_NAME);
+        String op = XContentMapValues.nodeStringValue(definition.get("op"), null);
+        String field = XContentMapValues.nodeStringValue(definition.get("field"), null);
+        String keyField = XContentMapValues.nodeStringValue(definition.get("key_field"),
+                XContentMapValues.nodeStringValue(definition.get("keyField"), null));
+        long interval = XContentMapValues.nodeLongValue(definition.get("interval"), 0);
+        if (op == null) {
+            throw new FacetPhaseExecutionException(facetName, "op is required in map operation [" + name + "]");
+        }
+        Type type;
+        if ("count".equals(op)) {
+            type = Type.COUNT;
+        } else if ("stats".equals(op)) {
+            type = Type.STATS;
+        } else if ("histogram".equals(op)) {
+            type = Type.HISTOGRAM;
+        } else {
+            throw new FacetPhaseExecutionException(facetName, "unknown op [" + op + "] in map operation [" + name + "]");
+        }
+        if (type == Type.COUNT && keyField == null) {
+            throw new FacetPhaseExecutionException(facetName, "key_field is required by count in map operation [" + name + "]");
+        }
+        if (type != Type.COUNT && field == null) {
+            throw new FacetPhaseExecutionException(facetName, "field is required by " + op + " in map operation [" + name + "]");
+        }
+        if (type == Type.HISTOGRAM) {
+            if (interval <= 0) {
+                throw new FacetPhaseExecutionException(facetName, "positive interval is required by histogram in map operation [" + name + "]");
+            }
+            if (keyField != null) {
+                throw new FacetPhaseExecutionException(facetName, "key_field is not supported by histogram in map operation [" + name + "]");
+            }
+        }
+        if (field != null) {
+            FieldMapper<?> fieldMapper = context.smartNameFieldMapper(field);
+            if (fieldMapper == null) {
+                throw new FacetPhaseExecutionException(facetName, "No mapping found for field [" + field + "]");
+            }
+            if (type != Type.COUNT && !(fieldMapper instanceof NumberFieldMapper)) {
+                throw new FacetPhaseExecutionException(facetName, "field [" + field + "] of " + op + " in map operation ["
+                        + name + "] is not numeric");
+            }
+        }
+        if (keyField != null && context.smartNameFieldMapper(keyField) == null) {
+            throw new FacetPhaseExecutionException(facetName, "No mapping found for field [" + keyField + "]");
+        }
+        return new ScriptFacetMapOp(name, type, field, keyField, interval);
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.facet.script.accumulator.Accumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StatsAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringStatsMapAccumulator;
+
+import java.io.IOException;
+
+/**
+ * Map phase of a script facet. Receives documents of a shard segment by segment and accumulates them
+ * into the state of the facet.
+ */
+abstract class ScriptFacetMapper {
+
+    private static final ScriptFacetColumn[] NO_COLUMNS = new ScriptFacetColumn[0];
+
+    // unless the facet is profiled only one document in this many is timed and the time is scaled up,
+    // so the map time is always reported without timing every document
+    static final int TIMING_SAMPLE = 64;
+
+    private ScriptFacetColumn[] columns = NO_COLUMNS;
+
+    private boolean profile;
+
+    private long docs;
+
+    private long segments;
+
+    private long mapNanos;
+
+    // time spent in work that covers many documents at once, such as running a full batch, always measured
+    private long flushNanos;
+
+    private ScriptFacetMemoryTracker.State memory;
+
+    private ScriptFacetControl control;
+
+    /**
+     * Sets the columns that follow the segment and the document of the mapper
+     */
+    void columns(ScriptFacetColumn[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Enables measuring of the time spent in every call of the mapper, otherwise the time spent collecting
+     * documents is extrapolated from one document in {@link #TIMING_SAMPLE}
+     */
+    void profile(boolean profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Sets the memory accounting of the state the mapper accumulates into
+     */
+    void memory(ScriptFacetMemoryTracker.State memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Sets the control that scripts use to terminate the map phase
+     */
+    void control(ScriptFacetControl control) {
+        this.control = control;
+    }
+
+    /**
+     * Returns true if the remaining documents of the current segment should not be collected
+     */
+    boolean skip() {
+        return control != null && control.skip();
+    }
+
+    /**
+     * Returns true if the remaining documents of the shard should not be collected
+     */
+    boolean terminated() {
+        return control != null && control.terminated();
+    }
+
+    void checkMemory() {
+        if (memory != null) {
+            memory.check();
+        }
+    }
+
+    void releaseMemory() {
+        if (memory != null) {
+            memory.release();
+        }
+    }
+
+    long docs() {
+        return docs;
+    }
+
+    long segments() {
+        return segments;
+    }
+
+    long mapNanos() {
+        return mapNanos;
+    }
+
+    final void setNextReader(AtomicReaderContext context) throws IOException {
+        segments++;
+        long start = System.nanoTime();
+        finishSegment();
+        checkMemory();
+        if (control != null) {
+            control.nextSegment();
+        }
+        for (ScriptFacetColumn column : columns) {
+            column.setNextReader(context);
+        }
+        doSetNextReader(context);
+        mapNanos += System.nanoTime() - start;
+    }
+
+    final void collect(int doc) throws IOException {
+        long flushed = flushNanos;
+        if (profile) {
+            long start = System.nanoTime();
+            collectWithColumns(doc);
+            mapNanos += System.nanoTime() - start;
+        } else {
+            if (docs % TIMING_SAMPLE == 0) {
+                long start = System.nanoTime();
+                collectWithColumns(doc);
+                // a flush triggered by this document is counted once below, not scaled
+                mapNanos += (System.nanoTime() - start - (flushNanos - flushed)) * TIMING_SAMPLE;
+            } else {
+                collectWithColumns(doc);
+            }
+            mapNanos += flushNanos - flushed;
+        }
+        docs++;
+        if (memory != null) {
+            memory.onDoc();
+        }
+    }
+
+    /**
+     * Called once after the last document is collected
+     */
+    final void finish() {
+        long start = System.nanoTime();
+        doFinish();
+        checkMemory();
+        mapNanos += System.nanoTime() - start;
+    }
+
+    private void collectWithColumns(int doc) throws IOException {
+        for (ScriptFacetColumn column : columns) {
+            column.setNextDocId(doc);
+        }
+        doCollect(doc);
+    }
+
+    /**
+     * Records the time of work that {@link #doCollect} did for many documents at once, which is counted in full
+     * rather than extrapolated from the sampled documents
+     */
+    final void addFlushNanos(long nanos) {
+        flushNanos += nanos;
+    }
+
+    /**
+     * Called before the mapper and its columns move to the next segment
+     */
+    void finishSegment() {
+    }
+
+    abstract void doSetNextReader(AtomicReaderContext context) throws IOException;
+
+    abstract void setScorer(Scorer scorer) throws IOException;
+
+    abstract void doCollect(int doc) throws IOException;
+
+    abstract void doFinish();
+
+    /**
+     * Runs map_script once per document
+     */
+    static class Script extends ScriptFacetMapper {
+
+        private final SearchScript mapScript;
+
+        Script(SearchScript mapScript) {
+            this.mapScript = mapScript;
+        }
+
+        @Override
+        void doSetNextReader(AtomicReaderContext context) throws IOException {
+            mapScript.setNextReader(context);
+        }
+
+        @Override
+        void setScorer(Scorer scorer) throws IOException {
+            mapScript.setScorer(scorer);
+        }
+
+        @Override
+        void doCollect(int doc) throws IOException {
+            mapScript.setNextDocId(doc);
+            mapScript.run();
+        }
+
+        @Override
+        void doFinish() {
+        }
+    }
+
+    /**
+     * Buffers doc ids of the current segment and calls map_batch_script once per full batch
+     */
+    static class Batch extends ScriptFacetMapper {
+
+        private final SearchScript mapBatchScript;
+
+        private final ScriptFacetBatch batch;
+
+        Batch(SearchScript mapBatchScript, int batchSize) {
+            this.mapBatchScript = mapBatchScript;
+            this.batch = new ScriptFacetBatch(mapBatchScript, batchSize);
+            mapBatchScript.setNextVar("_batch", batch);
+        }
+
+        @Override
+        void finishSegment() {
+            // the pending batch belongs to the previous segment
+            flush();
+        }
+
+        @Override
+        void doSetNextReader(AtomicReaderContext context) throws IOException {
+            mapBatchScript.setNextReader(context);
+        }
+
+        @Override
+        void setScorer(Scorer scorer) throws IOException {
+            mapBatchScript.setScorer(scorer);
+        }
+
+        @Override
+        void doCollect(int doc) throws IOException {
+            if (batch.add(doc)) {
+                long start = System.nanoTime();
+                flush();
+                addFlushNanos(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        void doFinish() {
+            flush();
+        }
+
+        private void flush() {
+            if (!batch.isEmpty()) {
+                mapBatchScript.run();
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Calls the native facet directly, bypassing the script service
+     */
+    static class Native extends ScriptFacetMapper {
+
+        private final NativeScriptFacet facet;
+
+        Native(NativeScriptFacet facet) {
+            this.facet = facet;
+        }
+
+        NativeScriptFacet facet() {
+            return facet;
+        }
+
+        @Override
+        void doSetNextReader(AtomicReaderContext context) throws IOException {
+            facet.setNextReader(context);
+        }
+
+        @Override
+        void setScorer(Scorer scorer) throws IOException {
+            facet.setScorer(scorer);
+        }
+
+        @Override
+        void doCollect(int doc) throws IOException {
+            facet.collect(doc);
+        }
+
+        @Override
+        void doFinish() {
+        }
+    }
+
+    /**
+     * Executes built-in map operations directly over field data. Values of keyed operations are aggregated
+     * per key slot of the segment and added to the accumulators by key when the segment is done.
+     */
+    static class Ops extends ScriptFacetMapper {
+
+        private final ScriptFacetMapOp[] ops;
+
+        private final ScriptFacetColumn[] valueColumns;
+
+        private final ScriptFacetColumn[] keyColumns;
+
+        private final ScriptFacetKeySlots[] keySlots;
+
+        private final Accumulator[] accumulators;
+
+        // counts and statistics of the current segment per key slot
+        private final long[][] counts;
+
+        private final StatsAccumulator[][] stats;
+
+        Ops(ScriptFacetMapOp[] ops, ScriptFacetColumn[] valueColumns, ScriptFacetColumn[] keyColumns, Accumulator[] accumulators) {
+            this.ops = ops;
+            this.valueColumns = valueColumns;
+            this.keyColumns = keyColumns;
+            this.accumulators = accumulators;
+            this.keySlots = new ScriptFacetKeySlots[ops.length];
+            this.counts = new long[ops.length][];
+            this.stats = new StatsAccumulator[ops.length][];
+            for (int i = 0; i < ops.length; i++) {
+                if (keyColumns[i] != null) {
+                    keySlots[i] = new ScriptFacetKeySlots(keyColumns[i]);
+                    if (ops[i].type() == ScriptFacetMapOp.Type.COUNT) {
+                        counts[i] = new long[0];
+                    } else {
+                        stats[i] = new StatsAccumulator[0];
+                    }
+                }
+            }
+        }
+
+        @Override
+        void finishSegment() {
+            flush();
+        }
+
+        @Override
+        void doSetNextReader(AtomicReaderContext context) throws IOException {
+            for (int i = 0; i < ops.length; i++) {
+                if (valueColumns[i] != null) {
+                    valueColumns[i].setNextReader(context);
+                }
+                if (keyColumns[i] != null) {
+                    keyColumns[i].setNextReader(context);
+                    keySlots[i].setNextReader();
+                }
+            }
+        }
+
+        @Override
+        void setScorer(Scorer scorer) throws IOException {
+        }
+
+        @Override
+        void doCollect(int doc) throws IOException {
+            for (int i = 0; i < ops.length; i++) {
+                ScriptFacetColumn values = valueColumns[i];
+                if (values != null && !values.hasValue(doc)) {
+                    continue;
+                }
+                int slot = -1;
+                if (keySlots[i] != null) {
+                    slot = keySlots[i].slot(doc);
+                    if (slot < 0) {
+                        continue;
+                    }
+                }
+                switch (ops[i].type()) {
+                    case COUNT:
+                        if (slot >= counts[i].length) {
+                            counts[i] = ArrayUtil.grow(counts[i], slot + 1);
+                        }
+                        counts[i][slot]++;
+                        break;
+                    case STATS:
+                        StatsAccumulator target;
+                        if (slot < 0) {
+                            target = (StatsAccumulator) accumulators[i];
+                        } else {
+                            if (slot >= stats[i].length) {
+                                stats[i] = grow(stats[i], slot + 1);
+                            }
+                            if (stats[i][slot] == null) {
+                                stats[i][slot] = new StatsAccumulator();
+                            }
+                            target = stats[i][slot];
+                        }
+                        if (values.isMultiValued()) {
+                            for (double value : values.doubleValues(doc)) {
+                                target.add(value);
+                            }
+                        } else {
+                            target.add(values.doubleValue(doc));
+                        }
+                        break;
+                    case HISTOGRAM:
+                        LongLongMapAccumulator histogram = (LongLongMapAccumulator) accumulators[i];
+                        long interval = ops[i].interval();
+                        if (values.isMultiValued()) {
+                            for (double value : values.doubleValues(doc)) {
+                                histogram.inc((long) Math.floor(value / interval) * interval);
+                            }
+                        } else {
+                            histogram.inc((long) Math.floor(values.doubleValue(doc) / interval) * interval);
+                        }
+                        break;
+                }
+            }
+        }
+
+        @Override
+        void doFinish() {
+            flush();
+        }
+
+        /**
+         * Adds the values aggregated per key slot in the current segment to the accumulators, converting every key
+         * to a string once
+         */
+        private void flush() {
+            for (int i = 0; i < ops.length; i++) {
+                if (keySlots[i] == null) {
+                    continue;
+                }
+                int slots = keySlots[i].slots();
+                if (counts[i] != null) {
+                    long[] slotCounts = counts[i];
+                    StringLongMapAccumulator accumulator = (StringLongMapAccumulator) accumulators[i];
+                    for (int slot = 0; slot < slots && slot < slotCounts.length; slot++) {
+                        if (slotCounts[slot] != 0) {
+                            accumulator.add(keySlots[i].key(slot), slotCounts[slot]);
+                            slotCounts[slot] = 0;
+                        }
+                    }
+                } else {
+                    StatsAccumulator[] slotStats = stats[i];
+                    StringStatsMapAccumulator accumulator = (StringStatsMapAccumulator) accumulators[i];
+                    for (int slot = 0; slot < slots && slot < slotStats.length; slot++) {
+                        if (slotStats[slot] != null) {
+                            accumulator.merge(keySlots[i].key(slot), slotStats[slot]);
+                            slotStats[slot] = null;
+                        }
+                    }
+                }
+            }
+        }
+
+        private static StatsAccumulator[] grow(StatsAccumulator[] array, int minSize) {
+            StatsAccumulator[] grown = new StatsAccumulator[ArrayUtil.oversize(minSize, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+}
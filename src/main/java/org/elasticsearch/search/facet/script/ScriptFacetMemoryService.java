@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.elasticsearch.search.facet.script.accumulator.PagePool;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node level memory budget of the state accumulated by the map phase of script facets.
+ * <p/>
+ * The estimated state of every running facet is limited by <code>facet.script.memory.facet_limit</code> (10% of the heap
+ * by default, can be overridden by the <code>memory_limit</code> option of the facet) and the total of all facets running
+ * on the node is limited by <code>facet.script.memory.node_limit</code> (30% of the heap by default). The state is
+ * estimated every <code>facet.script.memory.check_interval</code> documents and at segment boundaries.
+ * <p/>
+ * Paged accumulators keep their values in pages of direct memory from the node's {@link PagePool}. Pages held by
+ * accumulators count against the node limit and can't exceed <code>facet.script.memory.paged_limit</code> (20% of the heap
+ * by default), up to <code>facet.script.memory.page_pool_size</code> (64mb by default) of released pages are kept for reuse.
+ * <p/>
+ * Facets release what they accounted once they are built or fail. Facets that are dropped without either (for example
+ * when another facet of the request fails) are released after they are garbage collected.
+ */
+public class ScriptFacetMemoryService extends AbstractComponent {
+
+    private final long nodeLimit;
+
+    private final long facetLimit;
+
+    private final int checkInterval;
+
+    private final PagePool pagePool;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final CounterMetric limitBreaks = new CounterMetric();
+
+    private final CounterMetric approximations = new CounterMetric();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private final Set<TrackerReference> references = ConcurrentCollections.newConcurrentSet();
+
+    @Inject
+    public ScriptFacetMemoryService(Settings settings) {
+        super(settings);
+        this.nodeLimit = parseLimit("facet.script.memory.node_limit", settings.get("facet.script.memory.node_limit", "30%"));
+        this.facetLimit = parseLimit("facet.script.memory.facet_limit", settings.get("facet.script.memory.facet_limit", "10%"));
+        this.checkInterval = settings.getAsInt("facet.script.memory.check_interval", 1000);
+        if (checkInterval <= 0) {
+            throw new ElasticSearchIllegalArgumentException("facet.script.memory.check_interval should be positive");
+        }
+        this.pagePool = new PagePool(parseLimit("facet.script.memory.page_pool_size", settings.get("facet.script.memory.page_pool_size", "64mb")),
+                parseLimit("facet.script.memory.paged_limit", settings.get("facet.script.memory.paged_limit", "20%")));
+    }
+
+    /**
+     * Parses a memory limit that is either a byte size or a percentage of the maximum heap size
+     */
+    static long parseLimit(String name, String limit) {
+        if (limit.endsWith("%")) {
+            double percent;
+            try {
+                percent = Double.parseDouble(limit.substring(0, limit.length() - 1));
+            } catch (NumberFormatException e) {
+                throw new ElasticSearchIllegalArgumentException("failed to parse [" + name + "] value [" + limit + "]", e);
+            }
+            return (long) (JvmInfo.jvmInfo().mem().heapMax().bytes() * percent / 100.0);
+        }
+        return ByteSizeValue.parseBytesSizeValue(limit).bytes();
+    }
+
+    public long nodeLimit() {
+        return nodeLimit;
+    }
+
+    public long facetLimit() {
+        return facetLimit;
+    }
+
+    public int checkInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Pool of pages of the paged accumulators on the node
+     */
+    public PagePool pagePool() {
+        return pagePool;
+    }
+
+    /**
+     * Adds the given number of bytes to the memory used by script facets on the node
+     *
+     * @return the memory used by script facets on the node after the update including pages of paged accumulators
+     */
+    long add(long bytes) {
+        releaseCollected();
+        return used.addAndGet(bytes) + pagePool.usedBytes();
+    }
+
+    /**
+     * Registers the tracker of a facet, so it's released if the facet is garbage collected before it releases the tracker
+     */
+    TrackerReference register(Object owner, ScriptFacetMemoryTracker tracker) {
+        TrackerReference reference = new TrackerReference(owner, tracker, queue);
+        references.add(reference);
+        return reference;
+    }
+
+    void unregister(TrackerReference reference) {
+        references.remove(reference);
+        reference.clear();
+    }
+
+    private void releaseCollected() {
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            ((TrackerReference) reference).tracker.release();
+        }
+    }
+
+    void onLimitBreak() {
+        limitBreaks.inc();
+    }
+
+    void onApproximation() {
+        approximations.inc();
+    }
+
+    public ScriptFacetMemoryStats stats() {
+        releaseCollected();
+        return new ScriptFacetMemoryStats(used.get(), nodeLimit, facetLimit, limitBreaks.count(), approximations.count(),
+                pagePool.usedBytes(), pagePool.pooledBytes(), pagePool.allocations(), pagePool.collected());
+    }
+
+    static class TrackerReference extends PhantomReference<Object> {
+
+        private final ScriptFacetMemoryTracker tracker;
+
+        TrackerReference(Object owner, ScriptFacetMemoryTracker tracker, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.tracker = tracker;
+        }
+    }
+}
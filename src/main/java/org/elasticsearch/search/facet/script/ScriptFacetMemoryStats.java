@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Statistics of the memory used by the state of script facets running on a node
+ */
+public class ScriptFacetMemoryStats implements Streamable, ToXContent {
+
+    private long used;
+
+    private long nodeLimit;
+
+    private long facetLimit;
+
+    private long limitBreaks;
+
+    private long approximations;
+
+    private long pagedUsed;
+
+    private long pagedPooled;
+
+    private long pageAllocations;
+
+    private long pagesCollected;
+
+    ScriptFacetMemoryStats() {
+    }
+
+    public ScriptFacetMemoryStats(long used, long nodeLimit, long facetLimit, long limitBreaks, long approximations,
+                                  long pagedUsed, long pagedPooled, long pageAllocations, long pagesCollected) {
+        this.used = used;
+        this.nodeLimit = nodeLimit;
+        this.facetLimit = facetLimit;
+        this.limitBreaks = limitBreaks;
+        this.approximations = approximations;
+        this.pagedUsed = pagedUsed;
+        this.pagedPooled = pagedPooled;
+        this.pageAllocations = pageAllocations;
+        this.pagesCollected = pagesCollected;
+    }
+
+    public ByteSizeValue used() {
+        return new ByteSizeValue(used);
+    }
+
+    public ByteSizeValue nodeLimit() {
+        return new ByteSizeValue(nodeLimit);
+    }
+
+    public ByteSizeValue facetLimit() {
+        return new ByteSizeValue(facetLimit);
+    }
+
+    /**
+     * Number of facets that failed because their state exceeded a memory limit
+     */
+    public long limitBreaks() {
+        return limitBreaks;
+    }
+
+    /**
+     * Number of times accumulators were pruned to fit into a memory limit
+     */
+    public long approximations() {
+        return approximations;
+    }
+
+    /**
+     * Direct memory held by paged accumulators
+     */
+    public ByteSizeValue pagedUsed() {
+        return new ByteSizeValue(pagedUsed);
+    }
+
+    /**
+     * Direct memory of released pages that are kept for reuse
+     */
+    public ByteSizeValue pagedPooled() {
+        return new ByteSizeValue(pagedPooled);
+    }
+
+    /**
+     * Number of pages that were allocated because no released page was available
+     */
+    public long pageAllocations() {
+        return pageAllocations;
+    }
+
+    /**
+     * Number of pages that were returned only after their accumulator was garbage collected
+     */
+    public long pagesCollected() {
+        return pagesCollected;
+    }
+
+    public static ScriptFacetMemoryStats readMemoryStats(StreamInput in) throws IOException {
+        ScriptFacetMemoryStats stats = new ScriptFacetMemoryStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        used = in.readVLong();
+        nodeLimit = in.readVLong();
+        facetLimit = in.readVLong();
+        limitBreaks = in.readVLong();
+        approximations = in.readVLong();
+        pagedUsed = in.readVLong();
+        pagedPooled = in.readVLong();
+        pageAllocations = in.readVLong();
+        pagesCollected = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(used);
+        out.writeVLong(nodeLimit);
+        out.writeVLong(facetLimit);
+        out.writeVLong(limitBreaks);
+        out.writeVLong(approximations);
+        out.writeVLong(pagedUsed);
+        out.writeVLong(pagedPooled);
+        out.writeVLong(pageAllocations);
+        out.writeVLong(pagesCollected);
+    }
+
+    static final class Fields {
+        static final XContentBuilderString MEMORY = new XContentBuilderString("memory");
+        static final XContentBuilderString USED = new XContentBuilderString("used");
+        static final XContentBuilderString USED_IN_BYTES = new XContentBuilderString("used_in_bytes");
+        static final XContentBuilderString NODE_LIMIT = new XContentBuilderString("node_limit");
+        static final XContentBuilderString NODE_LIMIT_IN_BYTES = new XContentBuilderString("node_limit_in_bytes");
+        static final XContentBuilderString FACET_LIMIT = new XContentBuilderString("facet_limit");
+        static final XContentBuilderString FACET_LIMIT_IN_BYTES = new XContentBuilderString("facet_limit_in_bytes");
+        static final XContentBuilderString LIMIT_BREAKS = new XContentBuilderString("limit_breaks");
+        static final XContentBuilderString APPROXIMATIONS = new XContentBuilderString("approximations");
+        static final XContentBuilderString PAGED = new XContentBuilderString("paged");
+        static final XContentBuilderString POOLED = new XContentBuilderString("pooled");
+        static final XContentBuilderString POOLED_IN_BYTES = new XContentBuilderString("pooled_in_bytes");
+        static final XContentBuilderString ALLOCATIONS = new XContentBuilderString("allocations");
+        static final XContentBuilderString COLLECTED = new XContentBuilderString("collected");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(Fields.MEMORY);
+        builder.field(Fields.USED, used().toString());
+        builder.field(Fields.USED_IN_BYTES, used);
+        builder.field(Fields.NODE_LIMIT, nodeLimit().toString());
+        builder.field(Fields.NODE_LIMIT_IN_BYTES, nodeLimit);
+        builder.field(Fields.FACET_LIMIT, facetLimit().toString());
+        builder.field(Fields.FACET_LIMIT_IN_BYTES, facetLimit);
+        builder.field(Fields.LIMIT_BREAKS, limitBreaks);
+        builder.field(Fields.APPROXIMATIONS, approximations);
+        builder.startObject(Fields.PAGED);
+        builder.field(Fields.USED, pagedUsed().toString());
+        builder.field(Fields.USED_IN_BYTES, pagedUsed);
+        builder.field(Fields.POOLED, pagedPooled().toString());
+        builder.field(Fields.POOLED_IN_BYTES, pagedPooled);
+        builder.field(Fields.ALLOCATIONS, pageAllocations);
+        builder.field(Fields.COLLECTED, pagesCollected);
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
+import org.elasticsearch.search.facet.script.accumulator.Accumulators;
+import org.elasticsearch.search.facet.script.accumulator.ApproximateAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.PagePool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts the estimated size of the states of a script facet on a shard against the memory limit of the facet
+ * and the memory limit of the node. Everything accounted by the facet and the pages of paged accumulators created
+ * by its scripts are released by the facet once its result is built or when it fails. Pages of accumulators that
+ * are a part of the shard result are released after the result is written or reduced.
+ */
+class ScriptFacetMemoryTracker {
+
+    private final String facetName;
+
+    private final ScriptFacetMemoryService memoryService;
+
+    private final long limit;
+
+    private final boolean approximate;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private volatile boolean released;
+
+    private ScriptFacetMemoryService.TrackerReference reference;
+
+    private final Accumulators accumulators;
+
+    /**
+     * @param limit       maximum estimated size of all states of the facet, not limited if negative
+     * @param approximate whether accumulators should be pruned instead of failing when a limit is exceeded
+     */
+    ScriptFacetMemoryTracker(String facetName, ScriptFacetMemoryService memoryService, long limit, boolean approximate) {
+        this.facetName = facetName;
+        this.memoryService = memoryService;
+        this.limit = limit;
+        this.approximate = approximate;
+        this.accumulators = new Accumulators(memoryService.pagePool());
+    }
+
+    /**
+     * Starts accounting of the given state, variables added by the facet itself are not counted
+     */
+    State state(Map<String, Object> state) {
+        return new State(state);
+    }
+
+    /**
+     * The accumulator factory shared by all states of the facet
+     */
+    Accumulators accumulators() {
+        return accumulators;
+    }
+
+    PagePool pagePool() {
+        return memoryService.pagePool();
+    }
+
+    long used() {
+        return used.get();
+    }
+
+    /**
+     * Registers the tracker with the memory service, so what it accounts is still released if the owner
+     * is garbage collected without the tracker being released
+     */
+    synchronized void register(Object owner) {
+        reference = memoryService.register(owner, this);
+    }
+
+    /**
+     * Releases everything accounted by the facet, states can't be accounted after that
+     */
+    synchronized void release() {
+        released = true;
+        memoryService.add(-used.getAndSet(0));
+        accumulators.release();
+        if (reference != null) {
+            memoryService.unregister(reference);
+            reference = null;
+        }
+    }
+
+    class State {
+
+        private final Map<String, Object> state;
+
+        private long bytes;
+
+        private int untilCheck;
+
+        private State(Map<String, Object> state) {
+            this.state = state;
+            this.untilCheck = memoryService.checkInterval();
+        }
+
+        void onDoc() {
+            if (--untilCheck == 0) {
+                check();
+            }
+        }
+
+        /**
+         * Estimates the size of the state, prunes approximate accumulators if it is over a limit and allowed to,
+         * and fails the facet if it is still over the limit
+         */
+        void check() {
+            long facetUsed = account(estimate());
+            long nodeUsed = memoryService.add(0);
+            while ((limit >= 0 && facetUsed > limit) || nodeUsed > memoryService.nodeLimit()) {
+                if (!approximate || !prune(stateValues())) {
+                    memoryService.onLimitBreak();
+                    if (limit >= 0 && facetUsed > limit) {
+                        throw new FacetPhaseExecutionException(facetName, "estimated state size [" + new ByteSizeValue(facetUsed)
+                                + "] exceeds the memory limit of the facet [" + new ByteSizeValue(limit) + "]");
+                    }
+                    throw new FacetPhaseExecutionException(facetName, "estimated state size of script facets on the node ["
+                            + new ByteSizeValue(nodeUsed) + "] exceeds the node memory limit ["
+                            + new ByteSizeValue(memoryService.nodeLimit()) + "]");
+                }
+                memoryService.onApproximation();
+                facetUsed = account(estimate());
+                nodeUsed = memoryService.add(0);
+            }
+            untilCheck = memoryService.checkInterval();
+        }
+
+        void release() {
+            account(0);
+        }
+
+        /**
+         * Accumulators report their size as they grow, maps and lists are estimated from a sample of their entries,
+         * so the cost of an estimate doesn't grow with the size of the state
+         */
+        private long estimate() {
+            long size = 0;
+            for (Object value : stateValues()) {
+                size += ScriptFacetValues.sizeInBytes(value);
+            }
+            return size;
+        }
+
+        private List<Object> stateValues() {
+            List<Object> values = new ArrayList<Object>(state.size());
+            for (Map.Entry<String, Object> entry : state.entrySet()) {
+                if (!ScriptFacetCollector.NON_STATE_VARS.contains(entry.getKey())) {
+                    values.add(entry.getValue());
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the estimated size of all states of the facet after the update
+         */
+        private long account(long size) {
+            if (released) {
+                return 0;
+            }
+            long delta = size - bytes;
+            bytes = size;
+            memoryService.add(delta);
+            return used.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Halves all approximate accumulators found in the given values
+     *
+     * @return true if at least one accumulator was pruned
+     */
+    private static boolean prune(Collection<?> values) {
+        boolean pruned = false;
+        for (Object value : values) {
+            if (value instanceof ApproximateAccumulator) {
+                ApproximateAccumulator accumulator = (ApproximateAccumulator) value;
+                if (accumulator.size() > 0) {
+                    accumulator.prune(accumulator.size() / 2);
+                    pruned = true;
+                }
+            } else if (value instanceof Map) {
+                pruned |= prune(((Map<?, ?>) value).values());
+            } else if (value instanceof Collection) {
+                pruned |= prune((Collection<?>) value);
+            }
+        }
+        return pruned;
+    }
+}
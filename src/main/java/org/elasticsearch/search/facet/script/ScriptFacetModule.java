@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.inject.multibindings.MapBinder;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Registers native script facets. Other plugins can add their facets using
+ * <code>public void onModule(ScriptFacetModule module)</code>.
+ */
+public class ScriptFacetModule extends AbstractModule {
+
+    private final Settings settings;
+
+    private final Map<String, Class<? extends NativeScriptFacetFactory>> facets = newHashMap();
+
+    public ScriptFacetModule(Settings settings) {
+        this.settings = settings;
+    }
+
+    public void registerFacet(String name, Class<? extends NativeScriptFacetFactory> facet) {
+        facets.put(name, facet);
+    }
+
+    @Override
+    protected void configure() {
+        MapBinder<String, NativeScriptFacetFactory> facetsBinder
+                = MapBinder.newMapBinder(binder(), String.class, NativeScriptFacetFactory.class);
+        for (Map.Entry<String, Class<? extends NativeScriptFacetFactory>> entry : facets.entrySet()) {
+            facetsBinder.addBinding(entry.getKey()).to(entry.getValue());
+        }
+
+        Map<String, Settings> nativeSettings = settings.getGroups("facet.script.native");
+        for (Map.Entry<String, Settings> entry : nativeSettings.entrySet()) {
+            String name = entry.getKey();
+            Class<? extends NativeScriptFacetFactory> type = entry.getValue().getAsClass("type", NativeScriptFacetFactory.class);
+            if (type == NativeScriptFacetFactory.class) {
+                throw new ElasticSearchIllegalArgumentException("type is missing for native script facet [" + name + "]");
+            }
+            facetsBinder.addBinding(name).to(type);
+        }
+
+        bind(ScriptFacetSegmentCache.class).asEagerSingleton();
+        bind(ScriptFacetDefinitionCache.class).asEagerSingleton();
+        bind(ScriptFacetStatsService.class).asEagerSingleton();
+        bind(ScriptFacetMemoryService.class).asEagerSingleton();
+        bind(ScriptFacetSpillService.class).asEagerSingleton();
+        bind(ScriptFacetThreadPool.class).asEagerSingleton();
+    }
+}
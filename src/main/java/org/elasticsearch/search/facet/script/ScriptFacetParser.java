@@ -16,10 +16,13 @@
 
 package org.elasticsearch.search.facet.script;
 
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.facet.FacetExecutor;
@@ -28,20 +31,68 @@ import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
 
 /**
  *
  */
 public class ScriptFacetParser extends AbstractComponent implements FacetParser {
 
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
     private final Client client;
 
+    private final Map<String, NativeScriptFacetFactory> nativeFacets;
+
+    private final ScriptFacetThreadPool threadPool;
+
+    private final ScriptFacetSegmentCache segmentCache;
+
+    private final ScriptFacetStatsService statsService;
+
+    private final ScriptFacetMemoryService memoryService;
+
+    private final long compressThreshold;
+
+    private final int bulkActions;
+
+    private final int bulkConcurrentRequests;
+
+    private final TimeValue bulkTimeout;
+
     @Inject
-    public ScriptFacetParser(Settings settings, ScriptService scriptService, Client client) {
+    public ScriptFacetParser(Settings settings, ScriptService scriptService, Client client,
+                             Map<String, NativeScriptFacetFactory> nativeFacets, ScriptFacetThreadPool threadPool,
+                             ScriptFacetSegmentCache segmentCache, ScriptFacetStatsService statsService,
+                             ScriptFacetMemoryService memoryService, ScriptFacetDefinitionCache definitionCache) {
         super(settings);
-        InternalScriptFacet.registerStreams(scriptService, client);
+        InternalScriptFacet.registerStreams(scriptService, statsService, client, nativeFacets, definitionCache, memoryService.pagePool());
         this.client = client;
+        this.nativeFacets = nativeFacets;
+        this.threadPool = threadPool;
+        this.segmentCache = segmentCache;
+        this.statsService = statsService;
+        this.memoryService = memoryService;
+        this.compressThreshold = parseCompressThreshold(settings.get("facet.script.compress.threshold", "16kb"));
+        this.bulkActions = settings.getAsInt("facet.script.bulk.actions", 1000);
+        this.bulkConcurrentRequests = settings.getAsInt("facet.script.bulk.concurrent_requests", 1);
+        this.bulkTimeout = settings.getAsTime("facet.script.bulk.timeout", TimeValue.timeValueMinutes(1));
+    }
+
+    /**
+     * Parses the size above which shard results are compressed, -1 disables compression
+     */
+    static long parseCompressThreshold(String threshold) {
+        if ("-1".equals(threshold)) {
+            return -1;
+        }
+        return ByteSizeValue.parseBytesSizeValue(threshold).bytes();
     }
 
     @Override
@@ -63,13 +114,17 @@ public class ScriptFacetParser extends AbstractComponent implements FacetParser
 
     @Override
     public FacetExecutor parse(String facetName, XContentParser parser, SearchContext context) throws IOException {
-        String initScript = null;
-        String mapScript = null;
-        String combineScript = null;
-        String reduceScript = null;
-        String scriptLang = null;
-        Map<String, Object> params = null;
-        Map<String, Object> reduceParams = null;
+        ScriptFacetDefinition definition = new ScriptFacetDefinition();
+        definition.compressThreshold = compressThreshold;
+        definition.bulkActions = bulkActions;
+        definition.bulkConcurrentRequests = bulkConcurrentRequests;
+        definition.bulkTimeout = bulkTimeout;
+        String memoryLimit = null;
+        String onMemoryLimit = null;
+        String compressThresholdValue = null;
+        boolean sampleSet = false;
+        List<Map<String, Object>> mapOpDefinitions = null;
+        Map<String, ScriptFacetCollector> groupFacets = null;
         XContentParser.Token token;
         String fieldName = null;
 
@@ -78,30 +133,200 @@ public class ScriptFacetParser extends AbstractComponent implements FacetParser
                 fieldName = parser.currentName();
             } else if (token == XContentParser.Token.START_OBJECT) {
                 if ("params".equals(fieldName)) {
-                    params = parser.map();
+                    definition.params = parser.map();
                 } else if ("reduce_params".equals(fieldName)) {
-                  reduceParams = parser.map();
+                  definition.reduceParams = parser.map();
+                } else if ("map".equals(fieldName)) {
+                    mapOpDefinitions = newArrayList();
+                    mapOpDefinitions.add(parser.map());
+                } else if ("facets".equals(fieldName)) {
+                    groupFacets = parseGroupFacets(facetName, parser, context);
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                if ("fields".equals(fieldName)) {
+                    definition.fields = newArrayList();
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        definition.fields.add(parser.text());
+                    }
+                } else if ("map".equals(fieldName)) {
+                    mapOpDefinitions = newArrayList();
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        mapOpDefinitions.add(parser.map());
+                    }
                 }
             } else if (token.isValue()) {
                 if ("init_script".equals(fieldName) || "initScript".equals(fieldName)) {
-                    initScript = parser.text();
+                    definition.initScript = parser.text();
                 } else if ("map_script".equals(fieldName) || "mapScript".equals(fieldName)) {
-                    mapScript = parser.text();
+                    definition.mapScript = parser.text();
+                } else if ("map_batch_script".equals(fieldName) || "mapBatchScript".equals(fieldName)) {
+                    definition.mapBatchScript = parser.text();
+                } else if ("batch_size".equals(fieldName) || "batchSize".equals(fieldName)) {
+                    definition.batchSize = parser.intValue();
                 } else if ("combine_script".equals(fieldName) || "combineScript".equals(fieldName)) {
-                    combineScript = parser.text();
+                    definition.combineScript = parser.text();
+                } else if ("segment_combine_script".equals(fieldName) || "segmentCombineScript".equals(fieldName)) {
+                    definition.segmentCombineScript = parser.text();
+                } else if ("parallel_segments".equals(fieldName) || "parallelSegments".equals(fieldName)) {
+                    definition.parallelSegments = parser.booleanValue();
+                } else if ("cacheable".equals(fieldName)) {
+                    definition.cacheable = parser.booleanValue();
+                } else if ("profile".equals(fieldName)) {
+                    definition.profile = parser.booleanValue();
+                } else if ("memory_limit".equals(fieldName) || "memoryLimit".equals(fieldName)) {
+                    memoryLimit = parser.text();
+                } else if ("compress_threshold".equals(fieldName) || "compressThreshold".equals(fieldName)) {
+                    compressThresholdValue = parser.text();
+                } else if ("bulk_actions".equals(fieldName) || "bulkActions".equals(fieldName)) {
+                    definition.bulkActions = parser.intValue();
+                } else if ("on_memory_limit".equals(fieldName) || "onMemoryLimit".equals(fieldName)) {
+                    onMemoryLimit = parser.text();
+                } else if ("sample".equals(fieldName)) {
+                    definition.sample = parser.doubleValue();
+                    sampleSet = true;
+                } else if ("sample_seed".equals(fieldName) || "sampleSeed".equals(fieldName)) {
+                    definition.sampleSeed = parser.longValue();
+                } else if ("size".equals(fieldName)) {
+                    definition.size = parser.intValue();
+                } else if ("shard_size".equals(fieldName) || "shardSize".equals(fieldName)) {
+                    definition.shardSize = parser.intValue();
                 } else if ("reduce_script".equals(fieldName) || "reduceScript".equals(fieldName)) {
-                    reduceScript = parser.text();
+                    definition.reduceScript = parser.text();
+                } else if ("accumulate_script".equals(fieldName) || "accumulateScript".equals(fieldName)) {
+                    definition.accumulateScript = parser.text();
                 } else if ("lang".equals(fieldName)) {
-                    scriptLang = parser.text();
+                    definition.scriptLang = parser.text();
+                } else if ("native".equals(fieldName)) {
+                    definition.nativeFacetName = parser.text();
+                } else if ("fields".equals(fieldName)) {
+                    definition.fields = newArrayList(parser.text());
                 }
             }
         }
 
-        if (mapScript == null) {
-            throw new FacetPhaseExecutionException(facetName, "map_script field is required");
+        if (groupFacets != null) {
+            if (mapOpDefinitions != null || definition.nativeFacetName != null || definition.mapScript != null
+                    || definition.mapBatchScript != null) {
+                throw new FacetPhaseExecutionException(facetName, "facets cannot be used together with map, native facet, map_script or map_batch_script");
+            }
+            if (groupFacets.isEmpty()) {
+                throw new FacetPhaseExecutionException(facetName, "facets should contain at least one facet");
+            }
+            return new ScriptFacetGroupCollector(groupFacets);
         }
 
-        return new ScriptFacetCollector(scriptLang, initScript, mapScript, combineScript, reduceScript, params, reduceParams, context, client);
+        if (mapOpDefinitions != null) {
+            if (definition.nativeFacetName != null || definition.mapScript != null || definition.mapBatchScript != null) {
+                throw new FacetPhaseExecutionException(facetName, "map cannot be used together with native facet, map_script or map_batch_script");
+            }
+            definition.mapOps = newArrayList();
+            Set<String> names = newHashSet();
+            for (Map<String, Object> mapOpDefinition : mapOpDefinitions) {
+                ScriptFacetMapOp mapOp = ScriptFacetMapOp.parse(facetName, mapOpDefinition, context);
+                if (!names.add(mapOp.name())) {
+                    throw new FacetPhaseExecutionException(facetName, "duplicate map operation name [" + mapOp.name() + "]");
+                }
+                definition.mapOps.add(mapOp);
+            }
+            if (definition.mapOps.isEmpty()) {
+                throw new FacetPhaseExecutionException(facetName, "map should contain at least one operation");
+            }
+        } else if (definition.nativeFacetName != null) {
+            if (!nativeFacets.containsKey(definition.nativeFacetName)) {
+                throw new FacetPhaseExecutionException(facetName, "native script facet [" + definition.nativeFacetName + "] is not registered");
+            }
+            if (definition.initScript != null || definition.mapScript != null || definition.mapBatchScript != null
+                    || definition.combineScript != null) {
+                throw new FacetPhaseExecutionException(facetName, "native facet cannot be used together with init, map or combine scripts");
+            }
+        } else if (definition.mapScript == null && definition.mapBatchScript == null) {
+            throw new FacetPhaseExecutionException(facetName, "map_script, map_batch_script or map field is required");
+        }
+        if (definition.cacheable && definition.nativeFacetName != null) {
+            throw new FacetPhaseExecutionException(facetName, "native script facets cannot be cacheable");
+        }
+        if (definition.fields != null) {
+            if (definition.nativeFacetName != null) {
+                throw new FacetPhaseExecutionException(facetName, "fields cannot be used together with native facet");
+            }
+            for (String field : definition.fields) {
+                if (context.smartNameFieldMapper(field) == null) {
+                    throw new FacetPhaseExecutionException(facetName, "No mapping found for field [" + field + "]");
+                }
+            }
+        }
+        if (sampleSet) {
+            if (definition.sample <= 0) {
+                throw new FacetPhaseExecutionException(facetName, "sample should be positive");
+            }
+            if (definition.cacheable) {
+                throw new FacetPhaseExecutionException(facetName, "sampled script facets cannot be cacheable");
+            }
+        }
+        if (definition.size < 0 || definition.shardSize < 0) {
+            throw new FacetPhaseExecutionException(facetName, "size and shard_size should be positive");
+        }
+        if (definition.shardSize > 0 && definition.size == 0) {
+            throw new FacetPhaseExecutionException(facetName, "shard_size requires size");
+        }
+        if (definition.shardSize < definition.size) {
+            // every shard has to return at least as many entries as the final result
+            definition.shardSize = definition.size;
+        }
+        if (definition.batchSize <= 0) {
+            throw new FacetPhaseExecutionException(facetName, "batch_size should be positive");
+        }
+        if (definition.bulkActions <= 0) {
+            throw new FacetPhaseExecutionException(facetName, "bulk_actions should be positive");
+        }
+        long facetMemoryLimit = memoryService.facetLimit();
+        if (memoryLimit != null) {
+            try {
+                facetMemoryLimit = ScriptFacetMemoryService.parseLimit("memory_limit", memoryLimit);
+            } catch (ElasticSearchException e) {
+                throw new FacetPhaseExecutionException(facetName, "failed to parse memory_limit [" + memoryLimit + "]", e);
+            }
+        }
+        if (compressThresholdValue != null) {
+            try {
+                definition.compressThreshold = parseCompressThreshold(compressThresholdValue);
+            } catch (ElasticSearchException e) {
+                throw new FacetPhaseExecutionException(facetName, "failed to parse compress_threshold [" + compressThresholdValue + "]", e);
+            }
+        }
+        boolean approximate = false;
+        if ("approximate".equals(onMemoryLimit)) {
+            approximate = true;
+        } else if (onMemoryLimit != null && !"fail".equals(onMemoryLimit)) {
+            throw new FacetPhaseExecutionException(facetName, "on_memory_limit should be either fail or approximate");
+        }
+        ScriptFacetMemoryTracker memoryTracker = new ScriptFacetMemoryTracker(facetName, memoryService, facetMemoryLimit, approximate);
+
+        return new ScriptFacetCollector(definition, context, client, nativeFacets,
+                definition.parallelSegments ? threadPool : null, definition.cacheable ? segmentCache : null, statsService, memoryTracker);
+    }
+
+    /**
+     * Parses the named script facets of a group that are run together in a single pass
+     */
+    private Map<String, ScriptFacetCollector> parseGroupFacets(String facetName, XContentParser parser, SearchContext context) throws IOException {
+        Map<String, ScriptFacetCollector> facets = newLinkedHashMap();
+        XContentParser.Token token;
+        String name = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                name = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                FacetExecutor executor = parse(name, parser, context);
+                if (!(executor instanceof ScriptFacetCollector)) {
+                    throw new FacetPhaseExecutionException(facetName, "facets of a group cannot contain other groups");
+                }
+                if (facets.put(name, (ScriptFacetCollector) executor) != null) {
+                    throw new FacetPhaseExecutionException(facetName, "duplicate facet name [" + name + "]");
+                }
+            }
+        }
+        return facets;
     }
 
 }
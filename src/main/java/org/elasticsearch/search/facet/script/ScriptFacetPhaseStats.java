@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time spent in every phase of a script facet together with the number of mapped documents and segments
+ * and the size of the serialized combine result before and after compression. Used for a single shard, for all shards of a request
+ * and for all facets executed on a node.
+ */
+public class ScriptFacetPhaseStats implements Streamable, ToXContent {
+
+    long shards;
+
+    long initNanos;
+
+    // measured around every document for profiled facets, extrapolated from a sample of documents otherwise
+    long mapNanos;
+
+    long combineNanos;
+
+    long serializeNanos;
+
+    long reduceNanos;
+
+    long docs;
+
+    long segments;
+
+    long combineBytes;
+
+    long compressNanos;
+
+    // size of the combine result as sent, after compression
+    long wireBytes;
+
+    // stats of individual shards in a reduced facet
+    private List<ScriptFacetPhaseStats> shardStats;
+
+    public ScriptFacetPhaseStats() {
+    }
+
+    public long shards() {
+        return shards;
+    }
+
+    public long initNanos() {
+        return initNanos;
+    }
+
+    public long mapNanos() {
+        return mapNanos;
+    }
+
+    public long combineNanos() {
+        return combineNanos;
+    }
+
+    public long serializeNanos() {
+        return serializeNanos;
+    }
+
+    public long reduceNanos() {
+        return reduceNanos;
+    }
+
+    public long docs() {
+        return docs;
+    }
+
+    public long segments() {
+        return segments;
+    }
+
+    public ByteSizeValue combineBytes() {
+        return new ByteSizeValue(combineBytes);
+    }
+
+    public long compressNanos() {
+        return compressNanos;
+    }
+
+    public ByteSizeValue wireBytes() {
+        return new ByteSizeValue(wireBytes);
+    }
+
+    /**
+     * Size of serialized combine results divided by the size that was actually sent, 1 if nothing was compressed
+     */
+    public double compressionRatio() {
+        return wireBytes == 0 ? 1.0 : (double) combineBytes / wireBytes;
+    }
+
+    public List<ScriptFacetPhaseStats> shardStats() {
+        return shardStats;
+    }
+
+    /**
+     * Adds shard level stats to the totals
+     */
+    public void add(ScriptFacetPhaseStats other) {
+        shards += other.shards;
+        initNanos += other.initNanos;
+        mapNanos += other.mapNanos;
+        combineNanos += other.combineNanos;
+        serializeNanos += other.serializeNanos;
+        reduceNanos += other.reduceNanos;
+        docs += other.docs;
+        segments += other.segments;
+        combineBytes += other.combineBytes;
+        compressNanos += other.compressNanos;
+        wireBytes += other.wireBytes;
+    }
+
+    void addShard(ScriptFacetPhaseStats shard) {
+        add(shard);
+        if (shardStats == null) {
+            shardStats = new ArrayList<ScriptFacetPhaseStats>();
+        }
+        shardStats.add(shard);
+    }
+
+    public static ScriptFacetPhaseStats readPhaseStats(StreamInput in) throws IOException {
+        ScriptFacetPhaseStats stats = new ScriptFacetPhaseStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        shards = in.readVLong();
+        initNanos = in.readVLong();
+        mapNanos = in.readVLong();
+        combineNanos = in.readVLong();
+        serializeNanos = in.readVLong();
+        reduceNanos = in.readVLong();
+        docs = in.readVLong();
+        segments = in.readVLong();
+        combineBytes = in.readVLong();
+        compressNanos = in.readVLong();
+        wireBytes = in.readVLong();
+        int size = in.readVInt();
+        if (size > 0) {
+            shardStats = new ArrayList<ScriptFacetPhaseStats>(size);
+            for (int i = 0; i < size; i++) {
+                shardStats.add(readPhaseStats(in));
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(shards);
+        out.writeVLong(initNanos);
+        out.writeVLong(mapNanos);
+        out.writeVLong(combineNanos);
+        out.writeVLong(serializeNanos);
+        out.writeVLong(reduceNanos);
+        out.writeVLong(docs);
+        out.writeVLong(segments);
+        out.writeVLong(combineBytes);
+        out.writeVLong(compressNanos);
+        out.writeVLong(wireBytes);
+        if (shardStats == null) {
+            out.writeVInt(0);
+        } else {
+            out.writeVInt(shardStats.size());
+            for (ScriptFacetPhaseStats shard : shardStats) {
+                shard.writeTo(out);
+            }
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString SHARDS = new XContentBuilderString("shards");
+        static final XContentBuilderString INIT_TIME_IN_NANOS = new XContentBuilderString("init_time_in_nanos");
+        static final XContentBuilderString MAP_TIME_IN_NANOS = new XContentBuilderString("map_time_in_nanos");
+        static final XContentBuilderString COMBINE_TIME_IN_NANOS = new XContentBuilderString("combine_time_in_nanos");
+        static final XContentBuilderString SERIALIZE_TIME_IN_NANOS = new XContentBuilderString("serialize_time_in_nanos");
+        static final XContentBuilderString REDUCE_TIME_IN_NANOS = new XContentBuilderString("reduce_time_in_nanos");
+        static final XContentBuilderString DOCS = new XContentBuilderString("docs");
+        static final XContentBuilderString SEGMENTS = new XContentBuilderString("segments");
+        static final XContentBuilderString COMBINE_SIZE = new XContentBuilderString("combine_size");
+        static final XContentBuilderString COMBINE_SIZE_IN_BYTES = new XContentBuilderString("combine_size_in_bytes");
+        static final XContentBuilderString COMPRESS_TIME_IN_NANOS = new XContentBuilderString("compress_time_in_nanos");
+        static final XContentBuilderString WIRE_SIZE = new XContentBuilderString("wire_size");
+        static final XContentBuilderString WIRE_SIZE_IN_BYTES = new XContentBuilderString("wire_size_in_bytes");
+        static final XContentBuilderString COMPRESSION_RATIO = new XContentBuilderString("compression_ratio");
+        static final XContentBuilderString SHARD_STATS = new XContentBuilderString("shard_stats");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(Fields.SHARDS, shards);
+        builder.field(Fields.INIT_TIME_IN_NANOS, initNanos);
+        builder.field(Fields.MAP_TIME_IN_NANOS, mapNanos);
+        builder.field(Fields.COMBINE_TIME_IN_NANOS, combineNanos);
+        builder.field(Fields.SERIALIZE_TIME_IN_NANOS, serializeNanos);
+        builder.field(Fields.REDUCE_TIME_IN_NANOS, reduceNanos);
+        builder.field(Fields.DOCS, docs);
+        builder.field(Fields.SEGMENTS, segments);
+        builder.field(Fields.COMBINE_SIZE, combineBytes().toString());
+        builder.field(Fields.COMBINE_SIZE_IN_BYTES, combineBytes);
+        builder.field(Fields.COMPRESS_TIME_IN_NANOS, compressNanos);
+        builder.field(Fields.WIRE_SIZE, wireBytes().toString());
+        builder.field(Fields.WIRE_SIZE_IN_BYTES, wireBytes);
+        builder.field(Fields.COMPRESSION_RATIO, compressionRatio());
+        if (shardStats != null) {
+            builder.startArray(Fields.SHARD_STATS);
+            for (ScriptFacetPhaseStats shard : shardStats) {
+                shard.toXContent(builder, params);
+            }
+            builder.endArray();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
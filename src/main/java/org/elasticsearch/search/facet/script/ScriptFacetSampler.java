@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+/**
+ * Decides which matching documents are passed to the map phase of a sampled facet.
+ * <p/>
+ * The decision is a hash of the shard level doc id and the seed, so the same request against
+ * the same index reader always maps the same documents, no matter how segments are grouped.
+ */
+class ScriptFacetSampler {
+
+    private final long seed;
+
+    private final long threshold;
+
+    ScriptFacetSampler(double rate, long seed) {
+        this.seed = seed;
+        if (rate >= 1.0) {
+            this.threshold = Long.MAX_VALUE;
+        } else {
+            this.threshold = (long) (rate * (1L << 53));
+        }
+    }
+
+    /**
+     * Returns true if the document with the given shard level doc id should be mapped
+     */
+    boolean accept(int doc) {
+        return (mix(doc ^ seed) >>> 11) < threshold;
+    }
+
+    /**
+     * Finalization step of MurmurHash3
+     */
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3f99e1a85b3L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
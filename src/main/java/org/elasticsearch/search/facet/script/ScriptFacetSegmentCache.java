@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalCause;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.script.CompiledScript;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node level cache of per-segment states produced by the map phase of script facets with <code>cacheable</code>
+ * enabled. Entries are keyed by segment core, facet definition including the compiled scripts and the set of documents
+ * matched in the segment,
+ * so they don't depend on the identity of the query or facet filter. Entries are removed when the segment
+ * is closed or when the total size of cached states exceeds <code>facet.script.segment_cache.size</code>.
+ */
+public class ScriptFacetSegmentCache extends AbstractComponent implements SegmentReader.CoreClosedListener,
+        RemovalListener<ScriptFacetSegmentCache.Key, BytesReference> {
+
+    private final Cache<Key, BytesReference> cache;
+
+    private final ConcurrentMap<Object, Boolean> registeredCores = ConcurrentCollections.newConcurrentMap();
+
+    private final ByteSizeValue size;
+
+    private final CounterMetric hits = new CounterMetric();
+
+    private final CounterMetric misses = new CounterMetric();
+
+    private final CounterMetric evictions = new CounterMetric();
+
+    private final CounterMetric memorySize = new CounterMetric();
+
+    // ids of compiled scripts, entries are dropped together with the compiled scripts
+    private final Map<CompiledScript, Long> scriptIds = new WeakHashMap<CompiledScript, Long>();
+
+    private long nextScriptId;
+
+    @Inject
+    public ScriptFacetSegmentCache(Settings settings) {
+        super(settings);
+        this.size = settings.getAsBytesSize("facet.script.segment_cache.size", new ByteSizeValue(10, ByteSizeUnit.MB));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(size.bytes())
+                .weigher(new KeyWeigher())
+                .removalListener(this)
+                .build();
+    }
+
+    /**
+     * Creates a cache key for the given segment or returns <code>null</code> if the segment cannot be cached
+     */
+    @Nullable
+    public Key key(AtomicReader reader, BytesReference definition, FixedBitSet docs) {
+        if (!(reader instanceof SegmentReader)) {
+            return null;
+        }
+        return new Key(reader.getCoreCacheKey(), definition, docs);
+    }
+
+    /**
+     * Returns an id of the compiled script that is unique on the node, so a script name or text that is compiled again,
+     * for example a file script that was changed or a script that was evicted from the script cache, doesn't reuse
+     * states produced by the previous version
+     */
+    public synchronized long scriptId(CompiledScript script) {
+        Long id = scriptIds.get(script);
+        if (id == null) {
+            id = nextScriptId++;
+            scriptIds.put(script, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns a fresh copy of the cached state or <code>null</code> if the state is not cached
+     */
+    @Nullable
+    public Object get(Key key) throws IOException {
+        BytesReference bytes = cache.getIfPresent(key);
+        if (bytes == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return ScriptFacetValues.readValue(new BytesStreamInput(bytes));
+    }
+
+    /**
+     * Caches the state of the segment. States that contain values that cannot be serialized are not cached.
+     *
+     * @return <code>true</code> if the state was cached
+     */
+    public boolean put(Key key, AtomicReader reader, Object state) {
+        BytesStreamOutput out = new BytesStreamOutput();
+        try {
+            ScriptFacetValues.writeValue(out, state);
+        } catch (Exception e) {
+            logger.debug("state of script facet cannot be cached", e);
+            return false;
+        }
+        if (registeredCores.putIfAbsent(key.coreKey, Boolean.TRUE) == null) {
+            ((SegmentReader) reader).addCoreClosedListener(this);
+        }
+        BytesReference bytes = out.bytes();
+        memorySize.inc(weight(key, bytes));
+        cache.put(key, bytes);
+        return true;
+    }
+
+    @Override
+    public void onClose(SegmentReader owner) {
+        Object coreKey = owner.getCoreCacheKey();
+        registeredCores.remove(coreKey);
+        for (Iterator<Key> it = cache.asMap().keySet().iterator(); it.hasNext(); ) {
+            if (it.next().coreKey == coreKey) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void onRemoval(RemovalNotification<Key, BytesReference> notification) {
+        if (notification.getKey() == null || notification.getValue() == null) {
+            return;
+        }
+        memorySize.dec(weight(notification.getKey(), notification.getValue()));
+        if (notification.getCause() != RemovalCause.REPLACED) {
+            // entries of closed segments are counted together with entries evicted due to the size limit
+            evictions.inc();
+        }
+    }
+
+    public ScriptFacetSegmentCacheStats stats() {
+        return new ScriptFacetSegmentCacheStats(cache.size(), memorySize.count(), size.bytes(), hits.count(), misses.count(),
+                evictions.count());
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static int weight(Key key, BytesReference value) {
+        // the definition is shared by all segments of a request, only bits of the matching docs are counted
+        return value.length() + key.docs.getBits().length * 8;
+    }
+
+    private static class KeyWeigher implements Weigher<Key, BytesReference> {
+
+        @Override
+        public int weigh(Key key, BytesReference value) {
+            return weight(key, value);
+        }
+    }
+
+    public static class Key {
+
+        private final Object coreKey;
+
+        private final BytesReference definition;
+
+        private final FixedBitSet docs;
+
+        private final int hashCode;
+
+        Key(Object coreKey, BytesReference definition, FixedBitSet docs) {
+            this.coreKey = coreKey;
+            this.definition = definition;
+            this.docs = docs;
+            this.hashCode = 31 * (31 * coreKey.hashCode() + definition.hashCode()) + docs.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return coreKey == other.coreKey && hashCode == other.hashCode && definition.equals(other.definition) && docs.equals(other.docs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
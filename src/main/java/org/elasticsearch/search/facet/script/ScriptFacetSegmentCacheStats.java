@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Statistics of the script facet segment cache
+ */
+public class ScriptFacetSegmentCacheStats implements Streamable, ToXContent {
+
+    private long entries;
+
+    private long memorySize;
+
+    private long maxMemorySize;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    ScriptFacetSegmentCacheStats() {
+    }
+
+    public ScriptFacetSegmentCacheStats(long entries, long memorySize, long maxMemorySize, long hits, long misses, long evictions) {
+        this.entries = entries;
+        this.memorySize = memorySize;
+        this.maxMemorySize = maxMemorySize;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    public ByteSizeValue memorySize() {
+        return new ByteSizeValue(memorySize);
+    }
+
+    public ByteSizeValue maxMemorySize() {
+        return new ByteSizeValue(maxMemorySize);
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    public static ScriptFacetSegmentCacheStats readSegmentCacheStats(StreamInput in) throws IOException {
+        ScriptFacetSegmentCacheStats stats = new ScriptFacetSegmentCacheStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        entries = in.readVLong();
+        memorySize = in.readVLong();
+        maxMemorySize = in.readVLong();
+        hits = in.readVLong();
+        misses = in.readVLong();
+        evictions = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(entries);
+        out.writeVLong(memorySize);
+        out.writeVLong(maxMemorySize);
+        out.writeVLong(hits);
+        out.writeVLong(misses);
+        out.writeVLong(evictions);
+    }
+
+    static final class Fields {
+        static final XContentBuilderString SEGMENT_CACHE = new XContentBuilderString("segment_cache");
+        static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
+        static final XContentBuilderString MEMORY_SIZE = new XContentBuilderString("memory_size");
+        static final XContentBuilderString MEMORY_SIZE_IN_BYTES = new XContentBuilderString("memory_size_in_bytes");
+        static final XContentBuilderString MAX_MEMORY_SIZE = new XContentBuilderString("max_memory_size");
+        static final XContentBuilderString MAX_MEMORY_SIZE_IN_BYTES = new XContentBuilderString("max_memory_size_in_bytes");
+        static final XContentBuilderString HITS = new XContentBuilderString("hits");
+        static final XContentBuilderString MISSES = new XContentBuilderString("misses");
+        static final XContentBuilderString EVICTIONS = new XContentBuilderString("evictions");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(Fields.SEGMENT_CACHE);
+        builder.field(Fields.ENTRIES, entries);
+        builder.field(Fields.MEMORY_SIZE, memorySize().toString());
+        builder.field(Fields.MEMORY_SIZE_IN_BYTES, memorySize);
+        builder.field(Fields.MAX_MEMORY_SIZE, maxMemorySize().toString());
+        builder.field(Fields.MAX_MEMORY_SIZE_IN_BYTES, maxMemorySize);
+        builder.field(Fields.HITS, hits);
+        builder.field(Fields.MISSES, misses);
+        builder.field(Fields.EVICTIONS, evictions);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.search.facet.script.accumulator.SpillDirectory;
+
+import java.io.File;
+
+/**
+ * Configures the directory that spilling accumulators write their runs to. The directory is
+ * <code>facet_script_spill</code> under the first data location of the node, the number of keys that spilling
+ * accumulators keep in memory by default is set by <code>facet.script.spill.threshold</code>.
+ */
+public class ScriptFacetSpillService extends AbstractLifecycleComponent<ScriptFacetSpillService> {
+
+    private final File directory;
+
+    @Inject
+    public ScriptFacetSpillService(Settings settings, NodeEnvironment nodeEnvironment) {
+        super(settings);
+        if (nodeEnvironment.hasNodeFile()) {
+            this.directory = new File(nodeEnvironment.nodeDataLocations()[0], "facet_script_spill");
+        } else {
+            this.directory = new File(System.getProperty("java.io.tmpdir"), "facet_script_spill");
+        }
+        int threshold = settings.getAsInt("facet.script.spill.threshold", 1000000);
+        logger.debug("using [{}] for spilled accumulators, threshold [{}]", directory, threshold);
+        SpillDirectory.configure(directory, threshold);
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        SpillDirectory.clear(directory);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Totals of the phase statistics of all script facets executed or reduced on the node
+ */
+public class ScriptFacetStatsService extends AbstractComponent {
+
+    private final CounterMetric shards = new CounterMetric();
+
+    private final CounterMetric initNanos = new CounterMetric();
+
+    private final CounterMetric mapNanos = new CounterMetric();
+
+    private final CounterMetric combineNanos = new CounterMetric();
+
+    private final CounterMetric serializeNanos = new CounterMetric();
+
+    private final CounterMetric reduceNanos = new CounterMetric();
+
+    private final CounterMetric docs = new CounterMetric();
+
+    private final CounterMetric segments = new CounterMetric();
+
+    private final CounterMetric combineBytes = new CounterMetric();
+
+    private final CounterMetric compressNanos = new CounterMetric();
+
+    private final CounterMetric wireBytes = new CounterMetric();
+
+    @Inject
+    public ScriptFacetStatsService(Settings settings) {
+        super(settings);
+    }
+
+    void onShard(ScriptFacetPhaseStats stats) {
+        shards.inc();
+        initNanos.inc(stats.initNanos);
+        mapNanos.inc(stats.mapNanos);
+        combineNanos.inc(stats.combineNanos);
+        docs.inc(stats.docs);
+        segments.inc(stats.segments);
+    }
+
+    void onSerialize(long nanos, long bytes, long compressNanos, long wireBytes) {
+        serializeNanos.inc(nanos);
+        combineBytes.inc(bytes);
+        this.compressNanos.inc(compressNanos);
+        this.wireBytes.inc(wireBytes);
+    }
+
+    void onReduce(long nanos) {
+        reduceNanos.inc(nanos);
+    }
+
+    public ScriptFacetPhaseStats stats() {
+        ScriptFacetPhaseStats stats = new ScriptFacetPhaseStats();
+        stats.shards = shards.count();
+        stats.initNanos = initNanos.count();
+        stats.mapNanos = mapNanos.count();
+        stats.combineNanos = combineNanos.count();
+        stats.serializeNanos = serializeNanos.count();
+        stats.reduceNanos = reduceNanos.count();
+        stats.docs = docs.count();
+        stats.segments = segments.count();
+        stats.combineBytes = combineBytes.count();
+        stats.compressNanos = compressNanos.count();
+        stats.wireBytes = wireBytes.count();
+        return stats;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.jsr166y.ForkJoinPool;
+
+/**
+ * Fork-join pool that executes map phase of script facets with <code>parallel_segments</code> enabled.
+ * The number of threads is controlled by the <code>facet.script.parallel.threads</code> setting and defaults
+ * to the number of available processors.
+ */
+public class ScriptFacetThreadPool extends AbstractLifecycleComponent<ScriptFacetThreadPool> {
+
+    private final ForkJoinPool pool;
+
+    @Inject
+    public ScriptFacetThreadPool(Settings settings) {
+        super(settings);
+        int threads = settings.getAsInt("facet.script.parallel.threads", Runtime.getRuntime().availableProcessors());
+        logger.debug("using [{}] threads for parallel segment collection", threads);
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public ForkJoinPool pool() {
+        return pool;
+    }
+
+    public int parallelism() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    protected void doStart() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticSearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticSearchException {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.search.facet.script.accumulator.ApproximateAccumulator;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trims key to count results of a facet to the entries with the highest counts, see the <code>size</code>
+ * and <code>shard_size</code> options. Supports count maps from {@link org.elasticsearch.search.facet.script.accumulator.Accumulators}
+ * and plain maps with numeric values, other results are left untouched.
+ */
+class ScriptFacetTopK {
+
+    private ScriptFacetTopK() {
+    }
+
+    /**
+     * Trims the result to at most <code>size</code> entries. Plain maps are replaced with a map that
+     * iterates in the order of descending counts.
+     *
+     * @param error receives the largest removed count in its first element
+     * @return the trimmed result
+     */
+    static Object trim(Object facet, int size, long[] error) {
+        if (facet instanceof ApproximateAccumulator) {
+            ApproximateAccumulator accumulator = (ApproximateAccumulator) facet;
+            long before = accumulator.error();
+            accumulator.prune(size);
+            error[0] = accumulator.error() - before;
+            return accumulator;
+        }
+        if (!isCountMap(facet)) {
+            return facet;
+        }
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> counts = (Map<Object, Object>) facet;
+        EntryQueue queue = new EntryQueue(Math.min(size, counts.size()));
+        long removed = 0;
+        for (Map.Entry<Object, Object> entry : counts.entrySet()) {
+            Map.Entry<Object, Object> overflow = queue.insertWithOverflow(entry);
+            if (overflow != null) {
+                removed = Math.max(removed, ((Number) overflow.getValue()).longValue());
+            }
+        }
+        error[0] = removed;
+        Object[] entries = new Object[queue.size()];
+        for (int i = entries.length - 1; i >= 0; i--) {
+            entries[i] = queue.pop();
+        }
+        Map<Object, Object> trimmed = new LinkedHashMap<Object, Object>(entries.length * 2);
+        for (Object entry : entries) {
+            @SuppressWarnings("unchecked")
+            Map.Entry<Object, Object> e = (Map.Entry<Object, Object>) entry;
+            trimmed.put(e.getKey(), e.getValue());
+        }
+        return trimmed;
+    }
+
+    /**
+     * Returns true if all results are maps with numeric values
+     */
+    static boolean isCountMaps(List<Object> facets) {
+        for (Object facet : facets) {
+            if (facet != null && !isCountMap(facet)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sums counts of the same keys. Counts stay longs unless any of them is a floating point number.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<Object, Object> mergeCountMaps(List<Object> facets) {
+        Map<Object, Object> merged = new HashMap<Object, Object>();
+        for (Object facet : facets) {
+            if (facet == null) {
+                continue;
+            }
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) facet).entrySet()) {
+                Number value = (Number) entry.getValue();
+                Number current = (Number) merged.get(entry.getKey());
+                if (current == null) {
+                    merged.put(entry.getKey(), value);
+                } else if (isFloatingPoint(current) || isFloatingPoint(value)) {
+                    merged.put(entry.getKey(), current.doubleValue() + value.doubleValue());
+                } else {
+                    merged.put(entry.getKey(), current.longValue() + value.longValue());
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static boolean isCountMap(Object facet) {
+        if (!(facet instanceof Map)) {
+            return false;
+        }
+        for (Object value : ((Map<?, ?>) facet).values()) {
+            if (!(value instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFloatingPoint(Number value) {
+        return value instanceof Double || value instanceof Float;
+    }
+
+    /**
+     * Keeps the entries with the highest counts, the entry with the lowest count is on top
+     */
+    private static class EntryQueue extends PriorityQueue<Map.Entry<Object, Object>> {
+
+        EntryQueue(int size) {
+            super(size);
+        }
+
+        @Override
+        protected boolean lessThan(Map.Entry<Object, Object> a, Map.Entry<Object, Object> b) {
+            return ((Number) a.getValue()).doubleValue() < ((Number) b.getValue()).doubleValue();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.search.facet.script.accumulator.Accumulator;
+import org.elasticsearch.search.facet.script.accumulator.Accumulators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.elasticsearch.search.facet.script.accumulator.Accumulators.readZLong;
+import static org.elasticsearch.search.facet.script.accumulator.Accumulators.writeZLong;
+
+/**
+ * Serialization of the values returned by combine_script and reduce_script.
+ * <p/>
+ * Lists and maps are written element by element, so they can contain accumulators. Lists, arrays and map values
+ * that contain only ints, longs, doubles or strings are written without per element type information with ints
+ * and longs packed as zig-zag variable length numbers. Map keys are dictionary encoded, so repeated keys in nested
+ * structures are written only once. All other values fall back to the generic value encoding.
+ */
+public class ScriptFacetValues {
+
+    /**
+     * Version of the format, written in front of every value
+     */
+    public static final byte VERSION = 1;
+
+    private static final byte GENERIC = 0;
+    private static final byte LIST = 1;
+    private static final byte ARRAY = 2;
+    private static final byte MAP = 3;
+    private static final byte LINKED_MAP = 4;
+    private static final byte ACCUMULATOR = 5;
+    private static final byte INT_ARRAY = 6;
+    private static final byte LONG_ARRAY = 7;
+    private static final byte DOUBLE_ARRAY = 8;
+
+    // types of elements in lists, arrays and maps
+    private static final byte MIXED = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    // estimated heap sizes
+    private static final long BOXED_SIZE = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+            + RamUsageEstimator.NUM_BYTES_LONG);
+
+    private static final long MAP_SIZE = 64;
+
+    // hash map entry and its slot in the table at the default load factor
+    private static final long MAP_ENTRY_SIZE = 48;
+
+    private static final long COLLECTION_SIZE = 32;
+
+    // maps, collections and arrays with more elements are estimated from this many of their elements
+    private static final int SIZE_SAMPLE = 64;
+
+    public static void writeValue(StreamOutput out, Object value) throws IOException {
+        out.writeByte(VERSION);
+        new Writer(out).write(value);
+    }
+
+    public static Object readValue(StreamInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported script facet format version [" + version + "]");
+        }
+        return new Reader(in).read();
+    }
+
+    /**
+     * Deep copy of maps and lists, other values are shared. Linked and sorted maps are copied into maps
+     * of the same kind, so their iteration order is preserved.
+     */
+    @SuppressWarnings("unchecked")
+    public static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            Map<String, Object> copy;
+            if (map instanceof LinkedHashMap) {
+                copy = new LinkedHashMap<String, Object>(map.size());
+            } else if (map instanceof SortedMap) {
+                copy = new TreeMap<String, Object>(((SortedMap<String, Object>) map).comparator());
+            } else {
+                copy = new HashMap<String, Object>(map.size());
+            }
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            List<Object> copy = new ArrayList<Object>(list.size());
+            for (Object o : list) {
+                copy.add(copy(o));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Estimated heap size of a value. Maps, collections and arrays are estimated with their elements, large ones from
+     * a sample of their first elements, so the cost doesn't grow with the size of the value. Accumulators report
+     * their own size, objects other than strings, numbers and accumulators are counted as empty objects.
+     */
+    public static long sizeInBytes(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return Accumulators.sizeInBytes((String) value);
+        } else if (value instanceof Accumulator) {
+            return ((Accumulator) value).sizeInBytes();
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long size = 0;
+            int sampled = 0;
+            for (Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator(); it.hasNext() && sampled < SIZE_SAMPLE; sampled++) {
+                Map.Entry<?, ?> entry = it.next();
+                size += MAP_ENTRY_SIZE + sizeInBytes(entry.getKey()) + sizeInBytes(entry.getValue());
+            }
+            return MAP_SIZE + scale(size, sampled, map.size());
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            long size = 0;
+            int sampled = 0;
+            for (Iterator<?> it = collection.iterator(); it.hasNext() && sampled < SIZE_SAMPLE; sampled++) {
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_REF + sizeInBytes(it.next());
+            }
+            return COLLECTION_SIZE + scale(size, sampled, collection.size());
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            long size = 0;
+            int sampled = Math.min(array.length, SIZE_SAMPLE);
+            for (int i = 0; i < sampled; i++) {
+                size += sizeInBytes(array[i]);
+            }
+            return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * array.length) + scale(size, sampled, array.length);
+        } else if (value instanceof int[]) {
+            return RamUsageEstimator.sizeOf((int[]) value);
+        } else if (value instanceof long[]) {
+            return RamUsageEstimator.sizeOf((long[]) value);
+        } else if (value instanceof double[]) {
+            return RamUsageEstimator.sizeOf((double[]) value);
+        } else if (value instanceof byte[]) {
+            return RamUsageEstimator.sizeOf((byte[]) value);
+        }
+        return BOXED_SIZE;
+    }
+
+    /**
+     * Scales the size of the first <code>sampled</code> elements to all elements
+     */
+    private static long scale(long size, int sampled, int count) {
+        if (sampled == 0 || sampled == count) {
+            return size;
+        }
+        return size / sampled * count;
+    }
+
+    private static byte elementType(Collection<?> values) {
+        Class<?> type = null;
+        for (Object value : values) {
+            if (value == null) {
+                return MIXED;
+            }
+            if (type == null) {
+                type = value.getClass();
+            } else if (type != value.getClass()) {
+                return MIXED;
+            }
+        }
+        if (type == Integer.class) {
+            return INT;
+        } else if (type == Long.class) {
+            return LONG;
+        } else if (type == Double.class) {
+            return DOUBLE;
+        } else if (type == String.class) {
+            return STRING;
+        }
+        return MIXED;
+    }
+
+    private static class Writer {
+
+        private final StreamOutput out;
+
+        private final Map<String, Integer> keys = new HashMap<String, Integer>();
+
+        Writer(StreamOutput out) {
+            this.out = out;
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(Object value) throws IOException {
+            if (value instanceof Accumulator) {
+                out.writeByte(ACCUMULATOR);
+                Accumulators.writeAccumulator(out, (Accumulator) value);
+            } else if (value instanceof List) {
+                out.writeByte(LIST);
+                writeElements((List<Object>) value);
+            } else if (value instanceof Object[]) {
+                out.writeByte(ARRAY);
+                writeElements(Arrays.asList((Object[]) value));
+            } else if (value instanceof Map) {
+                // maps with a defined iteration order are read back as linked maps in the same order
+                out.writeByte(value instanceof LinkedHashMap || value instanceof SortedMap ? LINKED_MAP : MAP);
+                writeMap((Map<String, Object>) value);
+            } else if (value instanceof int[]) {
+                int[] array = (int[]) value;
+                out.writeByte(INT_ARRAY);
+                out.writeVInt(array.length);
+                for (int v : array) {
+                    writeZLong(out, v);
+                }
+            } else if (value instanceof long[]) {
+                long[] array = (long[]) value;
+                out.writeByte(LONG_ARRAY);
+                out.writeVInt(array.length);
+                for (long v : array) {
+                    writeZLong(out, v);
+                }
+            } else if (value instanceof double[]) {
+                double[] array = (double[]) value;
+                out.writeByte(DOUBLE_ARRAY);
+                out.writeVInt(array.length);
+                for (double v : array) {
+                    out.writeDouble(v);
+                }
+            } else {
+                out.writeByte(GENERIC);
+                out.writeGenericValue(value);
+            }
+        }
+
+        private void writeElements(Collection<Object> values) throws IOException {
+            byte type = elementType(values);
+            out.writeByte(type);
+            out.writeVInt(values.size());
+            for (Object v : values) {
+                writeElement(type, v);
+            }
+        }
+
+        private void writeMap(Map<String, Object> map) throws IOException {
+            byte type = elementType(map.values());
+            out.writeByte(type);
+            out.writeVInt(map.size());
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                writeKey(entry.getKey());
+                writeElement(type, entry.getValue());
+            }
+        }
+
+        private void writeElement(byte type, Object value) throws IOException {
+            switch (type) {
+                case INT:
+                    writeZLong(out, (Integer) value);
+                    break;
+                case LONG:
+                    writeZLong(out, (Long) value);
+                    break;
+                case DOUBLE:
+                    out.writeDouble((Double) value);
+                    break;
+                case STRING:
+                    out.writeString((String) value);
+                    break;
+                default:
+                    write(value);
+            }
+        }
+
+        private void writeKey(String key) throws IOException {
+            Integer ord = keys.get(key);
+            if (ord != null) {
+                out.writeVInt(ord + 1);
+            } else {
+                out.writeVInt(0);
+                out.writeString(key);
+                keys.put(key, keys.size());
+            }
+        }
+    }
+
+    private static class Reader {
+
+        private final StreamInput in;
+
+        private final List<String> keys = new ArrayList<String>();
+
+        Reader(StreamInput in) {
+            this.in = in;
+        }
+
+        Object read() throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+                case GENERIC:
+                    return in.readGenericValue();
+                case LIST:
+                    return readElements();
+                case ARRAY:
+                    return readElements().toArray();
+                case MAP:
+                case LINKED_MAP:
+                    return readMap(type == LINKED_MAP);
+                case ACCUMULATOR:
+                    return Accumulators.readAccumulator(in);
+                case INT_ARRAY: {
+                    int[] array = new int[in.readVInt()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = (int) readZLong(in);
+                    }
+                    return array;
+                }
+                case LONG_ARRAY: {
+                    long[] array = new long[in.readVInt()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = readZLong(in);
+                    }
+                    return array;
+                }
+                case DOUBLE_ARRAY: {
+                    double[] array = new double[in.readVInt()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = in.readDouble();
+                    }
+                    return array;
+                }
+                default:
+                    throw new IOException("Can't read unknown type [" + type + "]");
+            }
+        }
+
+        private List<Object> readElements() throws IOException {
+            byte type = in.readByte();
+            int size = in.readVInt();
+            List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readElement(type));
+            }
+            return list;
+        }
+
+        private Map<String, Object> readMap(boolean linked) throws IOException {
+            byte type = in.readByte();
+            int size = in.readVInt();
+            Map<String, Object> map = linked ? new LinkedHashMap<String, Object>(size) : new HashMap<String, Object>(size);
+            for (int i = 0; i < size; i++) {
+                String key = readKey();
+                map.put(key, readElement(type));
+            }
+            return map;
+        }
+
+        private Object readElement(byte type) throws IOException {
+            switch (type) {
+                case INT:
+                    return (int) readZLong(in);
+                case LONG:
+                    return readZLong(in);
+                case DOUBLE:
+                    return in.readDouble();
+                case STRING:
+                    return in.readString();
+                default:
+                    return read();
+            }
+        }
+
+        private String readKey() throws IOException {
+            int ord = in.readVInt();
+            if (ord == 0) {
+                String key = in.readString();
+                keys.add(key);
+                return key;
+            }
+            return keys.get(ord - 1);
+        }
+    }
+}
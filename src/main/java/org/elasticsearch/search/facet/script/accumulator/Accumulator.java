@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+
+/**
+ * Primitive specialized state that scripts can create using the <code>_acc</code> variable.
+ * Accumulators can be returned from combine_script and reduce_script directly or as a part of
+ * maps and lists.
+ */
+public interface Accumulator extends Streamable, ToXContent {
+
+    /**
+     * Id of the accumulator type in the facet stream
+     */
+    byte id();
+
+    /**
+     * Merges the other accumulator of the same type into this one
+     */
+    void merge(Accumulator other);
+
+    /**
+     * Estimated number of bytes of heap used by the accumulator, kept up to date as the accumulator grows,
+     * so it's cheap enough to be called while documents are collected
+     */
+    long sizeInBytes();
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.ElasticSearchIllegalStateException;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lease.Releasable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Factory of accumulators that is available to scripts as the <code>_acc</code> variable.
+ * Paged accumulators created by the factory take their pages from the node's {@link PagePool} and are tracked
+ * together with spilling accumulators, so their pages and files can be released together with the facet.
+ */
+public class Accumulators {
+
+    private final PagePool pagePool;
+
+    private final List<Releasable> created = new ArrayList<Releasable>();
+
+    /**
+     * @param pagePool pool of the paged accumulators, paged accumulators can't be created if null
+     */
+    public Accumulators(@Nullable PagePool pagePool) {
+        this.pagePool = pagePool;
+    }
+
+    public LongArrayAccumulator longArray() {
+        return new LongArrayAccumulator(0);
+    }
+
+    public LongArrayAccumulator longArray(int size) {
+        return new LongArrayAccumulator(size);
+    }
+
+    public DoubleArrayAccumulator doubleArray() {
+        return new DoubleArrayAccumulator(0);
+    }
+
+    public DoubleArrayAccumulator doubleArray(int size) {
+        return new DoubleArrayAccumulator(size);
+    }
+
+    public LongLongMapAccumulator longMap() {
+        return new LongLongMapAccumulator();
+    }
+
+    public StringLongMapAccumulator stringMap() {
+        return new StringLongMapAccumulator();
+    }
+
+    /**
+     * Map of string keys to long values that spills to disk after the default number of keys set
+     * by <code>facet.script.spill.threshold</code>
+     */
+    public SpillingStringLongMapAccumulator spillingStringMap() {
+        return created(new SpillingStringLongMapAccumulator(SpillDirectory.defaultThreshold()));
+    }
+
+    public SpillingStringLongMapAccumulator spillingStringMap(int threshold) {
+        return created(new SpillingStringLongMapAccumulator(threshold));
+    }
+
+    /**
+     * Growable array of longs in direct memory that doesn't add to the heap no matter how large it gets
+     */
+    public PagedLongArrayAccumulator pagedLongArray() {
+        return created(new PagedLongArrayAccumulator(pagePool(), 0));
+    }
+
+    public PagedLongArrayAccumulator pagedLongArray(long size) {
+        return created(new PagedLongArrayAccumulator(pagePool(), size));
+    }
+
+    public PagedDoubleArrayAccumulator pagedDoubleArray() {
+        return created(new PagedDoubleArrayAccumulator(pagePool(), 0));
+    }
+
+    public PagedDoubleArrayAccumulator pagedDoubleArray(long size) {
+        return created(new PagedDoubleArrayAccumulator(pagePool(), size));
+    }
+
+    /**
+     * Hash map of long keys to long values in direct memory
+     */
+    public PagedLongLongMapAccumulator pagedLongMap() {
+        return created(new PagedLongLongMapAccumulator(pagePool()));
+    }
+
+    public StatsAccumulator stats() {
+        return new StatsAccumulator();
+    }
+
+    public StringStatsMapAccumulator statsMap() {
+        return new StringStatsMapAccumulator();
+    }
+
+    /**
+     * HyperLogLog++ sketch that estimates the number of distinct values with the default precision of 14 (16kb per sketch)
+     */
+    public HyperLogLogAccumulator hll() {
+        return new HyperLogLogAccumulator(HyperLogLogAccumulator.DEFAULT_PRECISION);
+    }
+
+    public HyperLogLogAccumulator hll(int precision) {
+        return new HyperLogLogAccumulator(precision);
+    }
+
+    /**
+     * T-digest that estimates quantiles with the default compression of 100
+     */
+    public TDigestAccumulator tdigest() {
+        return new TDigestAccumulator(TDigestAccumulator.DEFAULT_COMPRESSION);
+    }
+
+    public TDigestAccumulator tdigest(double compression) {
+        return new TDigestAccumulator(compression);
+    }
+
+    /**
+     * Count-min sketch with epsilon 0.001 and delta 0.01 that doesn't keep heavy hitters
+     */
+    public CountMinSketchAccumulator countMin() {
+        return new CountMinSketchAccumulator(CountMinSketchAccumulator.DEFAULT_EPSILON, CountMinSketchAccumulator.DEFAULT_DELTA, 0);
+    }
+
+    /**
+     * Count-min sketch with epsilon 0.001 and delta 0.01 that keeps the given number of keys with the highest counts
+     */
+    public CountMinSketchAccumulator countMin(int heavyHitters) {
+        return new CountMinSketchAccumulator(CountMinSketchAccumulator.DEFAULT_EPSILON, CountMinSketchAccumulator.DEFAULT_DELTA,
+                heavyHitters);
+    }
+
+    public CountMinSketchAccumulator countMin(double epsilon, double delta, int heavyHitters) {
+        return new CountMinSketchAccumulator(epsilon, delta, heavyHitters);
+    }
+
+    /**
+     * Merges a list of accumulators of the same type into the first non-null accumulator in the list
+     */
+    public Accumulator merge(List<Object> accumulators) {
+        return mergeAll(accumulators);
+    }
+
+    private PagePool pagePool() {
+        if (pagePool == null) {
+            throw new ElasticSearchIllegalStateException("paged accumulators are not available");
+        }
+        return pagePool;
+    }
+
+    private <T extends Releasable> T created(T accumulator) {
+        synchronized (created) {
+            created.add(accumulator);
+        }
+        return accumulator;
+    }
+
+    /**
+     * Stops tracking paged and spilling accumulators found in the given value because they outlive the facet
+     * as a part of its result
+     */
+    public void detach(Object value) {
+        List<Releasable> found = new ArrayList<Releasable>();
+        findReleasable(value, found);
+        synchronized (created) {
+            for (Releasable accumulator : found) {
+                for (Iterator<Releasable> it = created.iterator(); it.hasNext(); ) {
+                    if (it.next() == accumulator) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all pages of tracked accumulators to the {@link PagePool} and deletes the files of tracked spilling accumulators
+     */
+    public void release() {
+        synchronized (created) {
+            for (Releasable accumulator : created) {
+                accumulator.release();
+            }
+            created.clear();
+        }
+    }
+
+    /**
+     * Releases the pages of paged accumulators and the files of spilling accumulators found in the given value
+     */
+    public static void release(Object value) {
+        List<Releasable> found = new ArrayList<Releasable>();
+        findReleasable(value, found);
+        for (Releasable accumulator : found) {
+            accumulator.release();
+        }
+    }
+
+    /**
+     * Releases paged and spilling accumulators found in the given values that are not a part of the given result
+     */
+    public static void releaseExcept(List<Object> values, Object result) {
+        List<Releasable> kept = new ArrayList<Releasable>();
+        findReleasable(result, kept);
+        List<Releasable> found = new ArrayList<Releasable>();
+        findReleasable(values, found);
+        for (Releasable accumulator : found) {
+            boolean isKept = false;
+            for (Releasable keptAccumulator : kept) {
+                if (keptAccumulator == accumulator) {
+                    isKept = true;
+                    break;
+                }
+            }
+            if (!isKept) {
+                accumulator.release();
+            }
+        }
+    }
+
+    /**
+     * Replaces paged accumulators found in the given value with copies on the heap and releases their pages.
+     * Maps and lists are changed in place.
+     *
+     * @return the value itself or its heap copy if the value is a paged accumulator
+     */
+    @SuppressWarnings("unchecked")
+    public static Object toHeap(Object value) {
+        if (value instanceof PagedAccumulator) {
+            PagedAccumulator accumulator = (PagedAccumulator) value;
+            Accumulator heap = accumulator.toHeap();
+            accumulator.release();
+            return heap;
+        } else if (value instanceof Map) {
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                Object heap = toHeap(entry.getValue());
+                if (heap != entry.getValue()) {
+                    entry.setValue(heap);
+                }
+            }
+        } else if (value instanceof List) {
+            for (ListIterator<Object> it = ((List<Object>) value).listIterator(); it.hasNext(); ) {
+                Object entry = it.next();
+                Object heap = toHeap(entry);
+                if (heap != entry) {
+                    it.set(heap);
+                }
+            }
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            for (int i = 0; i < array.length; i++) {
+                array[i] = toHeap(array[i]);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the value is or contains a paged accumulator
+     */
+    public static boolean containsPaged(Object value) {
+        List<Releasable> found = new ArrayList<Releasable>();
+        findReleasable(value, found);
+        for (Releasable accumulator : found) {
+            if (accumulator instanceof PagedAccumulator) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void findReleasable(Object value, List<Releasable> found) {
+        if (value instanceof PagedAccumulator || value instanceof SpillingStringLongMapAccumulator) {
+            found.add((Releasable) value);
+        } else if (value instanceof Map) {
+            for (Object entry : ((Map<?, ?>) value).values()) {
+                findReleasable(entry, found);
+            }
+        } else if (value instanceof Collection) {
+            for (Object entry : (Collection<?>) value) {
+                findReleasable(entry, found);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object entry : (Object[]) value) {
+                findReleasable(entry, found);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the list is not empty and contains only accumulators of the same type or nulls
+     */
+    public static boolean isMergeable(List<Object> values) {
+        int id = -1;
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            if (!(value instanceof Accumulator)) {
+                return false;
+            }
+            int valueId = ((Accumulator) value).id();
+            if (id >= 0 && id != valueId) {
+                return false;
+            }
+            id = valueId;
+        }
+        return id >= 0;
+    }
+
+    public static Accumulator mergeAll(List<Object> accumulators) {
+        Accumulator result = null;
+        for (Object accumulator : accumulators) {
+            if (accumulator == null) {
+                continue;
+            }
+            if (result == null) {
+                result = (Accumulator) accumulator;
+            } else {
+                result.merge((Accumulator) accumulator);
+            }
+        }
+        return result;
+    }
+
+    public static Accumulator readAccumulator(StreamInput in) throws IOException {
+        byte id = in.readByte();
+        Accumulator accumulator;
+        switch (id) {
+            case LongArrayAccumulator.ID:
+                accumulator = new LongArrayAccumulator();
+                break;
+            case DoubleArrayAccumulator.ID:
+                accumulator = new DoubleArrayAccumulator();
+                break;
+            case LongLongMapAccumulator.ID:
+                accumulator = new LongLongMapAccumulator();
+                break;
+            case StringLongMapAccumulator.ID:
+                accumulator = new StringLongMapAccumulator();
+                break;
+            case StatsAccumulator.ID:
+                accumulator = new StatsAccumulator();
+                break;
+            case StringStatsMapAccumulator.ID:
+                accumulator = new StringStatsMapAccumulator();
+                break;
+            case SpillingStringLongMapAccumulator.ID:
+                accumulator = new SpillingStringLongMapAccumulator();
+                break;
+            case HyperLogLogAccumulator.ID:
+                accumulator = new HyperLogLogAccumulator();
+                break;
+            case TDigestAccumulator.ID:
+                accumulator = new TDigestAccumulator();
+                break;
+            case CountMinSketchAccumulator.ID:
+                accumulator = new CountMinSketchAccumulator();
+                break;
+            default:
+                throw new ElasticSearchIllegalArgumentException("unknown accumulator type [" + id + "]");
+        }
+        accumulator.readFrom(in);
+        return accumulator;
+    }
+
+    /**
+     * Writes the accumulator, paged accumulators are written as their heap counterparts
+     */
+    public static void writeAccumulator(StreamOutput out, Accumulator accumulator) throws IOException {
+        out.writeByte(accumulator instanceof PagedAccumulator ? ((PagedAccumulator) accumulator).heapId() : accumulator.id());
+        accumulator.writeTo(out);
+    }
+
+    /**
+     * Writes a long using zig-zag encoded variable length format, small negative numbers take as little space
+     * as small positive numbers. Unlike {@link StreamOutput#writeVLong(long)} supports the full range of longs.
+     */
+    public static void writeZLong(StreamOutput out, long value) throws IOException {
+        long bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out.writeByte((byte) ((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        out.writeByte((byte) bits);
+    }
+
+    /**
+     * Selects the <code>n</code> largest of the given values with a bounded min-heap, so only <code>n</code>
+     * values are kept ordered no matter how many values there are
+     *
+     * @return heap of the largest values, the first element is the smallest of them
+     */
+    public static long[] largest(long[] values, int n) {
+        long[] heap = new long[n];
+        int size = 0;
+        for (long value : values) {
+            if (size < n) {
+                // sift up
+                int i = size++;
+                while (i > 0 && heap[(i - 1) >>> 1] > value) {
+                    heap[i] = heap[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                heap[i] = value;
+            } else if (value > heap[0]) {
+                // replace the smallest value and sift down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= n) {
+                        break;
+                    }
+                    if (child + 1 < n && heap[child + 1] < heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] >= value) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = value;
+            }
+        }
+        if (size < n) {
+            long[] result = new long[size];
+            System.arraycopy(heap, 0, result, 0, size);
+            return result;
+        }
+        return heap;
+    }
+
+    /**
+     * Estimated heap size of a string including its char array
+     */
+    public static long sizeInBytes(String value) {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 3 * RamUsageEstimator.NUM_BYTES_INT
+                + RamUsageEstimator.NUM_BYTES_OBJECT_REF)
+                + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                + (long) RamUsageEstimator.NUM_BYTES_CHAR * value.length());
+    }
+
+    public static long readZLong(StreamInput in) throws IOException {
+        long bits = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            bits |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+}
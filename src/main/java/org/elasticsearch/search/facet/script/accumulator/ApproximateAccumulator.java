@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+/**
+ * Accumulator that can give up exact results to reduce the memory it uses. Entries with the lowest values are
+ * dropped, and the accumulator keeps track of how much any value might be underestimated because of that.
+ */
+public interface ApproximateAccumulator extends Accumulator {
+
+    /**
+     * Number of entries
+     */
+    int size();
+
+    /**
+     * Removes the entries with the lowest values, so at most <code>size</code> entries are left
+     */
+    void prune(int size);
+
+    /**
+     * Upper bound of the amount by which any value, including values of keys that are missing, can be lower
+     * than the exact value. 0 if the accumulator was never pruned.
+     */
+    long error();
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.iterator.TObjectLongIterator;
+import org.elasticsearch.common.trove.map.hash.TObjectLongHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Count-min sketch of string keys. Estimates never underestimate, and with probability <code>1 - delta</code>
+ * overestimate by at most <code>epsilon</code> times the total count. The sketch uses <code>depth * width</code>
+ * counters, where <code>width = e / epsilon</code> and <code>depth = ln(1 / delta)</code>, no matter how many
+ * distinct keys are added.
+ * <p/>
+ * If created with a positive number of heavy hitters, the sketch also keeps that many keys with the highest
+ * estimated counts, which are re-estimated when sketches are merged.
+ */
+public class CountMinSketchAccumulator implements Accumulator {
+
+    public static final byte ID = 9;
+
+    public static final double DEFAULT_EPSILON = 0.001;
+
+    public static final double DEFAULT_DELTA = 0.01;
+
+    private int depth;
+
+    private int width;
+
+    private long[] counts;
+
+    private long total;
+
+    private int heavyHitters;
+
+    // candidate heavy hitters with their estimated counts, up to twice the number of heavy hitters
+    private TObjectLongHashMap<String> candidates;
+
+    CountMinSketchAccumulator() {
+    }
+
+    public CountMinSketchAccumulator(double epsilon, double delta, int heavyHitters) {
+        if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1) {
+            throw new ElasticSearchIllegalArgumentException("epsilon and delta should be between 0 and 1");
+        }
+        if (heavyHitters < 0) {
+            throw new ElasticSearchIllegalArgumentException("number of heavy hitters should not be negative");
+        }
+        init((int) Math.ceil(Math.log(1 / delta)), (int) Math.ceil(Math.E / epsilon), heavyHitters);
+    }
+
+    private void init(int depth, int width, int heavyHitters) {
+        this.depth = depth;
+        this.width = width;
+        this.counts = new long[depth * width];
+        this.heavyHitters = heavyHitters;
+        if (heavyHitters > 0) {
+            this.candidates = new TObjectLongHashMap<String>();
+        }
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Sum of all added counts
+     */
+    public long total() {
+        return total;
+    }
+
+    public long add(String key) {
+        return add(key, 1);
+    }
+
+    public long add(long key) {
+        return add(Long.toString(key), 1);
+    }
+
+    /**
+     * Adds the count to the key
+     *
+     * @return the new estimated count of the key
+     */
+    public long add(String key, long count) {
+        if (count < 0) {
+            throw new ElasticSearchIllegalArgumentException("count-min sketch doesn't support negative counts");
+        }
+        long hash = SketchHashing.hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = i * width + bucket(h1, h2, i);
+            counts[index] += count;
+            estimate = Math.min(estimate, counts[index]);
+        }
+        total += count;
+        if (candidates != null) {
+            offer(key, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimated count of the key
+     */
+    public long estimate(String key) {
+        long hash = SketchHashing.hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, counts[i * width + bucket(h1, h2, i)]);
+        }
+        return estimate;
+    }
+
+    public long estimate(long key) {
+        return estimate(Long.toString(key));
+    }
+
+    private int bucket(int h1, int h2, int row) {
+        // double hashing, see Kirsch and Mitzenmacher, "Less hashing, same performance"
+        int combined = h1 + row * h2;
+        return (combined & Integer.MAX_VALUE) % width;
+    }
+
+    private void offer(String key, long estimate) {
+        if (candidates.containsKey(key) || candidates.size() < 2 * heavyHitters) {
+            candidates.put(key, estimate);
+            return;
+        }
+        // the candidate list is full, it is trimmed to the heavy hitters once the new key is good enough
+        candidates.put(key, estimate);
+        trimCandidates(heavyHitters);
+    }
+
+    private void trimCandidates(int size) {
+        if (candidates.size() <= size) {
+            return;
+        }
+        long[] top = Accumulators.largest(candidates.values(), size);
+        final long threshold = top[0];
+        int above = 0;
+        for (long value : top) {
+            if (value > threshold) {
+                above++;
+            }
+        }
+        int ties = size - above;
+        TObjectLongHashMap<String> trimmed = new TObjectLongHashMap<String>(2 * heavyHitters);
+        for (TObjectLongIterator<String> it = candidates.iterator(); it.hasNext(); ) {
+            it.advance();
+            if (it.value() > threshold || (it.value() == threshold && ties-- > 0)) {
+                trimmed.put(it.key(), it.value());
+            }
+        }
+        candidates = trimmed;
+    }
+
+    /**
+     * Keys with the highest estimated counts, empty if the sketch doesn't keep heavy hitters
+     */
+    public StringLongMapAccumulator heavyHitters() {
+        StringLongMapAccumulator result = new StringLongMapAccumulator();
+        if (candidates != null) {
+            trimCandidates(heavyHitters);
+            for (TObjectLongIterator<String> it = candidates.iterator(); it.hasNext(); ) {
+                it.advance();
+                result.put(it.key(), it.value());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        CountMinSketchAccumulator that = (CountMinSketchAccumulator) other;
+        if (that.depth != depth || that.width != width) {
+            throw new ElasticSearchIllegalArgumentException("cannot merge count-min sketches of different sizes");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += that.counts[i];
+        }
+        total += that.total;
+        if (candidates != null && that.candidates != null) {
+            for (TObjectLongIterator<String> it = that.candidates.iterator(); it.hasNext(); ) {
+                it.advance();
+                candidates.put(it.key(), 0);
+            }
+            // counts of keys from both sketches changed
+            for (TObjectLongIterator<String> it = candidates.iterator(); it.hasNext(); ) {
+                it.advance();
+                it.setValue(estimate(it.key()));
+            }
+            trimCandidates(2 * heavyHitters);
+        }
+    }
+
+    @Override
+    public long sizeInBytes() {
+        long size = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_LONG)
+                + RamUsageEstimator.sizeOf(counts);
+        if (candidates != null) {
+            size += (long) candidates.capacity() * (RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_LONG);
+            for (TObjectLongIterator<String> it = candidates.iterator(); it.hasNext(); ) {
+                it.advance();
+                size += Accumulators.sizeInBytes(it.key());
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        init(in.readVInt(), in.readVInt(), in.readVInt());
+        total = in.readVLong();
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readVLong();
+        }
+        if (candidates != null) {
+            int size = in.readVInt();
+            for (int i = 0; i < size; i++) {
+                String key = in.readString();
+                candidates.put(key, estimate(key));
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(depth);
+        out.writeVInt(width);
+        out.writeVInt(heavyHitters);
+        out.writeVLong(total);
+        for (long count : counts) {
+            out.writeVLong(count);
+        }
+        if (candidates != null) {
+            // estimates are recomputed from the counters
+            out.writeVInt(candidates.size());
+            for (TObjectLongIterator<String> it = candidates.iterator(); it.hasNext(); ) {
+                it.advance();
+                out.writeString(it.key());
+            }
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString TOTAL = new XContentBuilderString("total");
+        static final XContentBuilderString HEAVY_HITTERS = new XContentBuilderString("heavy_hitters");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(Fields.TOTAL, total);
+        if (candidates != null) {
+            builder.field(Fields.HEAVY_HITTERS);
+            heavyHitters().toXContent(builder, params);
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.iterator.TIntIntIterator;
+import org.elasticsearch.common.trove.map.hash.TIntIntHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct values with HyperLogLog++: values are hashed to 64 bits, small cardinalities
+ * are kept in a sparse representation with a higher precision and estimated with linear counting, and the
+ * sparse representation is replaced with <code>2^precision</code> registers once it would use more memory.
+ * The relative error of the estimate is about <code>1.04 / sqrt(2^precision)</code>. Sketches can only be
+ * merged with sketches of the same precision.
+ */
+public class HyperLogLogAccumulator implements Accumulator {
+
+    public static final byte ID = 7;
+
+    public static final int DEFAULT_PRECISION = 14;
+
+    public static final int MIN_PRECISION = 4;
+
+    public static final int MAX_PRECISION = 18;
+
+    // precision of the sparse representation
+    private static final int SPARSE_PRECISION = 25;
+
+    private int precision;
+
+    // number of registers
+    private int m;
+
+    // index of the sparse precision to its rank, null once the sketch is dense
+    private TIntIntHashMap sparse;
+
+    private byte[] registers;
+
+    HyperLogLogAccumulator() {
+    }
+
+    public HyperLogLogAccumulator(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new ElasticSearchIllegalArgumentException("precision should be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+        init(precision);
+        this.sparse = new TIntIntHashMap();
+    }
+
+    private void init(int precision) {
+        this.precision = precision;
+        this.m = 1 << precision;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int precision() {
+        return precision;
+    }
+
+    public void add(String value) {
+        addHash(SketchHashing.hash(value));
+    }
+
+    public void add(long value) {
+        addHash(SketchHashing.hash(value));
+    }
+
+    public void add(double value) {
+        addHash(SketchHashing.hash(value));
+    }
+
+    private void addHash(long hash) {
+        if (sparse != null) {
+            int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+            int rank = rank(hash, SPARSE_PRECISION);
+            if (rank > sparse.get(index)) {
+                sparse.put(index, rank);
+                if (sparse.size() > sparseLimit()) {
+                    toDense();
+                }
+            }
+        } else {
+            int index = (int) (hash >>> (64 - precision));
+            int rank = rank(hash, precision);
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+    }
+
+    /**
+     * Position of the first set bit after the index bits, bounded by the number of remaining bits + 1
+     */
+    private static int rank(long hash, int precision) {
+        return Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    }
+
+    private int sparseLimit() {
+        // an entry of the sparse map takes about 16 bytes, a register takes 1 byte
+        return m / 16;
+    }
+
+    private void toDense() {
+        registers = new byte[m];
+        for (TIntIntIterator it = sparse.iterator(); it.hasNext(); ) {
+            it.advance();
+            addSparse(it.key(), it.value());
+        }
+        sparse = null;
+    }
+
+    /**
+     * Adds an entry of the sparse representation to the registers
+     */
+    private void addSparse(int sparseIndex, int sparseRank) {
+        int extraBits = SPARSE_PRECISION - precision;
+        int index = sparseIndex >>> extraBits;
+        int low = sparseIndex & ((1 << extraBits) - 1);
+        int rank;
+        if (low != 0) {
+            rank = Integer.numberOfLeadingZeros(low) - (32 - extraBits) + 1;
+        } else {
+            rank = extraBits + sparseRank;
+        }
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Estimated number of distinct values
+     */
+    public long cardinality() {
+        if (sparse != null) {
+            return Math.round(linearCounting(1 << SPARSE_PRECISION, (1 << SPARSE_PRECISION) - sparse.size()));
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = linearCounting(m, zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    private static double linearCounting(int m, int zeros) {
+        return m * Math.log((double) m / zeros);
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        HyperLogLogAccumulator that = (HyperLogLogAccumulator) other;
+        if (that.precision != precision) {
+            throw new ElasticSearchIllegalArgumentException("cannot merge HyperLogLog sketches with precision [" + precision
+                    + "] and [" + that.precision + "]");
+        }
+        if (sparse != null && that.sparse != null) {
+            for (TIntIntIterator it = that.sparse.iterator(); it.hasNext(); ) {
+                it.advance();
+                if (it.value() > sparse.get(it.key())) {
+                    sparse.put(it.key(), it.value());
+                }
+            }
+            if (sparse.size() > sparseLimit()) {
+                toDense();
+            }
+            return;
+        }
+        if (sparse != null) {
+            toDense();
+        }
+        if (that.sparse != null) {
+            for (TIntIntIterator it = that.sparse.iterator(); it.hasNext(); ) {
+                it.advance();
+                addSparse(it.key(), it.value());
+            }
+        } else {
+            for (int i = 0; i < m; i++) {
+                if (that.registers[i] > registers[i]) {
+                    registers[i] = that.registers[i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public long sizeInBytes() {
+        if (sparse != null) {
+            return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + (long) sparse.capacity() * (2 * RamUsageEstimator.NUM_BYTES_INT + 1);
+        }
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(registers);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        init(in.readByte());
+        if (in.readBoolean()) {
+            int size = in.readVInt();
+            sparse = new TIntIntHashMap(size);
+            int encoded = 0;
+            for (int i = 0; i < size; i++) {
+                encoded += in.readVInt();
+                sparse.put(encoded >>> 6, encoded & 0x3F);
+            }
+        } else {
+            // 4 registers of 6 bits in 3 bytes
+            registers = new byte[m];
+            for (int i = 0; i < m; i += 4) {
+                int packed = (in.readByte() & 0xFF) << 16 | (in.readByte() & 0xFF) << 8 | (in.readByte() & 0xFF);
+                registers[i] = (byte) (packed >>> 18);
+                registers[i + 1] = (byte) ((packed >>> 12) & 0x3F);
+                registers[i + 2] = (byte) ((packed >>> 6) & 0x3F);
+                registers[i + 3] = (byte) (packed & 0x3F);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeByte((byte) precision);
+        if (sparse != null) {
+            out.writeBoolean(true);
+            // sorted entries are delta encoded
+            int[] encoded = new int[sparse.size()];
+            int i = 0;
+            for (TIntIntIterator it = sparse.iterator(); it.hasNext(); ) {
+                it.advance();
+                encoded[i++] = it.key() << 6 | it.value();
+            }
+            Arrays.sort(encoded);
+            out.writeVInt(encoded.length);
+            int previous = 0;
+            for (int value : encoded) {
+                out.writeVInt(value - previous);
+                previous = value;
+            }
+        } else {
+            out.writeBoolean(false);
+            for (int i = 0; i < m; i += 4) {
+                int packed = registers[i] << 18 | registers[i + 1] << 12 | registers[i + 2] << 6 | registers[i + 3];
+                out.writeByte((byte) (packed >>> 16));
+                out.writeByte((byte) (packed >>> 8));
+                out.writeByte((byte) packed);
+            }
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString CARDINALITY = new XContentBuilderString("cardinality");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(Fields.CARDINALITY, cardinality());
+        builder.endObject();
+        return builder;
+    }
+}
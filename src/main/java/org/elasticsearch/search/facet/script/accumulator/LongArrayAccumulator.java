@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Growable array of longs. Writing past the end of the array grows it, missing elements are 0.
+ */
+public class LongArrayAccumulator implements Accumulator {
+
+    public static final byte ID = 0;
+
+    private long[] values;
+
+    private int size;
+
+    LongArrayAccumulator() {
+        this(0);
+    }
+
+    public LongArrayAccumulator(int size) {
+        this.values = new long[size];
+        this.size = size;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(int index) {
+        return index < size ? values[index] : 0;
+    }
+
+    public void set(int index, long value) {
+        ensureCapacity(index);
+        values[index] = value;
+    }
+
+    public long add(int index, long delta) {
+        ensureCapacity(index);
+        return values[index] += delta;
+    }
+
+    public long inc(int index) {
+        return add(index, 1);
+    }
+
+    /**
+     * Appends the value to the end of the array
+     */
+    public void push(long value) {
+        set(size, value);
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        System.arraycopy(values, 0, result, 0, size);
+        return result;
+    }
+
+    private void ensureCapacity(int index) {
+        if (index >= values.length) {
+            values = ArrayUtil.grow(values, index + 1);
+        }
+        if (index >= size) {
+            size = index + 1;
+        }
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        LongArrayAccumulator that = (LongArrayAccumulator) other;
+        if (that.size > 0) {
+            ensureCapacity(that.size - 1);
+        }
+        for (int i = 0; i < that.size; i++) {
+            values[i] += that.values[i];
+        }
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(values);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        size = in.readVInt();
+        values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = Accumulators.readZLong(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(size);
+        for (int i = 0; i < size; i++) {
+            Accumulators.writeZLong(out, values[i]);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray();
+        for (int i = 0; i < size; i++) {
+            builder.value(values[i]);
+        }
+        builder.endArray();
+        return builder;
+    }
+}
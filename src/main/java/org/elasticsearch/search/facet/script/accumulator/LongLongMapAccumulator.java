@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.iterator.TLongLongIterator;
+import org.elasticsearch.common.trove.map.hash.TLongLongHashMap;
+import org.elasticsearch.common.trove.procedure.TLongLongProcedure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Hash map of long keys to long values. Missing keys have value 0.
+ * Can be pruned to the keys with the highest values, see {@link ApproximateAccumulator}.
+ */
+public class LongLongMapAccumulator implements ApproximateAccumulator {
+
+    public static final byte ID = 2;
+
+    private TLongLongHashMap map;
+
+    private long error;
+
+    public LongLongMapAccumulator() {
+        this.map = new TLongLongHashMap();
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean containsKey(long key) {
+        return map.containsKey(key);
+    }
+
+    public long get(long key) {
+        return map.get(key);
+    }
+
+    public void put(long key, long value) {
+        map.put(key, value);
+    }
+
+    public long add(long key, long delta) {
+        return map.adjustOrPutValue(key, delta, delta);
+    }
+
+    public long inc(long key) {
+        return add(key, 1);
+    }
+
+    public TLongLongIterator iterator() {
+        return map.iterator();
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        LongLongMapAccumulator that = (LongLongMapAccumulator) other;
+        error += that.error;
+        if (map.isEmpty() && that.map.size() > 0) {
+            map = that.map;
+            return;
+        }
+        for (TLongLongIterator it = that.map.iterator(); it.hasNext(); ) {
+            it.advance();
+            map.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+    }
+
+    @Override
+    public void prune(int size) {
+        if (map.size() <= size) {
+            return;
+        }
+        long[] top = Accumulators.largest(map.values(), size + 1);
+        // the largest removed value, entries with the same value are kept only while there is room for them
+        final long threshold = top[0];
+        int above = 0;
+        for (long value : top) {
+            if (value > threshold) {
+                above++;
+            }
+        }
+        final int[] ties = {size - above};
+        map.retainEntries(new TLongLongProcedure() {
+            @Override
+            public boolean execute(long key, long value) {
+                if (value > threshold) {
+                    return true;
+                }
+                if (value == threshold && ties[0] > 0) {
+                    ties[0]--;
+                    return true;
+                }
+                return false;
+            }
+        });
+        map.compact();
+        error += threshold;
+    }
+
+    @Override
+    public long error() {
+        return error;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                + (long) map.capacity() * (2 * RamUsageEstimator.NUM_BYTES_LONG + RamUsageEstimator.NUM_BYTES_BYTE);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        error = in.readVLong();
+        int size = in.readVInt();
+        map = new TLongLongHashMap(size);
+        for (int i = 0; i < size; i++) {
+            map.put(Accumulators.readZLong(in), Accumulators.readZLong(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(error);
+        out.writeVInt(map.size());
+        for (TLongLongIterator it = map.iterator(); it.hasNext(); ) {
+            it.advance();
+            Accumulators.writeZLong(out, it.key());
+            Accumulators.writeZLong(out, it.value());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        for (TLongLongIterator it = map.iterator(); it.hasNext(); ) {
+            it.advance();
+            builder.field(Long.toString(it.key()), it.value());
+        }
+        builder.endObject();
+        return builder;
+    }
+}
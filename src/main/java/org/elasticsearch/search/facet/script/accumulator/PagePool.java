@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size pages of direct memory that back paged accumulators of a node. Pages are returned to the pool
+ * explicitly: by the facet when it finishes or fails, by shard results after they are serialized and by the reduce.
+ * Up to <code>maxPooledBytes</code> of free pages are kept for reuse, and no more than <code>limit</code> bytes of pages
+ * can be held by accumulators at the same time. Pages of accumulators that were garbage collected without being
+ * released (for example results of local shards that were dropped before the reduce) are only reclaimed as a last
+ * resort and counted, so leaks show up in the statistics.
+ */
+public final class PagePool {
+
+    public static final int PAGE_SIZE = 16 * 1024;
+
+    private final long maxPooledBytes;
+
+    private final long limit;
+
+    private final Queue<ByteBuffer> pool = ConcurrentCollections.newQueue();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong collected = new AtomicLong();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private final Set<PagesReference> references = ConcurrentCollections.newConcurrentSet();
+
+    /**
+     * @param maxPooledBytes maximum size of free pages kept for reuse, pages above that are left to the garbage collector
+     * @param limit          maximum size of pages held by accumulators, not limited if negative
+     */
+    public PagePool(long maxPooledBytes, long limit) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.limit = limit;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    /**
+     * Bytes of pages that are held by accumulators
+     */
+    public long usedBytes() {
+        releaseCollected();
+        return usedBytes.get();
+    }
+
+    /**
+     * Bytes of free pages kept for reuse
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of pages that had to be allocated because the pool was empty
+     */
+    public long allocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Number of pages that were returned after their accumulator was garbage collected without being released
+     */
+    public long collected() {
+        return collected.get();
+    }
+
+    /**
+     * Creates an empty set of pages for the given accumulator
+     */
+    Pages pages(Object owner) {
+        Pages pages = new Pages(this);
+        pages.reference = new PagesReference(owner, pages, queue);
+        references.add(pages.reference);
+        return pages;
+    }
+
+    private ByteBuffer acquire() {
+        releaseCollected();
+        long used = usedBytes.addAndGet(PAGE_SIZE);
+        if (limit >= 0 && used > limit) {
+            usedBytes.addAndGet(-PAGE_SIZE);
+            throw new ElasticSearchException("paged accumulators on the node would use [" + new ByteSizeValue(used)
+                    + "] of direct memory, which exceeds the limit of [" + new ByteSizeValue(limit) + "]");
+        }
+        ByteBuffer page = pool.poll();
+        if (page == null) {
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(PAGE_SIZE).order(ByteOrder.nativeOrder());
+        }
+        pooledBytes.addAndGet(-PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i += 8) {
+            page.putLong(i, 0);
+        }
+        return page;
+    }
+
+    private void release(ByteBuffer page) {
+        usedBytes.addAndGet(-PAGE_SIZE);
+        if (pooledBytes.get() < maxPooledBytes) {
+            pooledBytes.addAndGet(PAGE_SIZE);
+            pool.offer(page);
+        }
+    }
+
+    private void releaseCollected() {
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            Pages pages = ((PagesReference) reference).pages;
+            collected.addAndGet(pages.count);
+            pages.release();
+        }
+    }
+
+    /**
+     * Growable list of pages viewed as longs, all pages are zeroed when acquired
+     */
+    static final class Pages {
+
+        // 2048 longs per page
+        static final int PAGE_SHIFT = 11;
+
+        static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+        private ByteBuffer[] buffers = new ByteBuffer[0];
+
+        private LongBuffer[] longs = new LongBuffer[0];
+
+        private int count;
+
+        private final PagePool pool;
+
+        private PagesReference reference;
+
+        private Pages(PagePool pool) {
+            this.pool = pool;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Number of longs that fit into the acquired pages
+         */
+        long capacity() {
+            return (long) count << PAGE_SHIFT;
+        }
+
+        long get(long index) {
+            return longs[(int) (index >>> PAGE_SHIFT)].get((int) (index & PAGE_MASK));
+        }
+
+        void set(long index, long value) {
+            longs[(int) (index >>> PAGE_SHIFT)].put((int) (index & PAGE_MASK), value);
+        }
+
+        long add(long index, long delta) {
+            LongBuffer page = longs[(int) (index >>> PAGE_SHIFT)];
+            int offset = (int) (index & PAGE_MASK);
+            long value = page.get(offset) + delta;
+            page.put(offset, value);
+            return value;
+        }
+
+        /**
+         * Acquires pages until at least <code>size</code> longs fit into them
+         */
+        void ensureCapacity(long size) {
+            grow((int) ((size + PAGE_MASK) >>> PAGE_SHIFT));
+        }
+
+        /**
+         * Acquires pages until there are at least <code>count</code> of them
+         */
+        void grow(int count) {
+            if (count <= this.count) {
+                return;
+            }
+            if (count > buffers.length) {
+                int length = Math.max(count, buffers.length + (buffers.length >> 1));
+                ByteBuffer[] newBuffers = new ByteBuffer[length];
+                System.arraycopy(buffers, 0, newBuffers, 0, this.count);
+                buffers = newBuffers;
+                LongBuffer[] newLongs = new LongBuffer[length];
+                System.arraycopy(longs, 0, newLongs, 0, this.count);
+                longs = newLongs;
+            }
+            while (this.count < count) {
+                buffers[this.count] = pool.acquire();
+                longs[this.count] = buffers[this.count].asLongBuffer();
+                this.count++;
+            }
+        }
+
+        /**
+         * Returns all pages to the pool, can be called more than once
+         */
+        synchronized void release() {
+            for (int i = 0; i < count; i++) {
+                pool.release(buffers[i]);
+                buffers[i] = null;
+                longs[i] = null;
+            }
+            count = 0;
+            if (reference != null) {
+                pool.references.remove(reference);
+                reference.clear();
+                reference = null;
+            }
+        }
+    }
+
+    private static class PagesReference extends PhantomReference<Object> {
+
+        private final Pages pages;
+
+        PagesReference(Object owner, Pages pages, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.pages = pages;
+        }
+    }
+}
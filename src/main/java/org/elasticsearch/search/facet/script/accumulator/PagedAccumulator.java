@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.elasticsearch.common.lease.Releasable;
+
+/**
+ * Accumulator that keeps its values in pages of direct memory from the node's {@link PagePool} instead of on the heap.
+ * Paged accumulators are written in the format of their heap counterpart, so shard results arrive at the reducing node
+ * as heap accumulators. Accumulators created by a facet are released when the facet finishes or fails, after its
+ * result is written or when it is reduced and must not be used after that.
+ */
+public interface PagedAccumulator extends Accumulator, Releasable {
+
+    /**
+     * Id of the heap accumulator this accumulator is written as
+     */
+    byte heapId();
+
+    /**
+     * Copies the values into a new heap accumulator of the type returned by {@link #heapId()}
+     */
+    Accumulator toHeap();
+
+    /**
+     * Number of bytes of direct memory held by the accumulator
+     */
+    long offHeapBytes();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalStateException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Growable array of longs in direct memory, see {@link LongArrayAccumulator}.
+ */
+public class PagedLongArrayAccumulator implements PagedAccumulator {
+
+    public static final byte ID = 10;
+
+    private final PagePool.Pages pages;
+
+    private long size;
+
+    public PagedLongArrayAccumulator(PagePool pool, long size) {
+        this.pages = pool.pages(this);
+        ensureCapacity(size - 1);
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte heapId() {
+        return LongArrayAccumulator.ID;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long get(long index) {
+        return index < size ? pages.get(index) : 0;
+    }
+
+    public void set(long index, long value) {
+        ensureCapacity(index);
+        pages.set(index, value);
+    }
+
+    public long add(long index, long delta) {
+        ensureCapacity(index);
+        return pages.add(index, delta);
+    }
+
+    public long inc(long index) {
+        return add(index, 1);
+    }
+
+    /**
+     * Appends the value to the end of the array
+     */
+    public void push(long value) {
+        set(size, value);
+    }
+
+    public long[] toArray() {
+        long[] result = new long[(int) size];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pages.get(i);
+        }
+        return result;
+    }
+
+    private void ensureCapacity(long index) {
+        if (index >= size) {
+            pages.ensureCapacity(index + 1);
+            size = index + 1;
+        }
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        PagedLongArrayAccumulator that = (PagedLongArrayAccumulator) other;
+        ensureCapacity(that.size - 1);
+        for (long i = 0; i < that.size; i++) {
+            pages.add(i, that.pages.get(i));
+        }
+    }
+
+    @Override
+    public LongArrayAccumulator toHeap() {
+        LongArrayAccumulator heap = new LongArrayAccumulator(heapSize());
+        for (int i = 0; i < heap.size(); i++) {
+            heap.set(i, pages.get(i));
+        }
+        return heap;
+    }
+
+    private int heapSize() {
+        if (size > Integer.MAX_VALUE) {
+            throw new ElasticSearchIllegalStateException("array of [" + size + "] elements is too large to be sent");
+        }
+        return (int) size;
+    }
+
+    @Override
+    public boolean release() {
+        pages.release();
+        size = 0;
+        return true;
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return (long) pages.count() * PagePool.PAGE_SIZE;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + (long) pages.count() * 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        ensureCapacity(size - 1);
+        for (int i = 0; i < size; i++) {
+            pages.set(i, Accumulators.readZLong(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        int size = heapSize();
+        out.writeVInt(size);
+        for (int i = 0; i < size; i++) {
+            Accumulators.writeZLong(out, pages.get(i));
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray();
+        for (long i = 0; i < size; i++) {
+            builder.value(pages.get(i));
+        }
+        builder.endArray();
+        return builder;
+    }
+}
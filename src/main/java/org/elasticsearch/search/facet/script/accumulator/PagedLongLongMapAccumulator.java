@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalStateException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Hash map of long keys to long values in direct memory. Missing keys have value 0.
+ * Entries are kept in an open addressing table with linear probing where every slot is a key followed by its value,
+ * so a lookup usually touches a single cache line. Key 0 marks empty slots and is kept outside of the table.
+ */
+public class PagedLongLongMapAccumulator implements PagedAccumulator {
+
+    public static final byte ID = 12;
+
+    // one page of slots
+    private static final int MIN_CAPACITY = PagePool.PAGE_SIZE / 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final PagePool pool;
+
+    private PagePool.Pages pages;
+
+    // number of slots, always a power of two
+    private long capacity;
+
+    private long size;
+
+    private boolean hasZeroKey;
+
+    private long zeroValue;
+
+    public PagedLongLongMapAccumulator(PagePool pool) {
+        this.pool = pool;
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte heapId() {
+        return LongLongMapAccumulator.ID;
+    }
+
+    public long size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return pages.get(slot(key) << 1) != 0;
+    }
+
+    public long get(long key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+        long slot = slot(key);
+        return pages.get(slot << 1) != 0 ? pages.get((slot << 1) + 1) : 0;
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        long slot = insert(key);
+        pages.set((slot << 1) + 1, value);
+    }
+
+    public long add(long key, long delta) {
+        if (key == 0) {
+            hasZeroKey = true;
+            return zeroValue += delta;
+        }
+        long slot = insert(key);
+        return pages.add((slot << 1) + 1, delta);
+    }
+
+    public long inc(long key) {
+        return add(key, 1);
+    }
+
+    /**
+     * Slot of the key or the empty slot where it belongs
+     */
+    private long slot(long key) {
+        long mask = capacity - 1;
+        long slot = SketchHashing.fmix(key) & mask;
+        while (true) {
+            long current = pages.get(slot << 1);
+            if (current == key || current == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Slot of the key, adds the key with value 0 if it is missing
+     */
+    private long insert(long key) {
+        long slot = slot(key);
+        if (pages.get(slot << 1) == 0) {
+            if (size + 1 > capacity * LOAD_FACTOR) {
+                rehash(capacity << 1);
+                slot = slot(key);
+            }
+            pages.set(slot << 1, key);
+            size++;
+        }
+        return slot;
+    }
+
+    private void allocate(long capacity) {
+        this.capacity = capacity;
+        this.pages = pool.pages(this);
+        pages.ensureCapacity(capacity << 1);
+    }
+
+    private void rehash(long newCapacity) {
+        PagePool.Pages oldPages = pages;
+        long oldCapacity = capacity;
+        allocate(newCapacity);
+        for (long i = 0; i < oldCapacity; i++) {
+            long key = oldPages.get(i << 1);
+            if (key != 0) {
+                long slot = slot(key);
+                pages.set(slot << 1, key);
+                pages.set((slot << 1) + 1, oldPages.get((i << 1) + 1));
+            }
+        }
+        oldPages.release();
+    }
+
+    /**
+     * Iterates over all entries in no particular order
+     */
+    public EntryIterator iterator() {
+        return new EntryIterator();
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        PagedLongLongMapAccumulator that = (PagedLongLongMapAccumulator) other;
+        for (EntryIterator it = that.iterator(); it.hasNext(); ) {
+            it.advance();
+            add(it.key(), it.value());
+        }
+    }
+
+    @Override
+    public LongLongMapAccumulator toHeap() {
+        heapSize();
+        LongLongMapAccumulator heap = new LongLongMapAccumulator();
+        for (EntryIterator it = iterator(); it.hasNext(); ) {
+            it.advance();
+            heap.put(it.key(), it.value());
+        }
+        return heap;
+    }
+
+    private int heapSize() {
+        long size = size();
+        if (size > Integer.MAX_VALUE) {
+            throw new ElasticSearchIllegalStateException("map of [" + size + "] entries is too large to be sent");
+        }
+        return (int) size;
+    }
+
+    @Override
+    public boolean release() {
+        pages.release();
+        capacity = 0;
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = 0;
+        return true;
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return (long) pages.count() * PagePool.PAGE_SIZE;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + (long) pages.count() * 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        // error of the heap counterpart, always 0 because paged maps are never pruned
+        in.readVLong();
+        int size = in.readVInt();
+        long capacity = MIN_CAPACITY;
+        while (size > capacity * LOAD_FACTOR) {
+            capacity <<= 1;
+        }
+        if (capacity > this.capacity) {
+            pages.release();
+            allocate(capacity);
+        }
+        for (int i = 0; i < size; i++) {
+            put(Accumulators.readZLong(in), Accumulators.readZLong(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(0);
+        out.writeVInt(heapSize());
+        for (EntryIterator it = iterator(); it.hasNext(); ) {
+            it.advance();
+            Accumulators.writeZLong(out, it.key());
+            Accumulators.writeZLong(out, it.value());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        for (EntryIterator it = iterator(); it.hasNext(); ) {
+            it.advance();
+            builder.field(Long.toString(it.key()), it.value());
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * EntryIterator over the entries of the map in the style of trove iterators
+     */
+    public class EntryIterator {
+
+        // -1 is the zero key
+        private long slot = hasZeroKey ? -2 : -1;
+
+        private long next;
+
+        private EntryIterator() {
+            next = findNext(slot);
+        }
+
+        public boolean hasNext() {
+            return next < capacity;
+        }
+
+        public void advance() {
+            slot = next;
+            next = findNext(slot);
+        }
+
+        public long key() {
+            return slot < 0 ? 0 : pages.get(slot << 1);
+        }
+
+        public long value() {
+            return slot < 0 ? zeroValue : pages.get((slot << 1) + 1);
+        }
+
+        private long findNext(long from) {
+            long i = from + 1;
+            if (i < 0) {
+                return i;
+            }
+            while (i < capacity && pages.get(i << 1) == 0) {
+                i++;
+            }
+            return i;
+        }
+    }
+}
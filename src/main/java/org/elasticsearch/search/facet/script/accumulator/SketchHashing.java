@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+/**
+ * 64 bit hashes of values added to sketches. Hashes have to be the same on every node, since sketches
+ * built on different shards are merged.
+ */
+final class SketchHashing {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private SketchHashing() {
+    }
+
+    /**
+     * First half of MurmurHash3 x64 128 of the UTF-16 code units of the string
+     */
+    static long hash(String value) {
+        int length = value.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k1 = chars(value, i, 4);
+            long k2 = chars(value, i + 4, 4);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int remaining = length - i;
+        if (remaining > 4) {
+            h2 ^= mixK2(chars(value, i + 4, remaining - 4));
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(chars(value, i, Math.min(remaining, 4)));
+        }
+        h1 ^= length * 2;
+        h2 ^= length * 2;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    static long hash(long value) {
+        return fmix(value + 0x9e3779b97f4a7c15L);
+    }
+
+    static long hash(double value) {
+        // -0.0 and 0.0 are the same value
+        return hash(Double.doubleToLongBits(value == 0.0 ? 0.0 : value));
+    }
+
+    private static long chars(String value, int offset, int count) {
+        long k = 0;
+        for (int i = 0; i < count; i++) {
+            k |= (long) value.charAt(offset + i) << (16 * i);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    /**
+     * Finalization step of MurmurHash3
+     */
+    static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3f99e1a85b3L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
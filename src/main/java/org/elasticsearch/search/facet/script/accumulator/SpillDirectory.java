@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Location of the temporary files written by spilling accumulators. The directory is configured by the node
+ * and defaults to the system temporary directory. Files are deleted when their accumulator is merged into another
+ * one or released. Files of accumulators that were garbage collected without that are deleted the next time
+ * a file is created or the directory is reconfigured.
+ */
+public final class SpillDirectory {
+
+    private static volatile File directory = new File(System.getProperty("java.io.tmpdir"));
+
+    private static volatile int defaultThreshold = 1000000;
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private static final Set<FilesReference> references = ConcurrentCollections.newConcurrentSet();
+
+    private SpillDirectory() {
+    }
+
+    /**
+     * Sets the directory for new files and the number of entries that spilling accumulators keep in memory by default.
+     * Files left in the directory, for example by a node that was killed, are deleted.
+     */
+    public static void configure(File directory, int defaultThreshold) {
+        directory.mkdirs();
+        clear(directory);
+        SpillDirectory.directory = directory;
+        SpillDirectory.defaultThreshold = defaultThreshold;
+    }
+
+    public static File directory() {
+        return directory;
+    }
+
+    public static int defaultThreshold() {
+        return defaultThreshold;
+    }
+
+    /**
+     * Deletes all spill files in the given directory
+     */
+    public static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("spill-")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    static File createFile() throws IOException {
+        deleteCollected();
+        File directory = SpillDirectory.directory;
+        directory.mkdirs();
+        return File.createTempFile("spill-", ".run", directory);
+    }
+
+    /**
+     * Deletes the given files once the owner is garbage collected
+     */
+    static void track(Object owner, List<File> files) {
+        references.add(new FilesReference(owner, files, queue));
+    }
+
+    static void delete(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    private static void deleteCollected() {
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            FilesReference filesReference = (FilesReference) reference;
+            references.remove(filesReference);
+            delete(filesReference.files);
+        }
+    }
+
+    private static class FilesReference extends PhantomReference<Object> {
+
+        private final List<File> files;
+
+        FilesReference(Object owner, List<File> files, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.files = files;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.trove.iterator.TObjectLongIterator;
+import org.elasticsearch.common.trove.map.hash.TObjectLongHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Hash map of string keys to long values for more keys than fit on heap. Up to <code>threshold</code> keys are kept
+ * in memory, after that the keys are sorted and spilled as a run to a temporary file under the node data path.
+ * Runs are read back through memory mapped files and merged with the keys in memory in key order, so entries are
+ * iterated, serialized and rendered as a sorted stream without ever building the whole map in memory. Windows of
+ * the files are unmapped as soon as they are read.
+ * <p/>
+ * When there are more than <code>MAX_RUNS</code> runs, the smallest runs are merged <code>MERGE_FACTOR</code> at a time,
+ * so the number of open runs and the amount of data rewritten by a single pass stay bounded.
+ * <p/>
+ * Merging another accumulator takes over its runs, so the other accumulator is empty afterwards. Runs are deleted when
+ * the accumulator is released, which happens when the facet that created it finishes or after the facet result that
+ * contains it is written.
+ */
+public class SpillingStringLongMapAccumulator implements Accumulator, Releasable {
+
+    public static final byte ID = 6;
+
+    // runs are compacted when there are more than this
+    static final int MAX_RUNS = 64;
+
+    // maximum number of runs merged by a single compaction pass
+    static final int MERGE_FACTOR = 16;
+
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+
+    private static final Comparator<Source> SOURCE_COMPARATOR = new Comparator<Source>() {
+        @Override
+        public int compare(Source o1, Source o2) {
+            return o1.key.compareTo(o2.key);
+        }
+    };
+
+    private int threshold;
+
+    private TObjectLongHashMap<String> map;
+
+    // estimated size of the keys in memory
+    private long keyBytes;
+
+    private final List<File> runs = new ArrayList<File>();
+
+    SpillingStringLongMapAccumulator() {
+        this(SpillDirectory.defaultThreshold());
+    }
+
+    public SpillingStringLongMapAccumulator(int threshold) {
+        if (threshold <= 0) {
+            throw new ElasticSearchException("spill threshold should be positive");
+        }
+        this.threshold = threshold;
+        this.map = new TObjectLongHashMap<String>();
+        SpillDirectory.track(this, runs);
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public long add(String key, long delta) {
+        int size = map.size();
+        long value = map.adjustOrPutValue(key, delta, delta);
+        if (map.size() != size) {
+            keyBytes += Accumulators.sizeInBytes(key);
+        }
+        if (map.size() >= threshold) {
+            spill();
+        }
+        return value;
+    }
+
+    public long inc(String key) {
+        return add(key, 1);
+    }
+
+    /**
+     * Returns true if some of the entries were written to disk
+     */
+    public boolean spilled() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * Number of spilled runs
+     */
+    public int runs() {
+        return runs.size();
+    }
+
+    /**
+     * Number of distinct keys. Requires a pass over all spilled runs.
+     */
+    public long size() throws IOException {
+        if (runs.isEmpty()) {
+            return map.size();
+        }
+        long size = 0;
+        Entries entries = entries();
+        try {
+            while (entries.next()) {
+                size++;
+            }
+        } finally {
+            entries.close();
+        }
+        return size;
+    }
+
+    /**
+     * Iterator over entries in key order, values of the same key in different runs are summed up
+     */
+    public Entries entries() throws IOException {
+        List<Source> sources = new ArrayList<Source>(runs.size() + 1);
+        for (File run : runs) {
+            sources.add(new RunReader(run));
+        }
+        if (!map.isEmpty()) {
+            sources.add(new MapReader(map));
+        }
+        return new Entries(sources);
+    }
+
+    /**
+     * Deletes spilled runs and clears all entries
+     */
+    @Override
+    public boolean release() {
+        SpillDirectory.delete(runs);
+        map.clear();
+        keyBytes = 0;
+        return true;
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        SpillingStringLongMapAccumulator that = (SpillingStringLongMapAccumulator) other;
+        runs.addAll(that.runs);
+        that.runs.clear();
+        for (TObjectLongIterator<String> it = that.map.iterator(); it.hasNext(); ) {
+            it.advance();
+            add(it.key(), it.value());
+        }
+        that.map.clear();
+        that.keyBytes = 0;
+        compact();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                + (long) map.capacity() * (RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_LONG) + keyBytes;
+    }
+
+    private void spill() {
+        String[] keys = map.keys(new String[map.size()]);
+        Arrays.sort(keys);
+        try {
+            RunWriter writer = new RunWriter();
+            try {
+                for (String key : keys) {
+                    writer.write(key, map.get(key));
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new ElasticSearchException("failed to spill accumulator", e);
+        }
+        map.clear();
+        keyBytes = 0;
+        compact();
+    }
+
+    /**
+     * Merges the smallest runs until there are no more than <code>MAX_RUNS</code> of them
+     */
+    private void compact() {
+        while (runs.size() > MAX_RUNS) {
+            List<File> sorted = new ArrayList<File>(runs);
+            Collections.sort(sorted, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    long length1 = o1.length();
+                    long length2 = o2.length();
+                    return length1 < length2 ? -1 : (length1 == length2 ? 0 : 1);
+                }
+            });
+            mergeRuns(sorted.subList(0, MERGE_FACTOR));
+        }
+    }
+
+    /**
+     * Merges the given runs into a single run
+     */
+    private void mergeRuns(List<File> runsToMerge) {
+        List<File> merged = new ArrayList<File>(runsToMerge);
+        try {
+            List<Source> sources = new ArrayList<Source>(merged.size());
+            for (File run : merged) {
+                sources.add(new RunReader(run));
+            }
+            Entries entries = new Entries(sources);
+            RunWriter writer = new RunWriter();
+            try {
+                while (entries.next()) {
+                    writer.write(entries.key(), entries.value());
+                }
+            } finally {
+                writer.close();
+                entries.close();
+            }
+        } catch (IOException e) {
+            throw new ElasticSearchException("failed to compact spilled accumulator", e);
+        }
+        runs.removeAll(merged);
+        SpillDirectory.delete(merged);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        threshold = in.readVInt();
+        // entries arrive sorted and unique, so everything past the threshold is streamed into a single run
+        RunWriter writer = null;
+        try {
+            while (in.readBoolean()) {
+                String key = in.readString();
+                long value = Accumulators.readZLong(in);
+                if (writer != null) {
+                    writer.write(key, value);
+                } else {
+                    map.put(key, value);
+                    keyBytes += Accumulators.sizeInBytes(key);
+                    if (map.size() >= threshold) {
+                        spill();
+                        writer = new RunWriter();
+                    }
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(threshold);
+        Entries entries = entries();
+        try {
+            while (entries.next()) {
+                out.writeBoolean(true);
+                out.writeString(entries.key());
+                Accumulators.writeZLong(out, entries.value());
+            }
+        } finally {
+            entries.close();
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        Entries entries = entries();
+        try {
+            while (entries.next()) {
+                builder.field(entries.key(), entries.value());
+            }
+        } finally {
+            entries.close();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Sorted stream of entries merged from runs and entries in memory
+     */
+    public static class Entries {
+
+        private final PriorityQueue<Source> queue;
+
+        private String key;
+
+        private long value;
+
+        private Entries(List<Source> sources) throws IOException {
+            queue = new PriorityQueue<Source>(Math.max(1, sources.size()), SOURCE_COMPARATOR);
+            for (Source source : sources) {
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        /**
+         * Moves to the next key, returns false if there are no more keys
+         */
+        public boolean next() throws IOException {
+            Source top = queue.poll();
+            if (top == null) {
+                return false;
+            }
+            key = top.key;
+            value = top.value;
+            advance(top);
+            while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                Source source = queue.poll();
+                value += source.value;
+                advance(source);
+            }
+            return true;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long value() {
+            return value;
+        }
+
+        public void close() throws IOException {
+            for (Source source : queue) {
+                source.close();
+            }
+            queue.clear();
+        }
+
+        private void advance(Source source) throws IOException {
+            if (source.next()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    private static abstract class Source {
+
+        String key;
+
+        long value;
+
+        /**
+         * Moves to the next entry, closes the source and returns false if there are no more entries
+         */
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static class MapReader extends Source {
+
+        private final TObjectLongHashMap<String> map;
+
+        private final String[] keys;
+
+        private int position;
+
+        MapReader(TObjectLongHashMap<String> map) {
+            this.map = map;
+            this.keys = map.keys(new String[map.size()]);
+            Arrays.sort(keys);
+        }
+
+        @Override
+        boolean next() {
+            if (position == keys.length) {
+                return false;
+            }
+            key = keys[position++];
+            value = map.get(key);
+            return true;
+        }
+    }
+
+    /**
+     * Reads a run through a window of the file that is mapped into memory
+     */
+    private static class RunReader extends Source {
+
+        private final RandomAccessFile file;
+
+        private final FileChannel channel;
+
+        private final long length;
+
+        private long windowStart;
+
+        private MappedByteBuffer window;
+
+        RunReader(File run) throws IOException {
+            this.file = new RandomAccessFile(run, "r");
+            this.channel = file.getChannel();
+            this.length = channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            if (window != null) {
+                unmap(window);
+            }
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, length - position));
+        }
+
+        private byte readByte() throws IOException {
+            if (!window.hasRemaining()) {
+                map(windowStart + window.limit());
+            }
+            return window.get();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (windowStart + window.position() >= length) {
+                close();
+                return false;
+            }
+            int b = readByte();
+            int keyLength = b & 0x7F;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                b = readByte();
+                keyLength |= (b & 0x7F) << shift;
+            }
+            byte[] bytes = new byte[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                bytes[i] = readByte();
+            }
+            key = new String(bytes, Charsets.UTF_8);
+            long bits = 0;
+            int shift = 0;
+            do {
+                b = readByte();
+                bits |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            value = (bits >>> 1) ^ -(bits & 1);
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            if (window != null) {
+                unmap(window);
+                window = null;
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * Unmaps the buffer right away instead of waiting for the garbage collector, so the file can be deleted
+     * and the address space is returned. The buffer must not be used after that.
+     * <p/>
+     * This is best-effort only: there is no public API to unmap a buffer, so the non-public
+     * <code>sun.misc.Cleaner</code> of the buffer is invoked by reflection, the same way Lucene's
+     * <code>MMapDirectory</code> does it. If the JVM doesn't have it or the security manager denies the access,
+     * the buffer is left to the garbage collector, which releases the mapping once it is no longer referenced.
+     * Never throws.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
+                @Override
+                public Void run() throws Exception {
+                    Method getCleaner = buffer.getClass().getMethod("cleaner");
+                    getCleaner.setAccessible(true);
+                    Object cleaner = getCleaner.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                    return null;
+                }
+            });
+        } catch (Throwable t) {
+            // not supported by the JVM or not permitted, the mapping is released when the buffer is garbage collected
+        }
+    }
+
+    /**
+     * Writes a new run. Keys are written as length prefixed UTF-8, values are zig-zag encoded like
+     * {@link Accumulators#writeZLong}.
+     */
+    private class RunWriter {
+
+        private final File file;
+
+        private final DataOutputStream out;
+
+        private boolean empty = true;
+
+        RunWriter() throws IOException {
+            this.file = SpillDirectory.createFile();
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        }
+
+        void write(String key, long value) throws IOException {
+            byte[] bytes = key.getBytes(Charsets.UTF_8);
+            int length = bytes.length;
+            while ((length & ~0x7F) != 0) {
+                out.writeByte((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            out.writeByte(length);
+            out.write(bytes);
+            long bits = (value << 1) ^ (value >> 63);
+            while ((bits & ~0x7FL) != 0) {
+                out.writeByte((byte) ((bits & 0x7F) | 0x80));
+                bits >>>= 7;
+            }
+            out.writeByte((byte) bits);
+            empty = false;
+        }
+
+        void close() throws IOException {
+            out.close();
+            if (empty) {
+                file.delete();
+            } else {
+                runs.add(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Holder of count, sum, min and max of the added values.
+ */
+public class StatsAccumulator implements Accumulator {
+
+    public static final byte ID = 4;
+
+    private long count;
+
+    private double sum;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public StatsAccumulator() {
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public void add(double value) {
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double sum() {
+        return sum;
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        StatsAccumulator that = (StatsAccumulator) other;
+        count += that.count;
+        sum += that.sum;
+        min = Math.min(min, that.min);
+        max = Math.max(max, that.max);
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_LONG);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        count = in.readVLong();
+        sum = in.readDouble();
+        min = in.readDouble();
+        max = in.readDouble();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(count);
+        out.writeDouble(sum);
+        out.writeDouble(min);
+        out.writeDouble(max);
+    }
+
+    static final class Fields {
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString SUM = new XContentBuilderString("sum");
+        static final XContentBuilderString MIN = new XContentBuilderString("min");
+        static final XContentBuilderString MAX = new XContentBuilderString("max");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(Fields.COUNT, count);
+        builder.field(Fields.SUM, sum);
+        builder.field(Fields.MIN, count == 0 ? null : min);
+        builder.field(Fields.MAX, count == 0 ? null : max);
+        builder.endObject();
+        return builder;
+    }
+}
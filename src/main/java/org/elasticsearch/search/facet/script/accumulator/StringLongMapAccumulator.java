@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.iterator.TObjectLongIterator;
+import org.elasticsearch.common.trove.map.hash.TObjectLongHashMap;
+import org.elasticsearch.common.trove.procedure.TObjectLongProcedure;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * Hash map of string keys to long values. Missing keys have value 0.
+ * Can be pruned to the keys with the highest values, see {@link ApproximateAccumulator}.
+ */
+public class StringLongMapAccumulator implements ApproximateAccumulator {
+
+    public static final byte ID = 3;
+
+    private TObjectLongHashMap<String> map;
+
+    private long error;
+
+    // estimated size of all keys, kept up to date as keys are added and removed
+    private long keyBytes;
+
+    public StringLongMapAccumulator() {
+        this.map = new TObjectLongHashMap<String>();
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public long get(String key) {
+        return map.get(key);
+    }
+
+    public void put(String key, long value) {
+        int size = map.size();
+        map.put(key, value);
+        if (map.size() != size) {
+            keyBytes += Accumulators.sizeInBytes(key);
+        }
+    }
+
+    public long add(String key, long delta) {
+        int size = map.size();
+        long value = map.adjustOrPutValue(key, delta, delta);
+        if (map.size() != size) {
+            keyBytes += Accumulators.sizeInBytes(key);
+        }
+        return value;
+    }
+
+    public long inc(String key) {
+        return add(key, 1);
+    }
+
+    public TObjectLongIterator<String> iterator() {
+        return map.iterator();
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        StringLongMapAccumulator that = (StringLongMapAccumulator) other;
+        error += that.error;
+        if (map.isEmpty() && that.map.size() > 0) {
+            map = that.map;
+            keyBytes = that.keyBytes;
+            return;
+        }
+        for (TObjectLongIterator<String> it = that.map.iterator(); it.hasNext(); ) {
+            it.advance();
+            add(it.key(), it.value());
+        }
+    }
+
+    @Override
+    public void prune(int size) {
+        if (map.size() <= size) {
+            return;
+        }
+        long[] top = Accumulators.largest(map.values(), size + 1);
+        // the largest removed value, entries with the same value are kept only while there is room for them
+        final long threshold = top[0];
+        int above = 0;
+        for (long value : top) {
+            if (value > threshold) {
+                above++;
+            }
+        }
+        final int[] ties = {size - above};
+        map.retainEntries(new TObjectLongProcedure<String>() {
+            @Override
+            public boolean execute(String key, long value) {
+                if (value > threshold) {
+                    return true;
+                }
+                if (value == threshold && ties[0] > 0) {
+                    ties[0]--;
+                    return true;
+                }
+                keyBytes -= Accumulators.sizeInBytes(key);
+                return false;
+            }
+        });
+        map.compact();
+        error += threshold;
+    }
+
+    @Override
+    public long error() {
+        return error;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                + (long) map.capacity() * (RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_LONG) + keyBytes;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        error = in.readVLong();
+        int size = in.readVInt();
+        map = new TObjectLongHashMap<String>(size);
+        keyBytes = 0;
+        for (int i = 0; i < size; i++) {
+            put(in.readString(), Accumulators.readZLong(in));
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(error);
+        out.writeVInt(map.size());
+        for (TObjectLongIterator<String> it = map.iterator(); it.hasNext(); ) {
+            it.advance();
+            out.writeString(it.key());
+            Accumulators.writeZLong(out, it.value());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        for (TObjectLongIterator<String> it = map.iterator(); it.hasNext(); ) {
+            it.advance();
+            builder.field(it.key(), it.value());
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash map of string keys to count, sum, min and max of the values added for each key.
+ */
+public class StringStatsMapAccumulator implements Accumulator {
+
+    public static final byte ID = 5;
+
+    // hash map entry and its slot in the table
+    private static final long ENTRY_SIZE = 48 + new StatsAccumulator().sizeInBytes();
+
+    private Map<String, StatsAccumulator> map;
+
+    // estimated size of all keys
+    private long keyBytes;
+
+    public StringStatsMapAccumulator() {
+        this.map = new HashMap<String, StatsAccumulator>();
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return map.keySet();
+    }
+
+    /**
+     * Statistics of the key or <code>null</code> if no values were added for the key
+     */
+    public StatsAccumulator get(String key) {
+        return map.get(key);
+    }
+
+    public void add(String key, double value) {
+        StatsAccumulator stats = map.get(key);
+        if (stats == null) {
+            stats = new StatsAccumulator();
+            map.put(key, stats);
+            keyBytes += Accumulators.sizeInBytes(key);
+        }
+        stats.add(value);
+    }
+
+    /**
+     * Merges statistics of several values of the key
+     */
+    public void merge(String key, StatsAccumulator values) {
+        StatsAccumulator stats = map.get(key);
+        if (stats == null) {
+            map.put(key, values);
+            keyBytes += Accumulators.sizeInBytes(key);
+        } else {
+            stats.merge(values);
+        }
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        StringStatsMapAccumulator that = (StringStatsMapAccumulator) other;
+        if (map.isEmpty() && !that.map.isEmpty()) {
+            map = that.map;
+            keyBytes = that.keyBytes;
+            return;
+        }
+        for (Map.Entry<String, StatsAccumulator> entry : that.map.entrySet()) {
+            StatsAccumulator stats = map.get(entry.getKey());
+            if (stats == null) {
+                map.put(entry.getKey(), entry.getValue());
+                keyBytes += Accumulators.sizeInBytes(entry.getKey());
+            } else {
+                stats.merge(entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + map.size() * ENTRY_SIZE + keyBytes;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        map = new HashMap<String, StatsAccumulator>(size);
+        keyBytes = 0;
+        for (int i = 0; i < size; i++) {
+            String key = in.readString();
+            StatsAccumulator stats = new StatsAccumulator();
+            stats.readFrom(in);
+            map.put(key, stats);
+            keyBytes += Accumulators.sizeInBytes(key);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(map.size());
+        for (Map.Entry<String, StatsAccumulator> entry : map.entrySet()) {
+            out.writeString(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        for (Map.Entry<String, StatsAccumulator> entry : map.entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+        }
+        builder.endObject();
+        return builder;
+    }
+}
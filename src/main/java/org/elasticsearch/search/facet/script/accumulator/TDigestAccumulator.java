@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script.accumulator;
+
+import org.apache.lucene.util.IntroSorter;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+import java.io.IOException;
+
+/**
+ * Estimates quantiles with a merging t-digest. Added values are buffered and periodically merged into
+ * a sorted list of centroids, which are kept small near the tails of the distribution, so extreme quantiles
+ * are more accurate than the median. The number of centroids is bounded by about <code>compression</code>.
+ */
+public class TDigestAccumulator implements Accumulator {
+
+    public static final byte ID = 8;
+
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private static final double[] PERCENTS = new double[]{1, 5, 25, 50, 75, 95, 99};
+
+    private double compression;
+
+    // merged centroids, sorted by mean
+    private double[] means;
+
+    private long[] weights;
+
+    private int centroids;
+
+    // values and centroids of other digests that are not merged yet
+    private double[] bufferMeans;
+
+    private long[] bufferWeights;
+
+    private int buffered;
+
+    private long count;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    TDigestAccumulator() {
+    }
+
+    public TDigestAccumulator(double compression) {
+        if (compression < 10) {
+            throw new ElasticSearchIllegalArgumentException("compression should be at least 10");
+        }
+        init(compression);
+    }
+
+    private void init(double compression) {
+        this.compression = compression;
+        int capacity = (int) Math.ceil(2 * compression) + 10;
+        this.means = new double[capacity];
+        this.weights = new long[capacity];
+        int bufferSize = (int) Math.ceil(5 * compression);
+        this.bufferMeans = new double[bufferSize];
+        this.bufferWeights = new long[bufferSize];
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    public double compression() {
+        return compression;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, long weight) {
+        if (Double.isNaN(value)) {
+            throw new ElasticSearchIllegalArgumentException("cannot add NaN to t-digest");
+        }
+        if (buffered == bufferMeans.length) {
+            compress();
+        }
+        bufferMeans[buffered] = value;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        count += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Total weight of added values
+     */
+    public long count() {
+        return count;
+    }
+
+    public double min() {
+        return min;
+    }
+
+    public double max() {
+        return max;
+    }
+
+    /**
+     * Merges buffered values into the centroids
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int total = centroids + buffered;
+        final double[] allMeans = new double[total];
+        final long[] allWeights = new long[total];
+        System.arraycopy(means, 0, allMeans, 0, centroids);
+        System.arraycopy(weights, 0, allWeights, 0, centroids);
+        System.arraycopy(bufferMeans, 0, allMeans, centroids, buffered);
+        System.arraycopy(bufferWeights, 0, allWeights, centroids, buffered);
+        new IntroSorter() {
+            private double pivot;
+
+            @Override
+            protected int compare(int i, int j) {
+                return Double.compare(allMeans[i], allMeans[j]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                double mean = allMeans[i];
+                allMeans[i] = allMeans[j];
+                allMeans[j] = mean;
+                long weight = allWeights[i];
+                allWeights[i] = allWeights[j];
+                allWeights[j] = weight;
+            }
+
+            @Override
+            protected void setPivot(int i) {
+                pivot = allMeans[i];
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return Double.compare(pivot, allMeans[j]);
+            }
+        }.sort(0, total);
+        buffered = 0;
+        centroids = 0;
+        double weightSoFar = 0;
+        double kLeft = scale(0);
+        double mean = allMeans[0];
+        long weight = allWeights[0];
+        for (int i = 1; i < total; i++) {
+            // a centroid may span at most one unit of the scale function
+            double kRight = scale((weightSoFar + weight + allWeights[i]) / count);
+            if (kRight - kLeft <= 1) {
+                weight += allWeights[i];
+                mean += (allMeans[i] - mean) * allWeights[i] / weight;
+            } else {
+                weightSoFar += weight;
+                kLeft = scale(weightSoFar / count);
+                addCentroid(mean, weight);
+                mean = allMeans[i];
+                weight = allWeights[i];
+            }
+        }
+        addCentroid(mean, weight);
+    }
+
+    /**
+     * Scale function that maps quantiles to centroid indexes, steep near the tails so centroids there stay small
+     */
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1, q) - 1);
+    }
+
+    private void addCentroid(double mean, long weight) {
+        if (centroids == means.length) {
+            int capacity = centroids + (centroids >> 1) + 1;
+            double[] newMeans = new double[capacity];
+            long[] newWeights = new long[capacity];
+            System.arraycopy(means, 0, newMeans, 0, centroids);
+            System.arraycopy(weights, 0, newWeights, 0, centroids);
+            means = newMeans;
+            weights = newWeights;
+        }
+        means[centroids] = mean;
+        weights[centroids] = weight;
+        centroids++;
+    }
+
+    /**
+     * Estimated value below which the given fraction (between 0 and 1) of added values falls, NaN if nothing was added
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new ElasticSearchIllegalArgumentException("quantile should be between 0 and 1");
+        }
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (centroids == 1) {
+            return means[0];
+        }
+        double index = q * count;
+        if (index <= weights[0] / 2.0) {
+            // between the minimum and the center of the first centroid
+            return min + (means[0] - min) * index / (weights[0] / 2.0);
+        }
+        double weightSoFar = weights[0] / 2.0;
+        for (int i = 0; i < centroids - 1; i++) {
+            double step = (weights[i] + weights[i + 1]) / 2.0;
+            if (weightSoFar + step >= index) {
+                return means[i] + (means[i + 1] - means[i]) * (index - weightSoFar) / step;
+            }
+            weightSoFar += step;
+        }
+        // between the center of the last centroid and the maximum
+        double lastHalf = weights[centroids - 1] / 2.0;
+        return means[centroids - 1] + (max - means[centroids - 1]) * Math.min(1, (index - weightSoFar) / lastHalf);
+    }
+
+    /**
+     * Estimated value below which the given percentage (between 0 and 100) of added values falls
+     */
+    public double percentile(double percent) {
+        return quantile(percent / 100);
+    }
+
+    /**
+     * Estimated fraction of added values that are lower than or equal to the given value
+     */
+    public double cdf(double value) {
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (value < min) {
+            return 0;
+        }
+        if (value >= max) {
+            return 1;
+        }
+        double weightSoFar = 0;
+        for (int i = 0; i < centroids; i++) {
+            double left = i == 0 ? min : (means[i - 1] + means[i]) / 2;
+            double right = i == centroids - 1 ? max : (means[i] + means[i + 1]) / 2;
+            if (value < right) {
+                double fraction = right > left ? (value - left) / (right - left) : 1;
+                return (weightSoFar + weights[i] * fraction) / count;
+            }
+            weightSoFar += weights[i];
+        }
+        return 1;
+    }
+
+    /**
+     * Number of centroids after all buffered values are merged
+     */
+    public int centroids() {
+        compress();
+        return centroids;
+    }
+
+    @Override
+    public void merge(Accumulator other) {
+        TDigestAccumulator that = (TDigestAccumulator) other;
+        that.compress();
+        for (int i = 0; i < that.centroids; i++) {
+            add(that.means[i], that.weights[i]);
+        }
+        // the extremes of the other digest are not necessarily centroids
+        min = Math.min(min, that.min);
+        max = Math.max(max, that.max);
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_LONG)
+                + RamUsageEstimator.sizeOf(means) + RamUsageEstimator.sizeOf(weights)
+                + RamUsageEstimator.sizeOf(bufferMeans) + RamUsageEstimator.sizeOf(bufferWeights);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        init(in.readDouble());
+        count = in.readVLong();
+        min = in.readDouble();
+        max = in.readDouble();
+        int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            addCentroid(in.readDouble(), in.readVLong());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        compress();
+        out.writeDouble(compression);
+        out.writeVLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeVInt(centroids);
+        for (int i = 0; i < centroids; i++) {
+            out.writeDouble(means[i]);
+            out.writeVLong(weights[i]);
+        }
+    }
+
+    static final class Fields {
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
+        static final XContentBuilderString MIN = new XContentBuilderString("min");
+        static final XContentBuilderString MAX = new XContentBuilderString("max");
+        static final XContentBuilderString PERCENTILES = new XContentBuilderString("percentiles");
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(Fields.COUNT, count);
+        builder.field(Fields.MIN, count == 0 ? null : min);
+        builder.field(Fields.MAX, count == 0 ? null : max);
+        builder.startObject(Fields.PERCENTILES);
+        for (double percent : PERCENTS) {
+            builder.field(String.valueOf(percent), count == 0 ? null : percentile(percent));
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * Copyright 2012 Igor Motov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.elasticsearch.search.facet.script;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchIllegalStateException;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.search.facet.script.accumulator.Accumulators;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.trove.iterator.TLongLongIterator;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.search.facet.script.accumulator.CountMinSketchAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.DoubleArrayAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.HyperLogLogAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongArrayAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.PagePool;
+import org.elasticsearch.search.facet.script.accumulator.PagedDoubleArrayAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.PagedLongArrayAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.PagedLongLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.SpillDirectory;
+import org.elasticsearch.search.facet.script.accumulator.SpillingStringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringStatsMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.TDigestAccumulator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class ScriptFacetValuesTests {
+
+    private Object roundTrip(Object value) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        ScriptFacetValues.writeValue(out, value);
+        return ScriptFacetValues.readValue(new BytesStreamInput(out.bytes()));
+    }
+
+    private int typedSize(Object value) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        ScriptFacetValues.writeValue(out, value);
+        return out.size();
+    }
+
+    private int genericSize(Object value) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeGenericValue(value);
+        return out.size();
+    }
+
+    @Test
+    public void testNumericLists() throws Exception {
+        List<Object> ints = new ArrayList<Object>();
+        List<Object> longs = new ArrayList<Object>();
+        List<Object> doubles = new ArrayList<Object>();
+        for (int i = -500; i < 500; i++) {
+            ints.add(i);
+            longs.add((long) i * Integer.MAX_VALUE);
+            doubles.add(i / 3.0);
+        }
+        longs.add(Long.MIN_VALUE);
+        longs.add(Long.MAX_VALUE);
+        assertThat(roundTrip(ints), equalTo((Object) ints));
+        assertThat(roundTrip(longs), equalTo((Object) longs));
+        assertThat(roundTrip(doubles), equalTo((Object) doubles));
+        assertThat(typedSize(ints), lessThan(genericSize(ints)));
+    }
+
+    @Test
+    public void testMixedValues() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(1);
+        list.add(2L);
+        list.add("three");
+        list.add(null);
+        list.add(4.0f);
+        assertThat(roundTrip(list), equalTo((Object) list));
+        assertThat(roundTrip(null), equalTo(null));
+        assertThat(roundTrip("value"), equalTo((Object) "value"));
+        Object[] array = (Object[]) roundTrip(new Object[]{1, "two"});
+        assertThat(array.length, equalTo(2));
+        assertThat(array[1], equalTo((Object) "two"));
+        assertThat((long[]) roundTrip(new long[]{1, -2, Long.MAX_VALUE}), equalTo(new long[]{1, -2, Long.MAX_VALUE}));
+        assertThat((int[]) roundTrip(new int[]{1, -2, Integer.MIN_VALUE}), equalTo(new int[]{1, -2, Integer.MIN_VALUE}));
+        assertThat((double[]) roundTrip(new double[]{1.5, -2}), equalTo(new double[]{1.5, -2}));
+    }
+
+    @Test
+    public void testNestedMaps() throws Exception {
+        List<Object> terms = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> term = new LinkedHashMap<String, Object>();
+            term.put("term", "term" + i);
+            term.put("count", (long) i);
+            terms.add(term);
+        }
+        Map<String, Object> counts = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++) {
+            counts.put("key" + i, i);
+        }
+        Map<String, Object> facet = new HashMap<String, Object>();
+        facet.put("terms", terms);
+        facet.put("counts", counts);
+        facet.put("total", 4950L);
+        Object result = roundTrip(facet);
+        assertThat(result, equalTo((Object) facet));
+        assertThat(((Map) result).get("terms"), instanceOf(List.class));
+        assertThat(((List) ((Map) result).get("terms")).get(0), instanceOf(LinkedHashMap.class));
+        assertThat(typedSize(facet), lessThan(genericSize(facet)));
+    }
+
+    @Test
+    public void testAccumulators() throws Exception {
+        Accumulators acc = new Accumulators(null);
+        LongArrayAccumulator array = acc.longArray();
+        array.add(5, -3);
+        array.inc(1);
+        StringLongMapAccumulator map = acc.stringMap();
+        map.add("a", 10);
+        map.inc("b");
+        StringStatsMapAccumulator statsMap = acc.statsMap();
+        statsMap.add("a", 1.5);
+        statsMap.add("a", -2);
+        Map<String, Object> facet = new HashMap<String, Object>();
+        facet.put("array", array);
+        facet.put("map", map);
+        facet.put("stats", statsMap);
+
+        Map result = (Map) roundTrip(facet);
+        LongArrayAccumulator resultArray = (LongArrayAccumulator) result.get("array");
+        assertThat(resultArray.toArray(), equalTo(new long[]{0, 1, 0, 0, 0, -3}));
+        StringLongMapAccumulator resultMap = (StringLongMapAccumulator) result.get("map");
+        assertThat(resultMap.size(), equalTo(2));
+        assertThat(resultMap.get("a"), equalTo(10L));
+        assertThat(resultMap.get("b"), equalTo(1L));
+        StringStatsMapAccumulator resultStats = (StringStatsMapAccumulator) result.get("stats");
+        assertThat(resultStats.size(), equalTo(1));
+        assertThat(resultStats.get("a").count(), equalTo(2L));
+        assertThat(resultStats.get("a").min(), equalTo(-2.0));
+        assertThat(resultStats.get("a").max(), equalTo(1.5));
+    }
+
+    @Test
+    public void testPrunedAccumulators() throws Exception {
+        LongLongMapAccumulator map = new LongLongMapAccumulator();
+        for (int i = 1; i <= 100; i++) {
+            map.put(i, i);
+        }
+        long size = map.sizeInBytes();
+        map.prune(10);
+        assertThat(map.size(), equalTo(10));
+        assertThat(map.get(91), equalTo(91L));
+        assertThat(map.containsKey(90), equalTo(false));
+        assertThat(map.error(), equalTo(90L));
+        assertThat(map.sizeInBytes(), lessThan(size));
+
+        StringLongMapAccumulator other = new StringLongMapAccumulator();
+        other.put("a", 5);
+        other.put("b", 5);
+        other.put("c", 1);
+        other.prune(1);
+        // only one of the entries tied with the removed value is kept
+        assertThat(other.size(), equalTo(1));
+        assertThat(other.containsKey("c"), equalTo(false));
+        assertThat(other.error(), equalTo(5L));
+        StringLongMapAccumulator merged = new StringLongMapAccumulator();
+        merged.put("c", 1);
+        merged.merge(other);
+        assertThat(merged.get("c"), equalTo(1L));
+        assertThat(merged.error(), equalTo(5L));
+
+        LongLongMapAccumulator result = (LongLongMapAccumulator) roundTrip(map);
+        assertThat(result.size(), equalTo(10));
+        assertThat(result.error(), equalTo(90L));
+    }
+
+    @Test
+    public void testTopK() throws Exception {
+        long[] values = new long[]{7, 3, 9, 1, 9, 4, 8};
+        long[] top = Accumulators.largest(values, 3);
+        assertThat(top.length, equalTo(3));
+        assertThat(top[0], equalTo(8L));
+
+        Map<String, Object> counts = new HashMap<String, Object>();
+        for (int i = 1; i <= 20; i++) {
+            counts.put("key" + i, i);
+        }
+        long[] error = new long[1];
+        @SuppressWarnings("unchecked")
+        Map<String, Object> trimmed = (Map<String, Object>) ScriptFacetTopK.trim(counts, 5, error);
+        assertThat(trimmed.size(), equalTo(5));
+        assertThat(trimmed.keySet().iterator().next(), equalTo("key20"));
+        assertThat(trimmed.containsKey("key16"), equalTo(true));
+        assertThat(error[0], equalTo(15L));
+
+        List<Object> shards = new ArrayList<Object>();
+        shards.add(trimmed);
+        Map<String, Object> other = new HashMap<String, Object>();
+        other.put("key20", 2L);
+        other.put("key1", 1.5);
+        shards.add(other);
+        assertThat(ScriptFacetTopK.isCountMaps(shards), equalTo(true));
+        Map<Object, Object> merged = ScriptFacetTopK.mergeCountMaps(shards);
+        assertThat(merged.get("key20"), equalTo((Object) 22L));
+        assertThat(merged.get("key1"), equalTo((Object) 1.5));
+
+        StringLongMapAccumulator accumulator = new StringLongMapAccumulator();
+        accumulator.put("a", 3);
+        accumulator.put("b", 2);
+        accumulator.put("c", 1);
+        assertThat(ScriptFacetTopK.trim(accumulator, 2, error), equalTo((Object) accumulator));
+        assertThat(accumulator.size(), equalTo(2));
+        assertThat(error[0], equalTo(1L));
+    }
+
+    @Test
+    public void testTopKErrorBound() throws Exception {
+        Random random = new Random(42);
+        int shardCount = 4;
+        Map<String, Long> totals = new HashMap<String, Long>();
+        List<Object> shards = new ArrayList<Object>();
+        long errorBound = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            Map<String, Object> counts = new HashMap<String, Object>();
+            for (int i = 0; i < 1000; i++) {
+                // skewed keys, so shards disagree on the tail
+                String key = "key" + (int) Math.abs(random.nextGaussian() * 30);
+                Long count = (Long) counts.get(key);
+                counts.put(key, count == null ? 1L : count + 1);
+                Long total = totals.get(key);
+                totals.put(key, total == null ? 1L : total + 1);
+            }
+            long[] error = new long[1];
+            @SuppressWarnings("unchecked")
+            Map<String, Object> trimmed = (Map<String, Object>) ScriptFacetTopK.trim(counts, 10, error);
+            assertThat(trimmed.size(), equalTo(10));
+            for (Map.Entry<String, Object> entry : counts.entrySet()) {
+                if (!trimmed.containsKey(entry.getKey())) {
+                    assertThat((Long) entry.getValue(), lessThanOrEqualTo(error[0]));
+                }
+            }
+            errorBound += error[0];
+            shards.add(trimmed);
+        }
+        Map<Object, Object> merged = ScriptFacetTopK.mergeCountMaps(shards);
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            Object count = merged.get(entry.getKey());
+            long reported = count == null ? 0 : ((Number) count).longValue();
+            assertThat(reported, lessThanOrEqualTo(entry.getValue()));
+            assertThat(entry.getValue() - reported, lessThanOrEqualTo(errorBound));
+        }
+    }
+
+    @Test
+    public void testSampler() throws Exception {
+        ScriptFacetSampler sampler = new ScriptFacetSampler(0.1, 7);
+        ScriptFacetSampler same = new ScriptFacetSampler(0.1, 7);
+        ScriptFacetSampler other = new ScriptFacetSampler(0.1, 8);
+        int accepted = 0;
+        int differ = 0;
+        int docs = 100000;
+        for (int doc = 0; doc < docs; doc++) {
+            boolean accept = sampler.accept(doc);
+            assertThat(same.accept(doc), equalTo(accept));
+            if (accept) {
+                accepted++;
+            }
+            if (other.accept(doc) != accept) {
+                differ++;
+            }
+        }
+        assertThat((double) accepted / docs, closeTo(0.1, 0.01));
+        // a different seed picks a mostly different sample
+        assertThat(differ, greaterThan(accepted));
+
+        // consecutive doc ids are not sampled in runs
+        int longestRun = 0;
+        int run = 0;
+        for (int doc = 0; doc < docs; doc++) {
+            run = sampler.accept(doc) ? run + 1 : 0;
+            longestRun = Math.max(longestRun, run);
+        }
+        assertThat(longestRun, lessThan(10));
+
+        ScriptFacetSampler all = new ScriptFacetSampler(1.0, 7);
+        ScriptFacetSampler none = new ScriptFacetSampler(0.0, 7);
+        for (int doc = 0; doc < 1000; doc++) {
+            assertThat(all.accept(doc), equalTo(true));
+            assertThat(none.accept(doc), equalTo(false));
+        }
+    }
+
+    @Test
+    public void testSketches() throws Exception {
+        HyperLogLogAccumulator small = new HyperLogLogAccumulator(HyperLogLogAccumulator.DEFAULT_PRECISION);
+        for (int i = 0; i < 100; i++) {
+            small.add("value" + i);
+            small.add("value" + i);
+        }
+        assertThat(small.cardinality(), equalTo(100L));
+        HyperLogLogAccumulator hll = (HyperLogLogAccumulator) roundTrip(small);
+        assertThat(hll.cardinality(), equalTo(100L));
+        HyperLogLogAccumulator other = new HyperLogLogAccumulator(HyperLogLogAccumulator.DEFAULT_PRECISION);
+        for (long i = 0; i < 20000; i++) {
+            other.add(i);
+        }
+        long size = other.sizeInBytes();
+        for (long i = 20000; i < 100000; i++) {
+            other.add(i);
+        }
+        // registers don't grow with the number of values
+        assertThat(other.sizeInBytes(), equalTo(size));
+        hll.merge((HyperLogLogAccumulator) roundTrip(other));
+        assertThat((double) hll.cardinality(), closeTo(100100, 100100 * 0.05));
+
+        TDigestAccumulator digest = new TDigestAccumulator(TDigestAccumulator.DEFAULT_COMPRESSION);
+        TDigestAccumulator otherDigest = new TDigestAccumulator(TDigestAccumulator.DEFAULT_COMPRESSION);
+        for (int i = 0; i < 10000; i++) {
+            (i % 2 == 0 ? digest : otherDigest).add(i);
+        }
+        digest.merge((TDigestAccumulator) roundTrip(otherDigest));
+        digest = (TDigestAccumulator) roundTrip(digest);
+        assertThat(digest.count(), equalTo(10000L));
+        assertThat(digest.min(), equalTo(0.0));
+        assertThat(digest.max(), equalTo(9999.0));
+        assertThat(digest.percentile(50), closeTo(5000, 100));
+        assertThat(digest.percentile(99), closeTo(9900, 20));
+        assertThat(digest.cdf(2500), closeTo(0.25, 0.01));
+        assertThat(digest.centroids(), lessThan(150));
+
+        CountMinSketchAccumulator sketch = new CountMinSketchAccumulator(0.01, 0.01, 3);
+        CountMinSketchAccumulator otherSketch = new CountMinSketchAccumulator(0.01, 0.01, 3);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("key" + (i % 100));
+            otherSketch.add("key" + (i % 10));
+        }
+        otherSketch.add("key1", 500);
+        sketch.merge((CountMinSketchAccumulator) roundTrip(otherSketch));
+        assertThat(sketch.total(), equalTo(2500L));
+        assertThat(sketch.estimate("key1"), greaterThanOrEqualTo(610L));
+        assertThat(sketch.estimate("key50"), greaterThanOrEqualTo(10L));
+        assertThat(sketch.estimate("key50"), lessThan(10L + 2500 / 100 * 2));
+        StringLongMapAccumulator heavyHitters = ((CountMinSketchAccumulator) roundTrip(sketch)).heavyHitters();
+        assertThat(heavyHitters.size(), equalTo(3));
+        assertThat(heavyHitters.get("key1"), greaterThanOrEqualTo(610L));
+    }
+
+    @Test
+    public void testPagedAccumulators() throws Exception {
+        PagePool pool = new PagePool(1024 * 1024, -1);
+        Accumulators acc = new Accumulators(pool);
+
+        PagedLongArrayAccumulator longs = acc.pagedLongArray();
+        longs.set(5000, 7);
+        longs.inc(10);
+        assertThat(longs.size(), equalTo(5001L));
+        assertThat(longs.get(5000), equalTo(7L));
+        assertThat(longs.get(6000), equalTo(0L));
+        PagedLongArrayAccumulator otherLongs = acc.pagedLongArray(11);
+        otherLongs.add(10, 2);
+        longs.merge(otherLongs);
+        assertThat(longs.get(10), equalTo(3L));
+        // paged accumulators are sent as their heap counterparts
+        LongArrayAccumulator longsCopy = (LongArrayAccumulator) roundTrip(longs);
+        assertThat(longsCopy.toArray(), equalTo(longs.toArray()));
+
+        PagedDoubleArrayAccumulator doubles = acc.pagedDoubleArray();
+        doubles.push(1.5);
+        doubles.add(0, 1.0);
+        DoubleArrayAccumulator doublesCopy = (DoubleArrayAccumulator) roundTrip(doubles);
+        assertThat(doublesCopy.get(0), equalTo(2.5));
+
+        PagedLongLongMapAccumulator map = acc.pagedLongMap();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (long i = -5000; i < 5000; i++) {
+            long key = i * 31;
+            map.add(key, i);
+            map.inc(key);
+            expected.put(key, i + 1);
+        }
+        assertThat(map.size(), equalTo((long) expected.size()));
+        assertThat(map.containsKey(0), equalTo(true));
+        assertThat(map.containsKey(1), equalTo(false));
+        LongLongMapAccumulator result = (LongLongMapAccumulator) roundTrip(map);
+        Map<Long, Long> actual = new HashMap<Long, Long>();
+        for (TLongLongIterator it = result.iterator(); it.hasNext(); ) {
+            it.advance();
+            actual.put(it.key(), it.value());
+        }
+        assertThat(actual, equalTo(expected));
+        assertThat(pool.usedBytes(), greaterThan(0L));
+
+        // pages of accumulators that are part of the result are left to their owner
+        acc.detach(Collections.singletonMap("counts", map));
+        acc.release();
+        assertThat(longs.size(), equalTo(0L));
+        assertThat(map.get(31), equalTo(2L));
+        assertThat(pool.usedBytes(), equalTo(map.offHeapBytes()));
+        assertThat(pool.pooledBytes(), greaterThan(0L));
+
+        // reduce copies paged accumulators to the heap and releases their pages
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put("counts", map);
+        state.put("list", new ArrayList<Object>(Collections.singletonList(acc.pagedLongArray(10))));
+        assertThat(Accumulators.toHeap(state), sameInstance((Object) state));
+        assertThat(state.get("counts"), instanceOf(LongLongMapAccumulator.class));
+        assertThat(((LongLongMapAccumulator) state.get("counts")).get(31), equalTo(2L));
+        assertThat(((List<?>) state.get("list")).get(0), instanceOf(LongArrayAccumulator.class));
+        assertThat(Accumulators.containsPaged(state), equalTo(false));
+        acc.release();
+        assertThat(pool.usedBytes(), equalTo(0L));
+        assertThat(pool.collected(), equalTo(0L));
+    }
+
+    @Test
+    public void testPagePoolLimit() throws Exception {
+        PagePool pool = new PagePool(0, 2 * PagePool.PAGE_SIZE);
+        Accumulators acc = new Accumulators(pool);
+        PagedLongArrayAccumulator longs = acc.pagedLongArray();
+        longs.set(PagePool.PAGE_SIZE / 8, 1);
+        assertThat(pool.usedBytes(), equalTo(2L * PagePool.PAGE_SIZE));
+        try {
+            longs.set(PagePool.PAGE_SIZE / 4, 1);
+            fail("expected the page pool limit to be exceeded");
+        } catch (ElasticSearchException e) {
+            assertThat(e.getMessage(), containsString("exceeds the limit"));
+        }
+        assertThat(pool.usedBytes(), equalTo(2L * PagePool.PAGE_SIZE));
+        acc.release();
+        assertThat(pool.usedBytes(), equalTo(0L));
+        // released pages are not kept above the pool size
+        assertThat(pool.pooledBytes(), equalTo(0L));
+
+        try {
+            new Accumulators(null).pagedLongMap();
+            fail("expected paged accumulators to be unavailable without a pool");
+        } catch (ElasticSearchIllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPagedResultReleasedAfterWrite() throws Exception {
+        PagePool pool = new PagePool(1024 * 1024, -1);
+        PagedLongLongMapAccumulator counts = new Accumulators(pool).pagedLongMap();
+        for (long i = 0; i < 100; i++) {
+            counts.add(i, i * 2);
+        }
+        InternalScriptFacet facet = new InternalScriptFacet("facet1", Collections.singletonMap("counts", counts), "mvel", null,
+                null, null, null, 0, null, null, null, null, null);
+        BytesStreamOutput out = new BytesStreamOutput();
+        facet.writeTo(out);
+        assertThat(pool.usedBytes(), equalTo(0L));
+
+        InternalScriptFacet result = InternalScriptFacet.readMapReduceFacet(new BytesStreamInput(out.bytes()), null, null, null,
+                null, null, null);
+        LongLongMapAccumulator resultCounts = (LongLongMapAccumulator) ((Map<?, ?>) result.facet()).get("counts");
+        assertThat(resultCounts.size(), equalTo(100));
+        assertThat(resultCounts.get(42), equalTo(84L));
+    }
+
+    @Test
+    public void testSegmentCacheScriptIds() throws Exception {
+        ScriptFacetSegmentCache segmentCache = new ScriptFacetSegmentCache(ImmutableSettings.EMPTY);
+        CompiledScript script = new CompiledScript("mvel", "compiled");
+        // the same file script compiled again after it was changed
+        CompiledScript recompiled = new CompiledScript("mvel", "compiled");
+        long id = segmentCache.scriptId(script);
+        assertThat(segmentCache.scriptId(script), equalTo(id));
+        assertThat(segmentCache.scriptId(recompiled), not(equalTo(id)));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMapOrder() throws Exception {
+        Map<String, Object> linked = new LinkedHashMap<String, Object>();
+        for (int i = 100; i > 0; i--) {
+            linked.put("key" + i, i);
+        }
+        Map<String, Object> sorted = new TreeMap<String, Object>(Collections.reverseOrder());
+        sorted.putAll(linked);
+        Map<String, Object> value = new LinkedHashMap<String, Object>();
+        value.put("linked", linked);
+        value.put("sorted", Collections.singletonList(sorted));
+
+        Map<String, Object> copy = (Map<String, Object>) ScriptFacetValues.copy(value);
+        assertThat(copy.get("linked"), instanceOf(LinkedHashMap.class));
+        assertThat(new ArrayList<String>(((Map<String, Object>) copy.get("linked")).keySet()), equalTo(new ArrayList<String>(linked.keySet())));
+        Map<String, Object> sortedCopy = (Map<String, Object>) ((List<Object>) copy.get("sorted")).get(0);
+        assertThat(sortedCopy, instanceOf(TreeMap.class));
+        assertThat(new ArrayList<String>(sortedCopy.keySet()), equalTo(new ArrayList<String>(sorted.keySet())));
+        assertThat(sortedCopy, not(sameInstance((Object) sorted)));
+
+        Map<String, Object> result = (Map<String, Object>) roundTrip(value);
+        assertThat(new ArrayList<String>(result.keySet()), equalTo(new ArrayList<String>(value.keySet())));
+        assertThat(new ArrayList<String>(((Map<String, Object>) result.get("linked")).keySet()), equalTo(new ArrayList<String>(linked.keySet())));
+        Map<String, Object> sortedResult = (Map<String, Object>) ((List<Object>) result.get("sorted")).get(0);
+        assertThat(new ArrayList<String>(sortedResult.keySet()), equalTo(new ArrayList<String>(sorted.keySet())));
+    }
+
+    @Test
+    public void testSizeInBytes() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        long empty = ScriptFacetValues.sizeInBytes(list);
+        list.add("value");
+        list.add(1L);
+        assertThat(ScriptFacetValues.sizeInBytes(list), greaterThan(empty));
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", list);
+        assertThat(ScriptFacetValues.sizeInBytes(map), greaterThan(ScriptFacetValues.sizeInBytes(list)));
+        assertThat(ScriptFacetValues.sizeInBytes(new long[1000]), greaterThan(8000L));
+    }
+
+    @Test
+    public void testSizeInBytesSampled() throws Exception {
+        List<Object> small = new ArrayList<Object>();
+        List<Object> large = new ArrayList<Object>();
+        for (int i = 0; i < 10000; i++) {
+            if (i < 100) {
+                small.add("value" + i);
+            }
+            large.add("value" + i);
+        }
+        // only a sample of the entries is estimated, the rest is extrapolated
+        double ratio = (double) ScriptFacetValues.sizeInBytes(large) / ScriptFacetValues.sizeInBytes(small);
+        assertThat(ratio, closeTo(100, 10));
+
+        StringLongMapAccumulator map = new StringLongMapAccumulator();
+        long empty = map.sizeInBytes();
+        map.add("a-rather-long-key", 1);
+        long size = map.sizeInBytes();
+        assertThat(size, greaterThan(empty));
+        map.add("a-rather-long-key", 1);
+        assertThat(map.sizeInBytes(), equalTo(size));
+    }
+
+    @Test
+    public void testMemoryTrackerRelease() throws Exception {
+        ScriptFacetMemoryService memoryService = new ScriptFacetMemoryService(ImmutableSettings.EMPTY);
+        Map<String, Object> state = new HashMap<String, Object>();
+        state.put("facet", Collections.nCopies(1000, "value"));
+
+        ScriptFacetMemoryTracker tracker = new ScriptFacetMemoryTracker("facet1", memoryService, -1, false);
+        ScriptFacetMemoryTracker.State trackerState = tracker.state(state);
+        trackerState.check();
+        assertThat(memoryService.stats().used().bytes(), greaterThan(0L));
+        tracker.release();
+        assertThat(memoryService.stats().used().bytes(), equalTo(0L));
+        // states are no longer accounted after the facet released them
+        trackerState.check();
+        assertThat(memoryService.stats().used().bytes(), equalTo(0L));
+
+        // facets that are dropped without releasing are released once they are garbage collected
+        tracker = new ScriptFacetMemoryTracker("facet1", memoryService, -1, false);
+        tracker.register(new Object());
+        tracker.state(state).check();
+        for (int i = 0; i < 100 && memoryService.stats().used().bytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(memoryService.stats().used().bytes(), equalTo(0L));
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, (long) (i % 10));
+        }
+
+        InternalScriptFacet facet = new InternalScriptFacet("facet1", map, "mvel", "facets", null, null, null, 0,
+                new ScriptFacetPhaseStats(), null, null, null, null);
+        BytesStreamOutput uncompressed = new BytesStreamOutput();
+        facet.writeTo(uncompressed);
+        assertThat(facet.stats().wireBytes().bytes(), equalTo(facet.stats().combineBytes().bytes()));
+
+        facet.compressThreshold(1024);
+        BytesStreamOutput compressed = new BytesStreamOutput();
+        facet.writeTo(compressed);
+        assertThat(compressed.size(), lessThan(uncompressed.size() / 2));
+        assertThat(facet.stats().wireBytes().bytes(), lessThan(facet.stats().combineBytes().bytes()));
+        assertThat(facet.stats().compressionRatio(), greaterThan(2.0));
+
+        InternalScriptFacet result = InternalScriptFacet.readMapReduceFacet(new BytesStreamInput(compressed.bytes()), null, null, null,
+                null, null, null);
+        assertThat(result.facet(), equalTo((Object) map));
+
+        // results below the threshold are sent as is
+        facet.compressThreshold(uncompressed.size() * 2);
+        BytesStreamOutput small = new BytesStreamOutput();
+        facet.writeTo(small);
+        assertThat(facet.stats().wireBytes().bytes(), equalTo(facet.stats().combineBytes().bytes()));
+        result = InternalScriptFacet.readMapReduceFacet(new BytesStreamInput(small.bytes()), null, null, null, null, null, null);
+        assertThat(result.facet(), equalTo((Object) map));
+    }
+
+    @Test
+    public void testSpillingAccumulator() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "facet_script_spill_test");
+        SpillDirectory.configure(directory, 1000);
+        SpillingStringLongMapAccumulator map = new SpillingStringLongMapAccumulator(10);
+        SpillingStringLongMapAccumulator other = new SpillingStringLongMapAccumulator(10);
+        for (int i = 0; i < 100; i++) {
+            map.inc("key" + (i % 50));
+            other.add("key" + (i % 70), 10);
+        }
+        assertThat(map.spilled(), equalTo(true));
+        assertThat(map.size(), equalTo(50L));
+        map.merge(other);
+        assertThat(other.runs(), equalTo(0));
+        assertThat(map.size(), equalTo(70L));
+
+        SpillingStringLongMapAccumulator.Entries entries = map.entries();
+        String previous = "";
+        long total = 0;
+        while (entries.next()) {
+            assertThat(entries.key().compareTo(previous), greaterThan(0));
+            previous = entries.key();
+            total += entries.value();
+        }
+        entries.close();
+        assertThat(total, equalTo(1100L));
+
+        SpillingStringLongMapAccumulator result = (SpillingStringLongMapAccumulator) roundTrip(map);
+        assertThat(result.spilled(), equalTo(true));
+        assertThat(result.size(), equalTo(70L));
+        entries = result.entries();
+        assertThat(entries.next(), equalTo(true));
+        assertThat(entries.key(), equalTo("key0"));
+        assertThat(entries.value(), equalTo(22L));
+        entries.close();
+
+        map.release();
+        result.release();
+        assertThat(directory.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testSpillingAccumulatorCompaction() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "facet_script_spill_test");
+        SpillDirectory.configure(directory, 1000);
+        // every key is spilled as a run of its own
+        SpillingStringLongMapAccumulator map = new SpillingStringLongMapAccumulator(1);
+        for (int i = 0; i < 500; i++) {
+            map.add("key" + (i % 300), i);
+            assertThat(map.runs(), lessThanOrEqualTo(64));
+        }
+        assertThat(map.runs(), greaterThan(1));
+        assertThat(directory.list().length, equalTo(map.runs()));
+        assertThat(map.size(), equalTo(300L));
+        SpillingStringLongMapAccumulator.Entries entries = map.entries();
+        long total = 0;
+        while (entries.next()) {
+            total += entries.value();
+        }
+        entries.close();
+        assertThat(total, equalTo(499L * 500 / 2));
+
+        SpillingStringLongMapAccumulator other = new SpillingStringLongMapAccumulator(1);
+        for (int i = 0; i < 60; i++) {
+            other.inc("other" + i);
+        }
+        map.merge(other);
+        assertThat(map.runs(), lessThanOrEqualTo(64));
+        assertThat(map.size(), equalTo(360L));
+        map.release();
+        assertThat(directory.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testSpillingAccumulatorRelease() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "facet_script_spill_test");
+        SpillDirectory.configure(directory, 1000);
+        Accumulators acc = new Accumulators(null);
+        SpillingStringLongMapAccumulator state = acc.spillingStringMap(2);
+        SpillingStringLongMapAccumulator result = acc.spillingStringMap(2);
+        for (int i = 0; i < 10; i++) {
+            state.inc("key" + i);
+            result.inc("key" + i);
+        }
+        // files of the result outlive the facet until the result is written
+        acc.detach(Collections.singletonMap("counts", result));
+        acc.release();
+        assertThat(state.spilled(), equalTo(false));
+        assertThat(directory.list().length, equalTo(result.runs()));
+        Accumulators.release(Collections.singletonList(result));
+        assertThat(directory.list().length, equalTo(0));
+    }
+
+    @Test
+    public void testUsesBulk() throws Exception {
+        ScriptFacetDefinition definition = new ScriptFacetDefinition();
+        definition.mapScript = "count++";
+        definition.reduceScript = "_bulk";
+        assertThat(definition.usesBulk(), equalTo(false));
+        definition.combineScript = "_bulk.succeeded()";
+        assertThat(definition.usesBulk(), equalTo(true));
+
+        definition = new ScriptFacetDefinition();
+        definition.nativeFacetName = "test";
+        assertThat(definition.usesBulk(), equalTo(true));
+    }
+
+    @Test
+    public void testReduceDefinitionCache() throws Exception {
+        Map<String, Object> reduceParams = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++) {
+            reduceParams.put("param" + i, "value" + i);
+        }
+        ScriptFacetDefinitionCache definitionCache = new ScriptFacetDefinitionCache(ImmutableSettings.EMPTY);
+        List<InternalScriptFacet> results = new ArrayList<InternalScriptFacet>();
+        for (long i = 0; i < 2; i++) {
+            // every shard result carries the whole definition
+            InternalScriptFacet facet = new InternalScriptFacet("facet1", i, "mvel", "facets", null, reduceParams, null, 0,
+                    null, null, null, null, null);
+            BytesStreamOutput out = new BytesStreamOutput();
+            facet.writeTo(out);
+            assertThat(out.size(), greaterThan(1000));
+            results.add(InternalScriptFacet.readMapReduceFacet(new BytesStreamInput(out.bytes()), null, null, null, null,
+                    definitionCache, null));
+        }
+        assertThat(results.get(0).reduceParams(), equalTo(reduceParams));
+        assertThat(results.get(1).facet(), equalTo((Object) 1L));
+        // the definition is parsed once and shared
+        assertThat(results.get(1).reduceParams(), sameInstance(results.get(0).reduceParams()));
+    }
+}
@@ -16,30 +16,65 @@
 
 package org.elasticsearch.search.facet.script;
 
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.trove.iterator.TObjectLongIterator;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.search.facet.script.accumulator.CountMinSketchAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.HyperLogLogAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongArrayAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.LongLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.SpillingStringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StatsAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringLongMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.StringStatsMapAccumulator;
+import org.elasticsearch.search.facet.script.accumulator.TDigestAccumulator;
 import org.elasticsearch.test.integration.AbstractNodesTests;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 /**
  *
  */
 public class SimpleScriptFacetTests extends AbstractNodesTests {
 
+    private static final String NUM_MAPPING = "{ \"type1\" : { \"properties\" : { \"num\" : { \"type\" : \"integer\" } } } }";
+
+    private static final String TAG_MAPPING = "{ \"type1\" : { \"properties\" : { \"tag\" : { \"type\" : \"string\", \"index\" : \"not_analyzed\" } } } }";
+
     public void beforeClass() throws Exception {
-        Settings settings = ImmutableSettings.settingsBuilder().put("index.number_of_shards", numberOfShards()).put("index.number_of_replicas", 0).build();
+        Settings settings = ImmutableSettings.settingsBuilder().put("index.number_of_shards", numberOfShards()).put("index.number_of_replicas", 0)
+                .put("facet.script.native.doc_count.type", DocCountFacetFactory.class.getName()).build();
         for (int i = 0; i < numberOfNodes(); i++) {
             startNode("node" + i, settings);
         }
@@ -61,6 +96,52 @@ public class SimpleScriptFacetTests extends AbstractNodesTests {
         closeAllNodes();
     }
 
+    /**
+     * Deletes the index if it exists and creates it again without an explicit mapping
+     */
+    protected void createIndex(String index) {
+        createIndex(index, null);
+    }
+
+    /**
+     * Deletes the index if it exists, creates it again with the given mapping of <code>type1</code>
+     * and waits until it is allocated
+     */
+    protected void createIndex(String index, @Nullable String mapping) {
+        try {
+            client().admin().indices().prepareDelete(index).execute().actionGet();
+        } catch (Exception e) {
+            // ignore
+        }
+        client().admin().indices().prepareCreate(index).execute().actionGet();
+        if (mapping != null) {
+            client().admin().indices().preparePutMapping(index)
+                    .setType("type1")
+                    .setSource(mapping)
+                    .execute().actionGet();
+        }
+        client().admin().cluster().prepareHealth().setWaitForGreenStatus().execute().actionGet();
+    }
+
+    protected void index(String index, XContentBuilder source) {
+        client().prepareIndex(index, "type1").setSource(source).execute().actionGet();
+    }
+
+    protected void index(String index, String id, XContentBuilder source) {
+        client().prepareIndex(index, "type1", id).setSource(source).execute().actionGet();
+    }
+
+    protected void refresh() {
+        client().admin().indices().prepareRefresh().execute().actionGet();
+    }
+
+    /**
+     * Flushes and refreshes all indices, so documents indexed before and after it end up in different segments
+     */
+    protected void flush() {
+        client().admin().indices().prepareFlush().setRefresh(true).execute().actionGet();
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testBinaryFacet() throws Exception {
@@ -358,6 +439,79 @@ public class SimpleScriptFacetTests extends AbstractNodesTests {
         assertThat(response.getHits().getHits()[0].field("message").getValue().toString(), equalTo("baz"));
     }
 
+    @Test
+    public void testBulkFromScript() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 50; i++) {
+            index("test1", Integer.toString(i), jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder().startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("bulk_actions", 7)
+                        // every shard fails to update a missing document
+                        .field("init_script", "_bulk.update(\"test1\", \"type1\", \"missing\", ['flag' : true])")
+                        .field("map_script", "_bulk.update(\"test1\", \"type1\", org.elasticsearch.index.mapper.Uid.idFromUid(doc['_uid'].value), ['flag' : true])")
+                        .field("combine_script", "_bulk.succeeded()")
+                        .field("reduce_script", "sum = 0; for (s : facets) { sum += s }; sum")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        InternalScriptFacet facet = searchResponse.getFacets().facet("facet1");
+        // requests are awaited before the combine phase
+        assertThat(((Number) facet.facet()).longValue(), equalTo(50L));
+        assertThat(facet.bulkSucceeded(), equalTo(50L));
+        assertThat(facet.bulkFailed(), greaterThan(0L));
+        assertThat(searchResponse.toString(), containsString("\"_bulk\""));
+
+        client().admin().indices().prepareRefresh("test1").execute().actionGet();
+        SearchResponse response = client().prepareSearch("test1").setTypes("type1")
+                .setQuery(QueryBuilders.termQuery("flag", true)).execute().actionGet();
+        assertThat(response.getHits().getTotalHits(), equalTo(50L));
+
+        // buffered requests are still sent when the facet fails
+        try {
+            searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder().startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("bulk_actions", 1000)
+                            .field("map_script", "_bulk.update(\"test1\", \"type1\", org.elasticsearch.index.mapper.Uid.idFromUid(doc['_uid'].value), ['partial' : true]); if (doc['num'].value == 50) { _bulk.noSuchMethod() }")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assertThat(searchResponse.getFailedShards(), greaterThan(0));
+        } catch (SearchPhaseExecutionException e) {
+            // all shards failed
+        }
+        long partial = 0;
+        for (int i = 0; i < 50 && partial == 0; i++) {
+            Thread.sleep(100);
+            client().admin().indices().prepareRefresh("test1").execute().actionGet();
+            partial = client().prepareCount("test1")
+                    .setQuery(QueryBuilders.termQuery("partial", true)).execute().actionGet().getCount();
+        }
+        assertThat(partial, greaterThan(0L));
+    }
+
     @Test
     public void testScriptParams() throws Exception {
         try {
@@ -419,4 +573,1476 @@ public class SimpleScriptFacetTests extends AbstractNodesTests {
         assertThat(facet.getName(), equalTo("facet1"));
         assertThat((Long) facet.facet(), equalTo(5L));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMapBatchScript() throws Exception {
+        createIndex("test1", NUM_MAPPING);
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        flush();
+
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("map_batch_script", "" +
+                                "for (i = 0; i < _batch.size(); i++) {" +
+                                "  _batch.advance(i);" +
+                                "  facet.total += doc.num.value;" +
+                                "};" +
+                                "facet.count = facet.count + _batch.size();" +
+                                "facet.batches = facet.batches + 1;")
+                        .field("batch_size", 3)
+                        .field("reduce_script", "total = 0L; count = 0; batches = 0;" +
+                                "for (f : facets) {" +
+                                "  total = total + f.total;" +
+                                "  count = count + f.count;" +
+                                "  batches = batches + f.batches;" +
+                                "};" +
+                                "[\"total\" : total, \"count\" : count, \"batches\" : batches]")
+                        .startObject("params")
+                        .startObject("facet")
+                        .field("total", 0)
+                        .field("count", 0)
+                        .field("batches", 0)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(10l));
+        ScriptFacet facet = searchResponse.getFacets().facet("facet1");
+        Map<String, Object> facetResult = (Map<String, Object>) facet.facet();
+        assertThat(((Number) facetResult.get("total")).longValue(), equalTo(55L));
+        assertThat(((Number) facetResult.get("count")).intValue(), equalTo(10));
+        assertThat(((Number) facetResult.get("batches")).intValue(), greaterThanOrEqualTo(4));
+    }
+
+    @Test
+    public void testMapBatchScriptTiming() throws Exception {
+        createIndex("test1", NUM_MAPPING);
+
+        for (int i = 1; i <= 100; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        flush();
+
+        long mapNanos = nodeMapNanos();
+        // full batches are run while documents are collected, they sleep so their time can't be missed
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "full = 0")
+                        .field("map_batch_script", "if (_batch.size() == 8) { Thread.sleep(10); full = full + 1; }")
+                        .field("batch_size", 8)
+                        .field("combine_script", "full")
+                        .field("reduce_script", "result = 0; for (r : facets) { result += r; }; result")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(100l));
+        InternalScriptFacet facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        assertThat(facet.stats(), nullValue());
+        long full = ((Number) facet.facet()).longValue();
+        assertThat(full, greaterThan(0L));
+        assertThat(nodeMapNanos() - mapNanos, greaterThanOrEqualTo(full * TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    private long nodeMapNanos() {
+        long mapNanos = 0;
+        for (int i = 0; i < numberOfNodes(); i++) {
+            mapNanos += ((InternalNode) node("node" + i)).injector().getInstance(ScriptFacetStatsService.class).stats().mapNanos();
+        }
+        return mapNanos;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testNativeFacet() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        flush();
+
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("native", "doc_count")
+                        .startObject("params")
+                        .field("multiplier", 2)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .startObject("facet2")
+                        .startObject("script")
+                        .field("native", "doc_count")
+                        .field("reduce_script", "facets.size()")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(10l));
+        ScriptFacet facet = searchResponse.getFacets().facet("facet1");
+        assertThat(((Number) facet.facet()).longValue(), equalTo(20L));
+        facet = searchResponse.getFacets().facet("facet2");
+        assertThat(((Number) facet.facet()).intValue(), equalTo(numberOfShards()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAccumulators() throws Exception {
+        createIndex("test1", "{ type1 : { properties : { tag : { type : \"string\", index : \"not_analyzed\" }, num : { type : \"integer\" } } } }");
+
+        for (int i = 1; i <= 15; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("tag", i <= 10 ? "green" : "blue")
+                    .field("num", i)
+                    .endObject());
+        }
+        flush();
+
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "tags = _acc.stringMap(); nums = _acc.longMap(); mods = _acc.longArray(3);")
+                        .field("map_script", "tags.inc(doc.tag.value); nums.add(doc.num.value % 2, doc.num.value); mods.inc(doc.num.value % 3);")
+                        .field("combine_script", "[\"tags\" : tags, \"nums\" : nums, \"mods\" : mods]")
+                        .field("reduce_script", "" +
+                                "[\"tags\" : _acc.merge((tags in facets)), " +
+                                "\"nums\" : _acc.merge((nums in facets)), " +
+                                "\"mods\" : _acc.merge((mods in facets))]")
+                        .endObject()
+                        .endObject()
+                        .startObject("facet2")
+                        .startObject("script")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(15l));
+
+        Map<String, Object> facet1 = (Map<String, Object>) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        StringLongMapAccumulator tags = (StringLongMapAccumulator) facet1.get("tags");
+        assertThat(tags.size(), equalTo(2));
+        assertThat(tags.get("green"), equalTo(10L));
+        assertThat(tags.get("blue"), equalTo(5L));
+        LongLongMapAccumulator nums = (LongLongMapAccumulator) facet1.get("nums");
+        assertThat(nums.get(0), equalTo(56L));
+        assertThat(nums.get(1), equalTo(64L));
+        LongArrayAccumulator mods = (LongArrayAccumulator) facet1.get("mods");
+        assertThat(mods.toArray(), equalTo(new long[]{5, 5, 5}));
+
+        StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet2").facet();
+        assertThat(stats.count(), equalTo(15L));
+        assertThat(stats.sum(), equalTo(120.0));
+        assertThat(stats.min(), equalTo(1.0));
+        assertThat(stats.max(), equalTo(15.0));
+
+        XContentBuilder builder = jsonBuilder().startObject();
+        searchResponse.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+        assertThat(json, containsString("\"green\":10"));
+        assertThat(json, containsString("\"mods\":[5,5,5]"));
+        assertThat(json, containsString("\"max\":15.0"));
+    }
+
+    @Test
+    public void testAccumulateScript() throws Exception {
+        createIndex("test1", NUM_MAPPING);
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        flush();
+
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("map_script", "facet.total += doc.num.value")
+                        .field("combine_script", "facet.total")
+                        .field("accumulate_script", "_state + facet")
+                        .field("reduce_script", "_state * multiplier")
+                        .startObject("params")
+                        .startObject("facet")
+                        .field("total", 0)
+                        .endObject()
+                        .endObject()
+                        .startObject("reduce_params")
+                        .field("_state", 0)
+                        .field("multiplier", 2)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(10l));
+        ScriptFacet facet = searchResponse.getFacets().facet("facet1");
+        assertThat(((Number) facet.facet()).longValue(), equalTo(110L));
+    }
+
+    @Test
+    public void testReduceParamsAreCopied() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 5; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        // the reduce definition is parsed once and cached, scripts shouldn't be able to modify it
+        for (int i = 0; i < 3; i++) {
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("map_script", "facet.count += 1")
+                            .field("combine_script", "facet.count")
+                            .field("reduce_script", "foreach (f : facets) { seen.add(f) }; seen.size()")
+                            .startObject("params")
+                            .startObject("facet")
+                            .field("count", 0)
+                            .endObject()
+                            .endObject()
+                            .startObject("reduce_params")
+                            .startArray("seen").endArray()
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            logger.trace(searchResponse.toString());
+            ScriptFacet facet = searchResponse.getFacets().facet("facet1");
+            assertThat(((Number) facet.facet()).intValue(), equalTo(searchResponse.getSuccessfulShards()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFields() throws Exception {
+        createIndex("test1", "{ \"type1\" : { \"properties\" : { \"num\" : { \"type\" : \"integer\" }, \"tag\" : { \"type\" : \"string\", \"index\" : \"not_analyzed\" }, "
+                + "\"multi\" : { \"type\" : \"integer\" }, \"labels\" : { \"type\" : \"string\", \"index\" : \"not_analyzed\" } } } }");
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .field("tag", i % 2 == 0 ? "even" : "odd")
+                    .field("multi", new int[]{i, 100})
+                    .field("labels", new String[]{"all", i % 2 == 0 ? "even" : "odd"})
+                    .endObject());
+        }
+        index("test1", jsonBuilder().startObject()
+                .field("tag", "none")
+                .endObject());
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("fields", new String[]{"num", "tag"})
+                        .field("init_script", "num = _columns.num; tag = _columns.tag; sums = _acc.stringMap()")
+                        .field("map_script", "if (num.hasValue()) { sums.add(tag.stringValue(), num.longValue()) }")
+                        .field("combine_script", "sums")
+                        .endObject()
+                        .endObject()
+                        .startObject("facet2")
+                        .startObject("script")
+                        .field("fields", "num")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_batch_script", "num = _columns.num; for (i = 0; i < _batch.size(); i++) { stats.add(num.doubleValue(_batch.doc(i))) }")
+                        .field("batch_size", 4)
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .startObject("facet3")
+                        .startObject("script")
+                        .field("fields", new String[]{"multi", "labels"})
+                        .field("init_script", "multi = _columns.multi; labels = _columns.labels; stats = _acc.stats(); counts = _acc.stringMap()")
+                        .field("map_script", "" +
+                                "for (v : multi.longValues()) { stats.add(v) }; " +
+                                "counts.add(\"_values\", multi.valueCount()); " +
+                                "for (l : labels.stringValues()) { counts.inc(l) }")
+                        .field("combine_script", "[\"stats\" : stats, \"counts\" : counts]")
+                        .field("reduce_script", "[\"stats\" : _acc.merge((stats in facets)), \"counts\" : _acc.merge((counts in facets))]")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(11l));
+
+        // all values of multi-valued fields
+        Map<String, Object> facet3 = (Map<String, Object>) searchResponse.getFacets().<ScriptFacet>facet("facet3").facet();
+        StatsAccumulator multiStats = (StatsAccumulator) facet3.get("stats");
+        assertThat(multiStats.count(), equalTo(20L));
+        assertThat(multiStats.sum(), equalTo(1055.0));
+        StringLongMapAccumulator labelCounts = (StringLongMapAccumulator) facet3.get("counts");
+        assertThat(labelCounts.get("_values"), equalTo(20L));
+        assertThat(labelCounts.get("all"), equalTo(10L));
+        assertThat(labelCounts.get("even"), equalTo(5L));
+        assertThat(labelCounts.get("odd"), equalTo(5L));
+
+        StringLongMapAccumulator sums = (StringLongMapAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(sums.size(), equalTo(2));
+        assertThat(sums.get("even"), equalTo(30L));
+        assertThat(sums.get("odd"), equalTo(25L));
+
+        StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet2").facet();
+        assertThat(stats.count(), equalTo(11L));
+        assertThat(stats.sum(), equalTo(55.0));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMapOps() throws Exception {
+        createIndex("test1", "{ \"type1\" : { \"properties\" : { \"num\" : { \"type\" : \"integer\" }, \"tag\" : { \"type\" : \"string\", \"index\" : \"not_analyzed\" } } } }");
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .field("tag", i % 2 == 0 ? "even" : "odd")
+                    .endObject());
+        }
+        index("test1", jsonBuilder().startObject()
+                .field("tag", "none")
+                .endObject());
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .startObject("map")
+                        .field("op", "stats")
+                        .field("field", "num")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .startObject("facet2")
+                        .startObject("script")
+                        .startArray("map")
+                        .startObject().field("name", "counts").field("op", "count").field("key_field", "tag").endObject()
+                        .startObject().field("name", "sums").field("op", "stats").field("field", "num").field("key_field", "tag").endObject()
+                        .startObject().field("name", "histo").field("op", "histogram").field("field", "num").field("interval", 5).endObject()
+                        .startObject().field("name", "numCounts").field("op", "count").field("key_field", "num").endObject()
+                        .endArray()
+                        .field("combine_script", "[\"counts\" : counts, \"sums\" : sums, \"histo\" : histo, \"numCounts\" : numCounts]")
+                        .field("reduce_script", "" +
+                                "[\"counts\" : _acc.merge((counts in facets)), " +
+                                "\"sums\" : _acc.merge((sums in facets)), " +
+                                "\"histo\" : _acc.merge((histo in facets)), " +
+                                "\"numCounts\" : _acc.merge((numCounts in facets))]")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(11l));
+
+        StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(stats.count(), equalTo(10L));
+        assertThat(stats.sum(), equalTo(55.0));
+
+        Map<String, Object> facet2 = (Map<String, Object>) searchResponse.getFacets().<ScriptFacet>facet("facet2").facet();
+        StringLongMapAccumulator counts = (StringLongMapAccumulator) facet2.get("counts");
+        assertThat(counts.size(), equalTo(3));
+        assertThat(counts.get("even"), equalTo(5L));
+        assertThat(counts.get("none"), equalTo(1L));
+        StringStatsMapAccumulator sums = (StringStatsMapAccumulator) facet2.get("sums");
+        assertThat(sums.size(), equalTo(2));
+        assertThat(sums.get("even").sum(), equalTo(30.0));
+        assertThat(sums.get("odd").max(), equalTo(9.0));
+        LongLongMapAccumulator histo = (LongLongMapAccumulator) facet2.get("histo");
+        assertThat(histo.get(0), equalTo(4L));
+        assertThat(histo.get(5), equalTo(5L));
+        assertThat(histo.get(10), equalTo(1L));
+        StringLongMapAccumulator numCounts = (StringLongMapAccumulator) facet2.get("numCounts");
+        assertThat(numCounts.size(), equalTo(10));
+        assertThat(numCounts.get("7"), equalTo(1L));
+
+        // stats and histograms are only supported on numeric fields
+        try {
+            client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .startObject("map")
+                            .field("op", "stats")
+                            .field("field", "tag")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assert false : "stats of a string field should be rejected";
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("field [tag] of stats in map operation [facet] is not numeric"));
+        }
+
+        // single statistics are read from the result of stats
+        try {
+            client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .startObject("map")
+                            .field("op", "sum")
+                            .field("field", "num")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assert false : "sum should be rejected";
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("unknown op [sum] in map operation [facet]"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMapOpsMultiValued() throws Exception {
+        createIndex("test1", "{ \"type1\" : { \"properties\" : { \"num\" : { \"type\" : \"integer\" } } } }");
+
+        index("test1", jsonBuilder().startObject()
+                .array("num", 1, 6, 11)
+                .endObject());
+        index("test1", jsonBuilder().startObject()
+                .field("num", 2)
+                .endObject());
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .startArray("map")
+                        .startObject().field("name", "stats").field("op", "stats").field("field", "num").endObject()
+                        .startObject().field("name", "histo").field("op", "histogram").field("field", "num").field("interval", 5).endObject()
+                        .endArray()
+                        .field("combine_script", "[\"stats\" : stats, \"histo\" : histo]")
+                        .field("reduce_script", "" +
+                                "[\"stats\" : _acc.merge((stats in facets)), " +
+                                "\"histo\" : _acc.merge((histo in facets))]")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(2l));
+
+        Map<String, Object> facet1 = (Map<String, Object>) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        StatsAccumulator stats = (StatsAccumulator) facet1.get("stats");
+        assertThat(stats.count(), equalTo(4L));
+        assertThat(stats.sum(), equalTo(20.0));
+        assertThat(stats.max(), equalTo(11.0));
+        LongLongMapAccumulator histo = (LongLongMapAccumulator) facet1.get("histo");
+        assertThat(histo.get(0), equalTo(2L));
+        assertThat(histo.get(5), equalTo(1L));
+        assertThat(histo.get(10), equalTo(1L));
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 10; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "sum = 0")
+                        .field("map_script", "sum += doc['num'].value")
+                        .field("combine_script", "sum")
+                        .field("reduce_script", "result = 0; for (r : facets) { result += r; }; result")
+                        .field("profile", true)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(10l));
+
+        InternalScriptFacet facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        assertThat(((Number) facet.facet()).intValue(), equalTo(55));
+        ScriptFacetPhaseStats stats = facet.stats();
+        assertThat(stats, notNullValue());
+        assertThat(stats.shards(), equalTo((long) searchResponse.getSuccessfulShards()));
+        assertThat(stats.docs(), equalTo(10L));
+        assertThat(stats.mapNanos(), greaterThan(0L));
+        assertThat(searchResponse.toString(), containsString("\"_stats\""));
+
+        // map time of facets that are not profiled is still part of the node totals
+        long docs = 0;
+        long mapNanos = 0;
+        for (int i = 0; i < numberOfNodes(); i++) {
+            ScriptFacetPhaseStats nodeStats = ((InternalNode) node("node" + i)).injector().getInstance(ScriptFacetStatsService.class).stats();
+            docs += nodeStats.docs();
+            mapNanos += nodeStats.mapNanos();
+        }
+        searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "sum = 0")
+                        .field("map_script", "sum += doc['num'].value")
+                        .field("combine_script", "sum")
+                        .field("reduce_script", "result = 0; for (r : facets) { result += r; }; result")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        assertThat(facet.stats(), nullValue());
+        long newDocs = 0;
+        long newMapNanos = 0;
+        for (int i = 0; i < numberOfNodes(); i++) {
+            ScriptFacetPhaseStats nodeStats = ((InternalNode) node("node" + i)).injector().getInstance(ScriptFacetStatsService.class).stats();
+            newDocs += nodeStats.docs();
+            newMapNanos += nodeStats.mapNanos();
+        }
+        assertThat(newDocs, equalTo(docs + 10));
+        assertThat(newMapNanos, greaterThan(mapNanos));
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        createIndex("test1", TAG_MAPPING);
+
+        for (int i = 0; i < 200; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("tag", "tag" + (i % 100))
+                    .field("weight", i < 100 ? 1 : 10)
+                    .endObject());
+        }
+        refresh();
+
+        try {
+            client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("init_script", "tags = []")
+                            .field("map_script", "tags.add(doc['tag'].value)")
+                            .field("combine_script", "tags")
+                            .field("memory_limit", "1kb")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assert false : "memory limit should be exceeded";
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("exceeds the memory limit of the facet"));
+        }
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "counts = _acc.stringMap()")
+                        .field("map_script", "counts.add(doc['tag'].value, doc['weight'].value)")
+                        .field("combine_script", "counts")
+                        .field("memory_limit", "2kb")
+                        .field("on_memory_limit", "approximate")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        StringLongMapAccumulator counts = (StringLongMapAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(counts.size(), greaterThan(0));
+        assertThat(counts.size(), lessThan(100));
+        assertThat(counts.error(), greaterThan(0L));
+
+        for (int i = 0; i < numberOfNodes(); i++) {
+            ScriptFacetMemoryService memoryService = ((InternalNode) node("node" + i)).injector().getInstance(ScriptFacetMemoryService.class);
+            assertThat(memoryService.stats().used().bytes(), equalTo(0L));
+            assertThat(memoryService.stats().limitBreaks(), greaterThan(0L));
+        }
+    }
+
+    @Test
+    public void testPagedAccumulators() throws Exception {
+        createIndex("test1");
+
+        for (int i = 0; i < 100; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i % 10)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "counts = _acc.pagedLongMap(); scratch = _acc.pagedLongArray(1000000)")
+                        .field("map_script", "counts.inc(doc['num'].value); scratch.inc(doc['num'].value)")
+                        .field("combine_script", "counts")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        // the result is copied to the heap by the reduce
+        LongLongMapAccumulator counts = (LongLongMapAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(counts.size(), equalTo(10));
+        for (int i = 0; i < 10; i++) {
+            assertThat(counts.get(i), equalTo(10L));
+        }
+
+        // scratch arrays are released with the facet, shard results after they are written or reduced
+        for (int i = 0; i < numberOfNodes(); i++) {
+            ScriptFacetMemoryService memoryService = ((InternalNode) node("node" + i)).injector().getInstance(ScriptFacetMemoryService.class);
+            assertThat(memoryService.stats().pagedUsed().bytes(), equalTo(0L));
+            assertThat(memoryService.stats().pagesCollected(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void testSpillingAccumulator() throws Exception {
+        createIndex("test1", TAG_MAPPING);
+
+        for (int i = 0; i < 200; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("tag", "tag" + (i % 100))
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "counts = _acc.spillingStringMap(10)")
+                        .field("map_script", "counts.inc(doc['tag'].value)")
+                        .field("combine_script", "counts")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        SpillingStringLongMapAccumulator counts = (SpillingStringLongMapAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(counts.spilled(), equalTo(true));
+        assertThat(counts.size(), equalTo(100L));
+        SpillingStringLongMapAccumulator.Entries entries = counts.entries();
+        while (entries.next()) {
+            assertThat(entries.value(), equalTo(2L));
+        }
+        entries.close();
+        assertThat(searchResponse.toString(), containsString("\"tag99\" : 2"));
+        counts.release();
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        createIndex("test1");
+
+        for (int i = 0; i < 200; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = sampledSearch(0.5);
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        InternalScriptFacet facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        List<?> result = (List<?>) facet.facet();
+        long count = ((Number) result.get(0)).longValue();
+        assertThat(count, greaterThan(0L));
+        assertThat(count, lessThan(200L));
+        assertThat(facet.sampled(), equalTo(true));
+        assertThat(facet.sampleRate(), equalTo(count / 200.0));
+        assertThat(((Number) result.get(1)).doubleValue(), equalTo(count / 200.0));
+        assertThat(searchResponse.toString(), containsString("\"_sample_rate\""));
+
+        // the same documents are sampled every time
+        SearchResponse repeated = sampledSearch(0.5);
+        assertThat(((List<?>) repeated.getFacets().<ScriptFacet>facet("facet1").facet()).get(0), equalTo(result.get(0)));
+
+        searchResponse = sampledSearch(20);
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        count = ((Number) ((List<?>) facet.facet()).get(0)).longValue();
+        assertThat(count, greaterThan(0L));
+        assertThat(count, lessThan(200L));
+        assertThat(facet.sampleRate(), equalTo(count / 200.0));
+
+        searchResponse = sampledSearch(1000);
+        facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+        assertThat(((Number) ((List<?>) facet.facet()).get(0)).longValue(), equalTo(200L));
+        assertThat(facet.sampleRate(), equalTo(1.0));
+
+        try {
+            sampledSearch(0);
+            assert false : "sample should be positive";
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("sample should be positive"));
+        }
+    }
+
+    @Test
+    public void testTerminate() throws Exception {
+        createIndex("test1");
+
+        for (int i = 0; i < 100; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        for (boolean parallelSegments : new boolean[]{false, true}) {
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("init_script", "values = []")
+                            .field("map_script", "values.add(doc['num'].value); if (values.size() == 5) { _control.terminate(); }")
+                            .field("segment_combine_script", "foreach (segment : _segments) { values.addAll(segment.values) }")
+                            .field("combine_script", "values")
+                            .field("reduce_script", "result = 0; for (r : facets) { result += r.size(); }; result")
+                            .field("parallel_segments", parallelSegments)
+                            .field("profile", true)
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            logger.trace(searchResponse.toString());
+            assertThat(searchResponse.getFailedShards(), equalTo(0));
+            assertThat(searchResponse.getHits().getTotalHits(), equalTo(100l));
+            InternalScriptFacet facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+            if (!parallelSegments) {
+                assertThat(((Number) facet.facet()).longValue(), equalTo(5L * searchResponse.getSuccessfulShards()));
+                assertThat(facet.stats().docs(), equalTo(5L * searchResponse.getSuccessfulShards()));
+            } else {
+                // every group of segments is terminated separately
+                assertThat(((Number) facet.facet()).longValue(), equalTo(facet.stats().docs()));
+                assertThat(facet.stats().docs(), lessThan(100L));
+            }
+        }
+    }
+
+    @Test
+    public void testSize() throws Exception {
+        createIndex("test1", TAG_MAPPING);
+
+        // tag<i> is in i + 1 documents
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j <= i; j++) {
+                index("test1", jsonBuilder().startObject()
+                        .field("tag", "tag" + i)
+                        .endObject());
+            }
+        }
+        refresh();
+
+        String[][] scripts = new String[][]{
+                {"counts = _acc.stringMap()", "counts.inc(doc['tag'].value)"},
+                {"counts = [:]", "t = doc['tag'].value; counts[t] = counts.containsKey(t) ? counts[t] + 1 : 1"}
+        };
+        for (String[] script : scripts) {
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("init_script", script[0])
+                            .field("map_script", script[1])
+                            .field("combine_script", "counts")
+                            .field("size", 5)
+                            .field("shard_size", 10)
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            logger.trace(searchResponse.toString());
+            assertThat(searchResponse.getFailedShards(), equalTo(0));
+            InternalScriptFacet facet = (InternalScriptFacet) searchResponse.getFacets().<ScriptFacet>facet("facet1");
+            assertThat(facet.size(), equalTo(5));
+            assertThat(facet.error(), greaterThan(0L));
+            assertThat(searchResponse.toString(), containsString("\"_error\""));
+            Map<String, Long> counts = new HashMap<String, Long>();
+            if (facet.facet() instanceof StringLongMapAccumulator) {
+                StringLongMapAccumulator accumulator = (StringLongMapAccumulator) facet.facet();
+                for (TObjectLongIterator<String> it = accumulator.iterator(); it.hasNext(); ) {
+                    it.advance();
+                    counts.put(it.key(), it.value());
+                }
+            } else {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) facet.facet()).entrySet()) {
+                    counts.put((String) entry.getKey(), ((Number) entry.getValue()).longValue());
+                }
+            }
+            assertThat(counts.size(), equalTo(5));
+            for (Map.Entry<String, Long> entry : counts.entrySet()) {
+                long exact = Integer.parseInt(entry.getKey().substring(3)) + 1;
+                assertThat(entry.getValue(), lessThanOrEqualTo(exact));
+                assertThat(exact - entry.getValue(), lessThanOrEqualTo(facet.error()));
+            }
+        }
+    }
+
+    @Test
+    public void testSketches() throws Exception {
+        createIndex("test1", TAG_MAPPING);
+
+        for (int i = 0; i < 200; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("tag", "tag" + (i % 50))
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("distinct")
+                        .startObject("script")
+                        .field("init_script", "tags = _acc.hll()")
+                        .field("map_script", "tags.add(doc['tag'].value)")
+                        .field("combine_script", "tags")
+                        .endObject()
+                        .endObject()
+                        .startObject("percentiles")
+                        .startObject("script")
+                        .field("init_script", "nums = _acc.tdigest()")
+                        .field("map_script", "nums.add(doc['num'].value)")
+                        .field("combine_script", "nums")
+                        .endObject()
+                        .endObject()
+                        .startObject("frequent")
+                        .startObject("script")
+                        .field("init_script", "tags = _acc.countMin(1)")
+                        .field("map_script", "tags.add(doc['num'].value < 100 ? 'tag0' : doc['tag'].value)")
+                        .field("combine_script", "tags")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        HyperLogLogAccumulator distinct = (HyperLogLogAccumulator) searchResponse.getFacets().<ScriptFacet>facet("distinct").facet();
+        assertThat(distinct.cardinality(), equalTo(50L));
+        TDigestAccumulator percentiles = (TDigestAccumulator) searchResponse.getFacets().<ScriptFacet>facet("percentiles").facet();
+        assertThat(percentiles.count(), equalTo(200L));
+        assertThat(percentiles.max(), equalTo(199.0));
+        assertThat(percentiles.percentile(50), closeTo(100, 5));
+        CountMinSketchAccumulator frequent = (CountMinSketchAccumulator) searchResponse.getFacets().<ScriptFacet>facet("frequent").facet();
+        assertThat(frequent.total(), equalTo(200L));
+        assertThat(frequent.heavyHitters().get("tag0"), greaterThanOrEqualTo(100L));
+        assertThat(searchResponse.toString(), containsString("\"cardinality\" : 50"));
+    }
+
+    private SearchResponse sampledSearch(double sample) throws IOException {
+        return client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("init_script", "count = 0")
+                        .field("map_script", "count++")
+                        .field("combine_script", "count")
+                        .field("reduce_script", "result = 0; for (r : facets) { result += r; }; [result, _sample_rate]")
+                        .field("sample", sample)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+    }
+
+    @Test
+    public void testParallelSegments() throws Exception {
+        createIndex("test1", NUM_MAPPING);
+
+        for (int i = 1; i <= 20; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+            if (i % 5 == 0) {
+                // create several segments
+                flush();
+            }
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("parallel_segments", true)
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .startObject("facet2")
+                        .startObject("script")
+                        .field("parallel_segments", true)
+                        .field("map_script", "facet.total += doc.num.value")
+                        .field("segment_combine_script", "foreach (segment : _segments) { facet.total += segment.facet.total }")
+                        .field("combine_script", "facet.total")
+                        .field("reduce_script", "total = 0; foreach (f : facets) { total += f }; total")
+                        .startObject("params")
+                        .startObject("facet")
+                        .field("total", 0)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .startObject("facet3")
+                        .field("mode", "post")
+                        .startObject("script")
+                        .field("parallel_segments", true)
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_batch_script", "for (i = 0; i < _batch.size(); i++) { _batch.advance(i); stats.add(doc.num.value) }")
+                        .field("batch_size", 3)
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(20l));
+
+        StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(stats.count(), equalTo(20L));
+        assertThat(stats.sum(), equalTo(210.0));
+        assertThat(stats.min(), equalTo(1.0));
+        assertThat(stats.max(), equalTo(20.0));
+
+        ScriptFacet facet = searchResponse.getFacets().facet("facet2");
+        assertThat(((Number) facet.facet()).longValue(), equalTo(210L));
+
+        stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet3").facet();
+        assertThat(stats.count(), equalTo(20L));
+        assertThat(stats.sum(), equalTo(210.0));
+    }
+
+    @Test
+    public void testUnmergeableSegmentStates() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 20; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i % 4)
+                    .endObject());
+            if (i % 5 == 0) {
+                flush();
+            }
+        }
+        refresh();
+
+        // plain maps can't be merged without segment_combine_script
+        try {
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("parallel_segments", true)
+                            .field("init_script", "counts = [:]")
+                            .field("map_script", "key = doc['num'].value; counts[key] = counts.containsKey(key) ? counts[key] + 1 : 1")
+                            .field("combine_script", "counts")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assertThat(searchResponse.getFailedShards(), greaterThan(0));
+            assertThat(searchResponse.getShardFailures()[0].reason(), containsString("state variable [counts] of segments is not an accumulator"));
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("state variable [counts] of segments is not an accumulator"));
+        }
+
+        // variables that are not changed by the map phase are left as they are
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("facet1")
+                        .startObject("script")
+                        .field("parallel_segments", true)
+                        .field("init_script", "counts = _acc.longMap(); offset = 10")
+                        .field("map_script", "counts.inc(doc['num'].value + offset + step)")
+                        .field("combine_script", "counts")
+                        .startObject("params")
+                        .field("step", 100)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        LongLongMapAccumulator counts = (LongLongMapAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+        assertThat(counts.size(), equalTo(4));
+        assertThat(counts.get(110), equalTo(5L));
+        assertThat(counts.get(113), equalTo(5L));
+    }
+
+    @Test
+    public void testPostMode() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 20; i++) {
+            index("test1", Integer.toString(i), jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+        // deleted documents are skipped by global facets
+        client().prepareDelete("test1", "type1", "20").execute().actionGet();
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setQuery(QueryBuilders.rangeQuery("num").gte(5))
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("collector")
+                        .startObject("script")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .startObject("post")
+                        .field("mode", "post")
+                        .startObject("script")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .startObject("global")
+                        .field("mode", "post")
+                        .field("global", true)
+                        .startObject("script")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .startObject("global_filtered")
+                        .field("mode", "post")
+                        .field("global", true)
+                        .startObject("facet_filter")
+                        .startObject("range")
+                        .startObject("num")
+                        .field("lte", 10)
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .startObject("script")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(15l));
+
+        StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("collector").facet();
+        assertThat(stats.count(), equalTo(15L));
+        assertThat(stats.sum(), equalTo(180.0));
+
+        stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("post").facet();
+        assertThat(stats.count(), equalTo(15L));
+        assertThat(stats.sum(), equalTo(180.0));
+
+        stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("global").facet();
+        assertThat(stats.count(), equalTo(19L));
+        assertThat(stats.sum(), equalTo(190.0));
+
+        stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("global_filtered").facet();
+        assertThat(stats.count(), equalTo(10L));
+        assertThat(stats.sum(), equalTo(55.0));
+    }
+
+    @Test
+    public void testFacetGroup() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 20; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        SearchResponse searchResponse = client().prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setIndices("test1")
+                .setQuery(QueryBuilders.rangeQuery("num").gte(5))
+                .setExtraSource(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("facets")
+                        .startObject("collector")
+                        .startObject("script")
+                        .startObject("facets")
+                        .startObject("stats")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .startObject("total")
+                        .field("init_script", "total = 0")
+                        .field("map_script", "total += _source.num")
+                        .field("combine_script", "total")
+                        .field("reduce_script", "sum = 0; for (t : facets) { sum += t }; sum")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .startObject("post")
+                        .field("mode", "post")
+                        .startObject("script")
+                        .startObject("facets")
+                        .startObject("stats")
+                        .field("init_script", "stats = _acc.stats()")
+                        .field("map_script", "stats.add(doc.num.value)")
+                        .field("combine_script", "stats")
+                        .endObject()
+                        .startObject("total")
+                        .field("init_script", "total = 0")
+                        .field("map_script", "total += _source.num")
+                        .field("combine_script", "total")
+                        .field("reduce_script", "sum = 0; for (t : facets) { sum += t }; sum")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject())
+                .execute().actionGet();
+        logger.trace(searchResponse.toString());
+        assertThat(searchResponse.getFailedShards(), equalTo(0));
+        assertThat(searchResponse.toString(), containsString("\"facets\""));
+
+        for (String name : new String[]{"collector", "post"}) {
+            InternalScriptFacetGroup group = searchResponse.getFacets().facet(name);
+            assertThat(group.facets().size(), equalTo(2));
+            StatsAccumulator stats = (StatsAccumulator) group.facet("stats").facet();
+            assertThat(stats.count(), equalTo(16L));
+            assertThat(stats.sum(), equalTo(200.0));
+            assertThat(((Number) group.facet().get("total")).longValue(), equalTo(200L));
+        }
+    }
+
+    @Test
+    public void testCacheable() throws Exception {
+        createIndex("test1", NUM_MAPPING);
+
+        for (int i = 1; i <= 20; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+            if (i % 5 == 0) {
+                flush();
+            }
+        }
+        refresh();
+
+        ScriptFacetSegmentCache segmentCache = ((InternalNode) node("node0")).injector().getInstance(ScriptFacetSegmentCache.class);
+        long hits = segmentCache.stats().hits();
+
+        for (int i = 0; i < 3; i++) {
+            if (i == 2) {
+                index("test1", jsonBuilder().startObject()
+                        .field("num", 21)
+                        .endObject());
+                refresh();
+            }
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setQuery(QueryBuilders.rangeQuery("num").from(3))
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("cacheable", true)
+                            .field("init_script", "stats = _acc.stats()")
+                            .field("map_script", "stats.add(doc.num.value)")
+                            .field("combine_script", "stats")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            logger.trace(searchResponse.toString());
+            StatsAccumulator stats = (StatsAccumulator) searchResponse.getFacets().<ScriptFacet>facet("facet1").facet();
+            if (i < 2) {
+                assertThat(stats.count(), equalTo(18L));
+                assertThat(stats.sum(), equalTo(207.0));
+            } else {
+                assertThat(stats.count(), equalTo(19L));
+                assertThat(stats.sum(), equalTo(228.0));
+            }
+        }
+        assertThat(segmentCache.stats().hits(), greaterThan(hits));
+
+        // cached states are merged like states of parallel segments, plain maps can't be merged
+        try {
+            SearchResponse searchResponse = client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("cacheable", true)
+                            .field("init_script", "counts = [:]")
+                            .field("map_script", "counts[doc.num.value] = 1")
+                            .field("combine_script", "counts")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assertThat(searchResponse.getFailedShards(), greaterThan(0));
+            assertThat(searchResponse.getShardFailures()[0].reason(), containsString("state variable [counts] of segments is not an accumulator"));
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.getMessage(), containsString("state variable [counts] of segments is not an accumulator"));
+        }
+    }
+
+    @Test
+    public void testScriptCompileError() throws Exception {
+        createIndex("test1");
+
+        for (int i = 1; i <= 5; i++) {
+            index("test1", jsonBuilder().startObject()
+                    .field("num", i)
+                    .endObject());
+        }
+        refresh();
+
+        try {
+            client().prepareSearch()
+                    .setSearchType(SearchType.COUNT)
+                    .setIndices("test1")
+                    .setExtraSource(XContentFactory.jsonBuilder()
+                            .startObject()
+                            .startObject("facets")
+                            .startObject("facet1")
+                            .startObject("script")
+                            .field("map_script", "total += (")
+                            .endObject()
+                            .endObject()
+                            .endObject()
+                            .endObject())
+                    .execute().actionGet();
+            assert false : "script should fail to compile";
+        } catch (SearchPhaseExecutionException e) {
+            // the error of the script engine is not wrapped
+            assertThat(e.getMessage(), containsString("CompileException"));
+            assertThat(e.getMessage(), not(containsString("UncheckedExecutionException")));
+        }
+    }
+
+    public static class DocCountFacetFactory implements NativeScriptFacetFactory {
+
+        @Override
+        public NativeScriptFacet newFacet(Map<String, Object> params) {
+            final int multiplier = params.containsKey("multiplier") ? ((Number) params.get("multiplier")).intValue() : 1;
+            return new NativeScriptFacet() {
+                private long count;
+
+                @Override
+                public void setNextReader(AtomicReaderContext context) throws IOException {
+                }
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    count += multiplier;
+                }
+
+                @Override
+                public Object combine() {
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public Object reduce(List<Object> facets, Map<String, Object> reduceParams) {
+            long total = 0;
+            for (Object facet : facets) {
+                total += ((Number) facet).longValue();
+            }
+            return total;
+        }
+    }
 }